@@ -0,0 +1,137 @@
+package com.jpl.embedded;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Load test of the QueryGate on the application deployed at url: while heavy
+ * clients keep asking for long queries, the services answered from memory
+ * must keep responding:
+ *
+ * - last: latency of /last, with heavy clients looping on query, the list of
+ *   every measure by default, far more than the queries the gate lets run
+ *
+ * With the gate the percentiles of last stay close to the ones with no heavy
+ * clients, as the queries wait suspended and the container threads stay free.
+ * Without it, once heavy reaches the threads of the container, last waits for
+ * a long query to end. The heavy requests answered with 503 by the gate are
+ * counted and printed at the end of each trial.
+ *
+ * Run it from another machine than the Raspberry Pi, with -p url=...
+ *
+ * @author José Pereda Llamas
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GateLoadBench {
+
+    private static final int TIMEOUT = 30000; // miliseconds
+
+    @Param({ "http://localhost:8080/embedded" })
+    public String url;
+
+    @Param({ "list?tam=1000000" })
+    public String query;
+
+    @Param({ "0", "64" })
+    public int heavy;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicLong answered = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final List<Thread> clients = new ArrayList<>();
+
+    @Setup
+    public void setup() throws IOException {
+        // fails before loading the server if the application isn't there
+        get(url + "/last");
+        running.set(true);
+        for (int i = 0; i < heavy; i++) {
+            Thread client = new Thread("heavy-" + i) {
+                @Override
+                public void run() {
+                    while (running.get()) {
+                        try {
+                            int status = get(url + "/" + query);
+                            (status == 503 ? rejected : answered).incrementAndGet();
+                        } catch (IOException e) {
+                            failed.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            client.setDaemon(true);
+            client.start();
+            clients.add(client);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        running.set(false);
+        for (Thread client : clients) {
+            client.join(TIMEOUT);
+        }
+        System.out.println("Heavy queries: " + answered.get() + " answered, " + rejected.get()
+                + " rejected, " + failed.get() + " failed");
+    }
+
+    @Benchmark
+    public int last() throws IOException {
+        int status = get(url + "/last");
+        if (status != 200) {
+            throw new IOException("/last answered " + status);
+        }
+        return status;
+    }
+
+    /*
+     * status of a GET of the url, reading the whole body
+     */
+    private static int get(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(TIMEOUT);
+        connection.setReadTimeout(TIMEOUT);
+        try {
+            int status = connection.getResponseCode();
+            InputStream in = (status < 400 ? connection.getInputStream() : connection.getErrorStream());
+            if (in != null) {
+                byte[] buffer = new byte[8192];
+                try {
+                    while (in.read(buffer) >= 0) {
+                        // discarded
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            return status;
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.jpl.embedded;
+
+import com.jpl.embedded.model.BeanHT;
+import com.jpl.embedded.service.HistoryCodec;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to serialize a List of size BeanHT, as returned by the list service:
+ *
+ * - jaxb: JAXB marshalling of every bean, the model the JAX-RS JSON provider
+ *   walks to write the json of list
+ * - json: JsonRows, as list/stream and page write it
+ * - binary: HistoryCodec, as list writes it for application/x-arduinofx-history
+ *
+ * The bytes written are kept in a reused buffer, so only serialization is timed.
+ *
+ * @author José Pereda Llamas
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SerializationBench {
+
+    @Param({ "100", "1000" })
+    public int size;
+
+    private final List<BeanHT> list = new ArrayList<>();
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 20);
+    private Marshaller marshaller;
+
+    @Setup
+    public void setup() throws JAXBException {
+        long time = System.currentTimeMillis();
+        for (int i = 0; i < size; i++) {
+            Calendar cal = Calendar.getInstance();
+            cal.setTimeInMillis(time + i * 30000L);
+            list.add(new BeanHT(i + 1, i % 4, 20 + (i % 50) / 10.0, 45 + (i % 30) / 10.0, cal));
+        }
+        marshaller = JAXBContext.newInstance(BeanHT.class).createMarshaller();
+        marshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+    }
+
+    @Benchmark
+    public int jaxb() throws JAXBException {
+        out.reset();
+        for (BeanHT bean : list) {
+            marshaller.marshal(bean, out);
+        }
+        return out.size();
+    }
+
+    @Benchmark
+    public int json() throws IOException {
+        out.reset();
+        JsonRows json = new JsonRows(out);
+        for (BeanHT bean : list) {
+            json.row(bean.getId(), bean.getNode(), bean.getTime().getTimeInMillis(),
+                    (float) bean.getTemp(), (float) bean.getHum());
+        }
+        json.close();
+        return out.size();
+    }
+
+    @Benchmark
+    public int binary() throws IOException {
+        out.reset();
+        HistoryCodec codec = new HistoryCodec();
+        for (BeanHT bean : list) {
+            codec.row(bean.getId(), bean.getNode(), bean.getTime().getTimeInMillis(),
+                    (float) bean.getTemp(), (float) bean.getHum());
+        }
+        codec.encode(out);
+        return out.size();
+    }
+}
@@ -0,0 +1,104 @@
+package com.jpl.embedded.comms;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Time to decode one frame "{23.5,45.2}\r\n" as read from the serial port:
+ *
+ * - legacy: the original String based decoding, with Serial.dec2hexStr and
+ *   Serial.hex2ReadStr, as the reader thread did before FrameParser
+ * - parser: FrameParser, transparent mode
+ * - api: the same frame wrapped in a XBee API receive packet, ApiFrameDecoder
+ *
+ * @author José Pereda Llamas
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FrameDecodingBench {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final byte[] frame = "{23.5,45.2}\r\n".getBytes(ASCII);
+    private byte[] apiFrame;
+
+    private FrameParser parser;
+    private ApiFrameDecoder api;
+    private Blackhole blackhole;
+
+    @Setup
+    public void setup(final Blackhole blackhole) {
+        this.blackhole = blackhole;
+        ReadingListener listener = new ReadingListener() {
+            @Override
+            public void onReading(long node, double temp, double hum) {
+                FrameDecodingBench.this.blackhole.consume(temp);
+                FrameDecodingBench.this.blackhole.consume(hum);
+            }
+        };
+        parser = new FrameParser(listener);
+        api = new ApiFrameDecoder(false, listener);
+        apiFrame = rx16(0x1234, frame);
+    }
+
+    /*
+     * unescaped API frame of a 16 bit address receive packet (0x81) with the data
+     */
+    private static byte[] rx16(int address, byte[] data) {
+        int length = 5 + data.length;
+        byte[] packet = new byte[length + 4];
+        packet[0] = 0x7E;
+        packet[1] = (byte) (length >> 8);
+        packet[2] = (byte) length;
+        packet[3] = (byte) 0x81;
+        packet[4] = (byte) (address >> 8);
+        packet[5] = (byte) address;
+        packet[6] = 0x28; // rssi
+        packet[7] = 0x00; // options
+        System.arraycopy(data, 0, packet, 8, data.length);
+        int sum = 0;
+        for (int i = 3; i < packet.length - 1; i++) {
+            sum += packet[i] & 0xff;
+        }
+        packet[packet.length - 1] = (byte) (0xff - (sum & 0xff));
+        return packet;
+    }
+
+    @Benchmark
+    public void legacy(Blackhole bh) {
+        String sz = "";
+        for (int i = 0; i < frame.length; i++) {
+            sz = sz.concat(" ").concat(Serial.dec2hexStr(frame[i]));
+        }
+        if (sz.length() > 6 && sz.trim().endsWith("0D 0A")) {
+            String[] sz2 = Serial.hex2ReadStr(sz).split("\\,");
+            bh.consume(Double.parseDouble(sz2[0]));
+            bh.consume(Double.parseDouble(sz2[1]));
+        }
+    }
+
+    @Benchmark
+    public int parser() {
+        return parser.parse(frame, 0, frame.length);
+    }
+
+    @Benchmark
+    public int api() {
+        return api.parse(apiFrame, 0, apiFrame.length);
+    }
+}
@@ -0,0 +1,81 @@
+package com.jpl.embedded.service;
+
+import com.jpl.embedded.model.BeanAggregate;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Aggregation over the stores of EngineBench, 10M rows by default, read by
+ * one thread or split in time partitions on every core (parallelism 0), so
+ * the throughput of both, rows per second, is rows divided by the time of
+ * each operation:
+ *
+ * - dailyAll: aggregates per day of the whole history
+ * - hourlyMonth: aggregates per hour of one month in the middle of history
+ *
+ * Run with -p engine=segments to skip seeding Derby, which takes long.
+ *
+ * @author José Pereda Llamas
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AggregateBench {
+
+    @Param({ "derby", "segments" })
+    public String engine;
+
+    @Param({ "10000000" })
+    public int rows;
+
+    // threads, 0 for every core
+    @Param({ "1", "0" })
+    public int parallelism;
+
+    private HistoryStore store;
+    private Aggregation aggregation;
+    private long first;
+    private long last;
+
+    @Setup
+    public void setup() throws Exception {
+        store = EngineBench.open(engine, rows);
+        int threads = (parallelism == 0 ? Runtime.getRuntime().availableProcessors() : parallelism);
+        aggregation = new Aggregation(store, threads);
+        first = EngineBench.START;
+        last = EngineBench.START + (rows - 1) * EngineBench.PERIOD;
+        System.out.println("Aggregating " + rows + " rows with " + threads + " threads");
+    }
+
+    @TearDown
+    public void tearDown() {
+        store.shutdown();
+    }
+
+    @Benchmark
+    public List<BeanAggregate> dailyAll() throws IOException {
+        return aggregation.aggregate(CStore.ALL_NODES, first, last, Rollups.DAY);
+    }
+
+    @Benchmark
+    public List<BeanAggregate> hourlyMonth() throws IOException {
+        long ini = first + (last - first) / 2;
+        return aggregation.aggregate(CStore.ALL_NODES, ini, ini + 30 * Rollups.DAY, Rollups.HOUR);
+    }
+}
@@ -0,0 +1,161 @@
+package com.jpl.embedded.service;
+
+import com.jpl.embedded.model.BeanHT;
+import com.jpl.embedded.model.BeanRollup;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The two HistoryStore engines, CStore on Derby and SegmentStore on memory
+ * mapped files, seeded with the same rows measures, one every 30 seconds
+ * from 1/1/2012 and spread over NODES nodes, stored through recordBatch:
+ *
+ * - append: store a batch of BATCH measures, time per measure
+ * - scanDay: stream every row of one day in the middle of history
+ * - scanAll: stream 100 samples of the whole history
+ * - summaryMonth: summaries per day of one month
+ *
+ * Each engine and value of rows uses its own directory, in
+ * ${bench.dir}/engine-engine-rows (the working directory by default), seeded
+ * the first time. Seeding Derby also builds the rollups, and takes long.
+ * AggregateBench opens the same stores.
+ *
+ * @author José Pereda Llamas
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EngineBench {
+
+    static final long START = 1325372400000L; // 1/1/2012 00:00:00 CET
+    static final long PERIOD = 30000;
+    private static final int NODES = 4;
+    private static final int CHUNK = 1000;
+    private static final int BATCH = 100;
+
+    @Param({ "derby", "segments" })
+    public String engine;
+
+    @Param({ "100000", "1000000" })
+    public int rows;
+
+    private HistoryStore store;
+    private long first;
+    private long last;
+
+    @Setup
+    public void setup() throws Exception {
+        store = open(engine, rows);
+        // rows appended by previous runs are newer than the seeded ones
+        first = START;
+        last = START + (rows - 1) * PERIOD;
+    }
+
+    /*
+     * the store of the engine in its own directory, seeded with rows measures.
+     * Shared with AggregateBench
+     */
+    static HistoryStore open(String engine, int rows) throws InterruptedException {
+        File home = new File(System.getProperty("bench.dir", "."), "engine-" + engine + "-" + rows);
+        home.mkdirs();
+        HistoryStore store;
+        if ("segments".equals(engine)) {
+            store = new SegmentStore(home);
+        } else {
+            System.setProperty("derby.system.home", home.getAbsolutePath());
+            store = CStore.getInstance();
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if ("Rollups".equals(thread.getName())) {
+                    thread.join();
+                }
+            }
+        }
+        seed(store, rows);
+        return store;
+    }
+
+    /*
+     * stores the rows missing, in batches of CHUNK
+     */
+    private static void seed(HistoryStore store, int rows) {
+        long stored = store.count();
+        if (stored >= rows) {
+            return;
+        }
+        System.out.println("Seeding " + (rows - stored) + " rows");
+        List<BeanHT> beans = new ArrayList<>(CHUNK);
+        for (long i = stored; i < rows; i++) {
+            double day = Math.sin(2 * Math.PI * (i % 2880) / 2880.0);
+            Calendar cal = Calendar.getInstance();
+            cal.setTimeInMillis(START + i * PERIOD);
+            beans.add(new BeanHT(0, i % NODES, 20 + 5 * day, 50 - 10 * day, cal));
+            if (beans.size() == CHUNK || i == rows - 1) {
+                store.recordBatch(beans);
+                beans = new ArrayList<>(CHUNK);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        store.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void append() {
+        List<BeanHT> beans = new ArrayList<>(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            beans.add(new BeanHT(0, i % NODES, 21.5, 45.0, Calendar.getInstance()));
+        }
+        store.recordBatch(beans);
+    }
+
+    private static RowHandler consumer(final Blackhole blackhole) {
+        return new RowHandler() {
+            @Override
+            public void row(int id, long node, long time, float temp, float hum) {
+                blackhole.consume(id);
+                blackhole.consume(temp);
+            }
+        };
+    }
+
+    @Benchmark
+    public void scanDay(Blackhole bh) throws IOException {
+        long ini = first + (last - first) / 2;
+        store.list(CStore.ALL_NODES, 10000, ini, ini + Rollups.DAY, consumer(bh));
+    }
+
+    @Benchmark
+    public void scanAll(Blackhole bh) throws IOException {
+        store.list(CStore.ALL_NODES, 100, first, last, consumer(bh));
+    }
+
+    @Benchmark
+    public List<BeanRollup> summaryMonth() {
+        long ini = first + (last - first) / 2;
+        return store.summary(CStore.ALL_NODES, 30, ini, ini + 30 * Rollups.DAY);
+    }
+}
@@ -0,0 +1,144 @@
+package com.jpl.embedded.service;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of a measure published to LiveFeed until every live subscriber got it,
+ * with hundreds of subscribers, some of them stalled:
+ *
+ * - fanOut: one measure, until all the healthy subscribers received it
+ *
+ * The stalled subscribers block in their first send, as a client that stopped
+ * reading would, until the end of the iteration. With as many of them as writer
+ * threads, they hold every writer: the watchdog must disconnect them after
+ * live.send.timeout (100 ms here) and replace the writers, so the high percentiles
+ * stay around that timeout. Without it the healthy subscribers never get the
+ * measure and fanOut fails after 10 seconds.
+ *
+ * @author José Pereda Llamas
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Dlive.writers=4", "-Dlive.send.timeout=100" })
+public class LiveFeedBench {
+
+    private static final long WAIT = 10000; // miliseconds
+
+    @Param({ "100", "500" })
+    public int subscribers;
+
+    @Param({ "0", "4" })
+    public int stalled;
+
+    private final AtomicLong received = new AtomicLong();
+    private LiveFeed feed;
+    private Healthy[] healthy;
+    private Stalled[] blocked;
+    private CountDownLatch release;
+    private long time;
+
+    @Setup
+    public void setup() {
+        feed = LiveFeed.getInstance();
+        healthy = new Healthy[subscribers];
+        for (int i = 0; i < subscribers; i++) {
+            healthy[i] = new Healthy();
+            feed.subscribe(healthy[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (Healthy subscriber : healthy) {
+            feed.unsubscribe(subscriber);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void stall() {
+        release = new CountDownLatch(1);
+        blocked = new Stalled[stalled];
+        for (int i = 0; i < stalled; i++) {
+            blocked[i] = new Stalled(release);
+            feed.subscribe(blocked[i]);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void unstall() {
+        release.countDown();
+        for (Stalled subscriber : blocked) {
+            feed.unsubscribe(subscriber);
+        }
+    }
+
+    @Benchmark
+    public long fanOut() throws InterruptedException {
+        long expected = received.get() + subscribers;
+        feed.publish(1, 20.5, 40.5, ++time);
+        long deadline = System.currentTimeMillis() + WAIT;
+        while (received.get() < expected) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Measure not delivered in " + WAIT + " ms: "
+                        + (expected - received.get()) + " subscribers missing");
+            }
+            Thread.yield();
+        }
+        return expected;
+    }
+
+    private class Healthy implements LiveFeed.Subscriber {
+
+        @Override
+        public boolean send(long version, String json) {
+            received.incrementAndGet();
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class Stalled implements LiveFeed.Subscriber {
+
+        private final CountDownLatch release;
+
+        Stalled(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public boolean send(long version, String json) throws InterruptedIOException {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.jpl.embedded.service;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of the reads of CStore with 1, 2 and 4 threads, on 4 reading
+ * connections, so it must rise with the threads up to the cores available
+ * while the queries are answered from the pool in parallel:
+ *
+ * - page: 100 rows in id order from a random id, ops/s per thread count
+ *
+ * With the global lock replaced by the pool, page4 should give about four
+ * times page1 on the 4 cores of the Raspberry Pi 3, and never less than page2.
+ * Uses the seeded store of EngineBench.
+ *
+ * @author José Pereda Llamas
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Dstore.readers=4")
+public class ReaderBench {
+
+    private static final int PAGE = 100;
+
+    @Param({ "1000000" })
+    public int rows;
+
+    private HistoryStore store;
+
+    @Setup
+    public void setup() throws Exception {
+        store = EngineBench.open("derby", rows);
+    }
+
+    @TearDown
+    public void tearDown() {
+        store.shutdown();
+    }
+
+    private void page(final Blackhole bh) throws IOException {
+        store.page(CStore.ALL_NODES, ThreadLocalRandom.current().nextInt(rows - PAGE), PAGE, new RowHandler() {
+            @Override
+            public void row(int id, long node, long time, float temp, float hum) {
+                bh.consume(id);
+            }
+        });
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void page1(Blackhole bh) throws IOException {
+        page(bh);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public void page2(Blackhole bh) throws IOException {
+        page(bh);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void page4(Blackhole bh) throws IOException {
+        page(bh);
+    }
+}
@@ -0,0 +1,200 @@
+package com.jpl.embedded.service;
+
+import com.jpl.embedded.model.BeanHT;
+import com.jpl.embedded.model.BeanRollup;
+import com.jpl.embedded.model.BeanStats;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * CStore against an embedded Derby database seeded with rows measures, one
+ * every 30 seconds from 1/1/2012 and spread over NODES nodes:
+ *
+ * - record: queue one measure, as the XBee scheduler does, dropping it when
+ *   the record queue is full
+ * - recordBatch: store a batch of BATCH measures in one transaction
+ * - listRecent: list of the last hour, served by the cache
+ * - listDay: list of one day in the middle of history
+ * - listAll: 100 samples of the whole history
+ * - page: 1000 rows in id order from a random id
+ * - summary: 100 summaries of the whole history, from the rollups
+ *
+ * Each value of rows uses its own database, in ${bench.dir}/derby-rows (the
+ * working directory by default), seeded the first time. Seeding 10M rows and
+ * building the rollups takes a long time, so keep that directory between runs.
+ *
+ * Reads scale with the reading connections (-Dstore.readers): compare runs
+ * with -t 1, 2 and 4 threads.
+ *
+ * @author José Pereda Llamas
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StoreBench {
+
+    private static final String DB_URL = "jdbc:derby:xbeeBDD;create=true;bootPassword=jes12345";
+    private static final long START = 1325372400000L; // 1/1/2012 00:00:00 CET
+    private static final long PERIOD = 30000;
+    private static final int NODES = 4;
+    private static final int CHUNK = 10000;
+    private static final int BATCH = 10;
+
+    @Param({ "1000000", "10000000" })
+    public int rows;
+
+    private CStore store;
+    private long first;
+    private long last;
+    private long lastId;
+    private final Random random = new Random(42);
+
+    @Setup
+    public void setup() throws Exception {
+        File home = new File(System.getProperty("bench.dir", "."), "derby-" + rows);
+        home.mkdirs();
+        System.setProperty("derby.system.home", home.getAbsolutePath());
+        Class.forName("org.apache.derby.jdbc.EmbeddedDriver");
+        seed();
+        store = CStore.getInstance();
+        // the first time, wait for the rollups to be built from history
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if ("Rollups".equals(thread.getName())) {
+                thread.join();
+            }
+        }
+        BeanStats stats = store.stats(CStore.ALL_NODES);
+        first = stats.getFirst().getTimeInMillis();
+        last = stats.getLast().getTimeInMillis();
+        lastId = stats.getLastId();
+    }
+
+    /*
+     * insert the rows missing in history table, with the same definition CStore uses
+     */
+    private void seed() throws SQLException {
+        Connection connection = DriverManager.getConnection(DB_URL);
+        try {
+            Statement statement = connection.createStatement();
+            try {
+                statement.execute("CREATE TABLE history(id INTEGER NOT NULL GENERATED "
+                        + "ALWAYS AS IDENTITY (START WITH 1, INCREMENT BY 1), "
+                        + "time TIMESTAMP NOT NULL, temp FLOAT NOT NULL, hum FLOAT NOT NULL, "
+                        + "node BIGINT NOT NULL DEFAULT 0)");
+            } catch (SQLException alreadyCreated) {
+                // seeded by a previous run
+            }
+            ResultSet resultset = statement.executeQuery("SELECT count(*) FROM history");
+            resultset.next();
+            int stored = resultset.getInt(1);
+            resultset.close();
+            statement.close();
+            if (stored >= rows) {
+                return;
+            }
+            System.out.println("Seeding " + (rows - stored) + " rows");
+            connection.setAutoCommit(false);
+            PreparedStatement insert = connection.prepareStatement(
+                    "INSERT INTO history (time, temp, hum, node) VALUES (?, ?, ?, ?)");
+            for (int i = stored; i < rows; i++) {
+                double day = Math.sin(2 * Math.PI * (i % 2880) / 2880.0);
+                insert.setTimestamp(1, new Timestamp(START + i * PERIOD));
+                insert.setFloat(2, (float) (20 + 5 * day));
+                insert.setFloat(3, (float) (50 - 10 * day));
+                insert.setLong(4, i % NODES);
+                insert.addBatch();
+                if ((i + 1) % CHUNK == 0 || i == rows - 1) {
+                    insert.executeBatch();
+                    connection.commit();
+                }
+            }
+            insert.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        store.shutdown();
+    }
+
+    private static BeanHT bean(long node) {
+        return new BeanHT(0, node, 21.5, 45.0, Calendar.getInstance());
+    }
+
+    @Benchmark
+    public boolean record() {
+        return store.record(bean(0));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void recordBatch() {
+        List<BeanHT> beans = new ArrayList<>(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            beans.add(bean(i % NODES));
+        }
+        store.recordBatch(beans);
+    }
+
+    @Benchmark
+    public List<BeanHT> listRecent() {
+        return store.list(CStore.ALL_NODES, 100, last - Rollups.HOUR, last);
+    }
+
+    @Benchmark
+    public List<BeanHT> listDay() {
+        long ini = first + (last - first) / 2;
+        return store.list(CStore.ALL_NODES, 100, ini, ini + Rollups.DAY);
+    }
+
+    @Benchmark
+    public List<BeanHT> listAll() {
+        return store.list(CStore.ALL_NODES, 100, first, last);
+    }
+
+    @Benchmark
+    public void page(Blackhole bh) throws Exception {
+        final Blackhole blackhole = bh;
+        store.page(CStore.ALL_NODES, random.nextInt((int) lastId), 1000, new RowHandler() {
+            @Override
+            public void row(int id, long node, long time, float temp, float hum) {
+                blackhole.consume(id);
+            }
+        });
+    }
+
+    @Benchmark
+    public List<BeanRollup> summary() {
+        return store.summary(CStore.ALL_NODES, 100, first, last);
+    }
+}
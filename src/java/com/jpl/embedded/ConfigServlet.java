@@ -1,12 +1,22 @@
 package com.jpl.embedded;
 
+import com.jpl.embedded.model.BeanAggregate;
 import com.jpl.embedded.model.BeanHT;
+import com.jpl.embedded.model.BeanRollup;
+import com.jpl.embedded.model.BeanStats;
 import com.jpl.embedded.model.CSensor;
+import com.jpl.embedded.model.Reading;
 import com.jpl.embedded.service.CStore;
+import com.jpl.embedded.service.Startup;
+import com.jpl.embedded.service.Storage;
 import com.jpl.embedded.service.XBee;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.lang.reflect.Field;
+import java.util.Date;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
@@ -17,19 +27,23 @@ import javax.servlet.http.HttpServletResponse;
 /**
  * SERVLET http://<IP>:<PORT>/embedded/ArduinoOnline
  * 
- * It's loaded on deploy so:
- * - /usr/lib/jni is added to path
- * - a database connection is established.
- * - a thread is started to read serial port 
- * - a scheduled task is started to store values in database 
+ * It's loaded on deploy, and starts these phases in parallel (see Startup), 
+ * without waiting for them:
+ * - store: a database connection is established
+ * - warm: once the store is open, each kind of query is run once
+ * - serial: /usr/lib/jni is added to path, a thread is started to read serial port 
+ *   and a scheduled task is started to store values in database 
+ * - resources: the classes of the REST services are loaded
+ * The application is ready, as reported by http://<IP>:<PORT>/embedded/ready,
+ * once the store is open.
  * 
  * It responds to http://<IP>:<PORT>/embedded/ArduinoOnline request,
- * returning the last values in html format, autorefreshing every 30 seconds
+ * returning the last values in html format, updated as new values are pushed
+ * from http://<IP>:<PORT>/embedded/live (or reloaded every 30 seconds on browsers
+ * without Server-Sent Events)
  * 
  * Closes the serial port and end the task on undeploying
  * 
- * Note the first Get request takes around 18 seconds to be responded.
- * 
  * @author José Pereda Llamas
  * Created on 14-dic-2012 - 15:26:09
  */
@@ -37,19 +51,89 @@ import javax.servlet.http.HttpServletResponse;
 @WebServlet(urlPatterns={"/ArduinoOnline"}, loadOnStartup=0)
 public class ConfigServlet extends HttpServlet {
     
+    private static final String LIBRARY_PATH = "/usr/lib/jni";
+    
+    // serial port open, guarded by this, and closed for good once destroyed
+    private XBee xbee;
+    private boolean destroyed;
+    
+    @Override
+    public void init(ServletConfig config) throws ServletException {
+        super.init(config);
+        final Startup startup=Startup.getInstance();
+        
+        /*
+         * Initialize database, selected with -Dstore.engine. If it doesn't exist it will be created.
+         */
+        startup.run("store", true, new Runnable() {
+            @Override public void run() {
+                Storage.getInstance();
+            }
+        });
+        startup.run("warm", false, new Runnable() {
+            @Override public void run() {
+                if(startup.await("store", Long.MAX_VALUE)){
+                    Storage.warm();
+                }
+            }
+        });
+        
+        /*
+         * Initialize Serial communication, starts reading port and storing measures
+         * to database
+         */
+        startup.run("serial", false, new Runnable() {
+            @Override public void run() {
+                addLibraryPath();
+                XBee opened=new XBee();
+                if(!keep(opened)){
+                    System.out.println("Undeployed while opening the serial port, closing it");
+                    opened.disconnect();
+                }
+            }
+        });
+        
+        /*
+         * Load the classes of the REST services, and the JAXB bindings of the beans
+         */
+        startup.run("resources", false, new Runnable() {
+            @Override public void run() {
+                loadResources();
+            }
+        });
+    }
+    
     /*
-     * Add /usr/lib/jni to JVM path for dynamic libraries at first run
+     * keeps the serial port opened, unless the servlet was destroyed meanwhile
+     */
+    private synchronized boolean keep(XBee opened){
+        if(destroyed){
+            return false;
+        }
+        xbee=opened;
+        return true;
+    }
+    
+    /*
+     * Add /usr/lib/jni to JVM path for dynamic libraries at first run, unless it's 
+     * already there.
      * 
      * Another option would be editing /usr/java/jes7.0/samples/dist/run/config.sh
-     * and adding it as a VM argument:
+     * and adding it as a VM argument, that skips this:
      * 
      * JAVA_COMMAND="$JES_HOME/jre/bin/java -Xmx64m -Djava.library.path='/usr/lib/jni'"
      */
-    static {
+    private static void addLibraryPath(){
+        String path=System.getProperty("java.library.path", "");
+        for(String dir : path.split(File.pathSeparator)){
+            if(LIBRARY_PATH.equals(dir)){
+                return;
+            }
+        }
         
         System.out.println("loading jni");
         
-        System.setProperty( "java.library.path", "/usr/lib/jni" );
+        System.setProperty( "java.library.path", path.isEmpty()?LIBRARY_PATH:path+File.pathSeparator+LIBRARY_PATH );
  
         /*
          * BUT changing the system property after the application has been started
@@ -60,22 +144,19 @@ public class ConfigServlet extends HttpServlet {
          * 
          * Classloader static field 'sys_paths' contains the paths. 
          * If that field is set to null, it is initialized automatically, and this will
-         * result into the reevaluation of the library path when loadLibrary() is called.         * 
+         * result into the reevaluation of the library path when loadLibrary() is called.
          */
         
-        Field fieldSysPath = null;
         try {
-            fieldSysPath = ClassLoader.class.getDeclaredField( "sys_paths" );
+            Field fieldSysPath = ClassLoader.class.getDeclaredField( "sys_paths" );
+            fieldSysPath.setAccessible( true );
+            fieldSysPath.set( null, null );
         } catch (NoSuchFieldException ex) {
             System.out.println("Error No Such Field: "+ ex.getMessage());
         } catch (SecurityException ex) {
             System.out.println("Error Security: "+ ex.getMessage());
-        }
-        fieldSysPath.setAccessible( true );
-        try {
-            fieldSysPath.set( null, null );
         } catch (IllegalArgumentException ex) {
-            System.out.println("Error Illegal Argument: "+ ex.getMessage());;
+            System.out.println("Error Illegal Argument: "+ ex.getMessage());
         } catch (IllegalAccessException ex) {
             System.out.println("Error Illegal Access: "+ ex.getMessage());
         }
@@ -83,23 +164,20 @@ public class ConfigServlet extends HttpServlet {
         System.out.println("jni loaded");
     }
     
-    private XBee xbee;
-    
-    @Override
-    public void init(ServletConfig config) throws ServletException {
-        super.init(config);
-        
-        /*
-         * Initialize database. If it doesn't exist it will be created.
-         */
-        CStore.getInstance();
-        
-        /*
-         * Initialize Serial communication, starts reading port and storing measures
-         * to database
-         */
-        xbee=new XBee();
-        
+    /*
+     * Loads and initializes the REST classes, so the first request doesn't wait for it
+     */
+    private static void loadResources(){
+        ClassLoader loader=ConfigServlet.class.getClassLoader();
+        try {
+            for(String name : new String[]{ "com.jpl.embedded.EmbeddedREST", "com.jpl.embedded.JsonRows", 
+                    "com.jpl.embedded.service.HistoryCodec", "com.jpl.embedded.service.Aggregation" }){
+                Class.forName(name, true, loader);
+            }
+            JAXBContext.newInstance(BeanHT.class, BeanRollup.class, BeanAggregate.class, BeanStats.class);
+        } catch (ClassNotFoundException | JAXBException e) {
+            throw new IllegalStateException("REST services not loaded", e);
+        }
     }
     
     @Override
@@ -114,18 +192,40 @@ public class ConfigServlet extends HttpServlet {
             out.println("<html>");
             out.println("<head>");
             out.println("<title>Servlet ArduinoOnline</title>");  
-            out.println("<META HTTP-EQUIV='refresh' content='30'>");
+            out.println("<script>");
+            out.println("if(window.EventSource){");
+            out.println("  new EventSource('live').addEventListener('reading', function(e){");
+            out.println("    var r=JSON.parse(e.data), date=new Date(r.time).toString();");
+            out.println("    document.getElementById('temp').innerHTML=r.temp;");
+            out.println("    document.getElementById('hum').innerHTML=r.hum;");
+            out.println("    document.getElementById('date').innerHTML=date;");
+            out.println("    var node=document.getElementById('node'+r.node.toString(16));");
+            out.println("    if(node){ node.innerHTML=r.temp+'ºC, '+r.hum+'%, '+date; }");
+            out.println("  });");
+            out.println("} else {");
+            out.println("  setTimeout(function(){ location.reload(); }, 30000);");
+            out.println("}");
+            out.println("</script>");
             out.println("</head>");
             out.println("<body>");
             out.append("<br><b>Embedded Server in Raspberry Pi</b>:</br>");
                     
             out.append("<br>Reading data from remote sensor...</br>");
             
-            BeanHT bean=CSensor.getInstance().getLastBean();
+            Reading reading=CSensor.getInstance().getLatest();
             
-            out.append("<br>Temperature: "+bean.getTemp()+"ºC</br>");
-            out.append("<br>Relative Humidity: "+bean.getHum()+"%</br>");
-            out.append("<br>Date: "+bean.getTime().getTime().toString()+"</br>");
+            out.append("<br>Temperature: <span id='temp'>"+reading.getTemp()+"</span>ºC</br>");
+            out.append("<br>Relative Humidity: <span id='hum'>"+reading.getHum()+"</span>%</br>");
+            out.append("<br>Date: <span id='date'>"+new Date(reading.getTime()).toString()+"</span></br>");
+            
+            if(XBee.API_MODE){
+                for(Long node : CSensor.getInstance().getNodes()){
+                    Reading nodeReading=CSensor.getInstance().getLatest(node);
+                    out.append("<br>Node "+Long.toHexString(node)+": <span id='node"+Long.toHexString(node)+"'>"+
+                            nodeReading.getTemp()+"ºC, "+nodeReading.getHum()+"%, "+
+                            new Date(nodeReading.getTime()).toString()+"</span></br>");
+                }
+            }
             
             out.append("<br>&nbsp;</br><br><b>Raspberrry Pi - Arduino - XBee - Java Embedded Suite 7.0</b></br>");
            
@@ -138,12 +238,23 @@ public class ConfigServlet extends HttpServlet {
     
     /*
      * Destroys the servlet: 
-     * - close serial port
+     * - close serial port, or let the serial phase close it if it is still opening it
      * - stop and destroy scheduled task
+     * - store the measures still queued and stop the database writer
      */
     @Override
     public void destroy() {
-        xbee.disconnect();
+        Startup.getInstance().await("serial", CStore.TIMEOUT);
+        XBee opened;
+        synchronized(this){
+            destroyed=true;
+            opened=xbee;
+            xbee=null;
+        }
+        if(opened!=null){
+            opened.disconnect();
+        }
+        Storage.getInstance().shutdown();
     }
    
 }
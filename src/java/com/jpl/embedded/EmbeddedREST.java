@@ -1,40 +1,123 @@
 package com.jpl.embedded;
 
+import com.jpl.embedded.model.BeanAggregate;
 import com.jpl.embedded.model.BeanHT;
-import com.jpl.embedded.model.CSensor;
-import com.jpl.embedded.service.CStore;
-import java.util.ArrayList;
+import com.jpl.embedded.model.BeanRollup;
+import com.jpl.embedded.model.BeanStats;
+import com.jpl.embedded.service.Aggregation;
+import com.jpl.embedded.service.Downsampler;
+import com.jpl.embedded.service.HistoryStore;
+import com.jpl.embedded.service.HistoryCodec;
+import com.jpl.embedded.service.HistoryImport;
+import com.jpl.embedded.service.Metrics;
+import com.jpl.embedded.service.RowHandler;
+import com.jpl.embedded.service.Storage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.Date;
 import java.util.List;
+import javax.ws.rs.Consumes;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.GenericEntity;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.StreamingOutput;
 
 /**
  * This JAX-RS web service handles HTTP GET request. 
- * Each request waits for operations over database to finish
+ * Each request reads the database with its own pooled connection
  * 
  * It supports retrieving the following services:
  * 
  *  1    http://<IP>:<PORT>/embedded         <-- Last BeanHT read in text format
  *  2    http://<IP>:<PORT>/embedded/last    <-- Last BeanHT read in json format
- *  3    http://<IP>:<PORT>/embedded/count   <-- Number of records in database, in text format
- *  4    http://<IP>:<PORT>/embedded/list?tam=100&ini=1325286000603&fin=1577746800603
+ *  3    http://<IP>:<PORT>/embedded/count   <-- Number of records in database, in text format, 
+ *                                               kept in memory
+ *  4    http://<IP>:<PORT>/embedded/list?tam=100&ini=1325286000603&fin=1577746800603&node=-1
  *               <-- List of BeanHT stored in database, in json format, queue params:
  *                   max tam items, default 100, 
  *                   between ini milliseconds from 1970, default 1/1/2012, 
- *                   and end milliseconds from 1970, default 1/1/2020
+ *                   and end milliseconds from 1970, default 1/1/2020,
+ *                   measured by node, default -1 (all nodes),
+ *                   reduced with mode, default first (the first row of each of tam 
+ *                   intervals), minmax (the extremes of each interval) or lttb 
+ *                   (Largest-Triangle-Three-Buckets), see Downsampler
+ *               With "Accept: application/x-arduinofx-history" the list is returned in 
+ *               the compact columnar binary format described in HistoryCodec
+ *               Rows older than -Dstore.retention.raw days are purged: use summary 
+ *               for older ranges
  *  5    http://<IP>:<PORT>/embedded/{id}    <-- BeanHT stored number id, in json format
+ *  6    http://<IP>:<PORT>/embedded/queue   <-- Depth and flush latency of the record queue, in text format
+ *  7    http://<IP>:<PORT>/embedded/cache   <-- Size and hits/misses of the cache of recent rows, in text format
+ *  8    http://<IP>:<PORT>/embedded/summary?tam=100&ini=1325286000603&fin=1577746800603&node=-1
+ *               <-- List of BeanRollup with min/max/avg per day, hour or minute, in json format, 
+ *                   same queue params as list. The coarsest interval giving at least tam
+ *                   summaries is used
+ *  9    http://<IP>:<PORT>/embedded/list/stream?tam=100&ini=1325286000603&fin=1577746800603&node=-1
+ *               <-- Same list, streamed as a JSONArray of rows while the database is read
+ * 10    http://<IP>:<PORT>/embedded/page?after=0&limit=1000&node=-1
+ *               <-- Streamed JSONArray of up to limit rows with id greater than after, 
+ *                   in id order. Pass the id of the last row as after to get the next page
+ * 11    http://<IP>:<PORT>/embedded/stats?node=-1
+ *               <-- BeanStats with number of rows, first and last times and last id, 
+ *                   in total and per node, in json format
+ * 12    http://<IP>:<PORT>/embedded/metrics <-- Counters and latency histograms of the serial 
+ *                   port, the record queue, the database and the requests, in Prometheus 
+ *                   text format
+ * 13    http://<IP>:<PORT>/embedded/export?ini=0&end=9223372036854775807&node=-1
+ *               <-- Every row stored between ini and end, in time order, streamed as CSV 
+ *                   (Accept: text/csv) or NDJSON (Accept: application/x-ndjson). The
+ *                   stream is cut short, with no end, if the database is busy or fails
+ * 14    POST http://<IP>:<PORT>/embedded/import  <-- Bulk import of rows in CSV or NDJSON,
+ *                   as given by Content-Type, skipping the ones already stored (see 
+ *                   HistoryImport). Returns the rows stored and duplicated, and rows/s
+ * 15    http://<IP>:<PORT>/embedded/aggregate?width=3600000&ini=1325286000603&end=1577746800603&node=-1
+ *               <-- List of BeanAggregate with count, min/max/mean and standard deviation
+ *                   of temperature and humidity per bucket of width milliseconds from ini,
+ *                   up to Aggregation.MAX_BUCKETS, in json format. Buckets without rows are
+ *                   skipped. Long ranges are computed in time partitions in parallel.
+ *                   503 Service Unavailable if the rows can't all be read
+ * 16    http://<IP>:<PORT>/embedded/items?ids=3,1,2   or   /embedded/items?from=1&to=500
+ *               <-- Streamed JSONArray of the rows with up to MAX_ITEMS ids, in the order
+ *                   given, or with ids from from to to, up to MAX_PAGE, in id order. Ids 
+ *                   not stored are skipped. One request and query instead of one per id
  * 
  * More services can be added.
  * 
- * All the services accesing to database are required to wait till it isn't in use, with 
- * a timeout of 60 seconds.
+ * All the services accesing to database wait for a free connection with a timeout
+ * of CStore.TIMEOUT (10 seconds by default), returning the last values read, an empty 
+ * list or a message when it expires.
  * 
- * Note the first REST request takes around 80 seconds to be responded.
+ * list, page, items, summary, aggregate and export go through QueryGate, that runs a few of them at a time
+ * and suspends the rest without holding container threads, so the services 
+ * answered from memory keep responding while long queries run.
+ * 
+ * Measures are stored in the HistoryStore selected with -Dstore.engine: the 
+ * JavaDB database (derby, default) or memory mapped segment files (segments).
+ * 
+ * Responses carry an ETag and a Last-Modified header, built from the id of the
+ * last row stored and the time of the last change, both kept in memory by the store.
+ * Requests with a matching If-None-Match or If-Modified-Since are answered with 
+ * 304 Not Modified without reading the database. They must be revalidated on 
+ * every use (Cache-Control: no-cache), except stored rows, which never change
+ * and can be cached for a year. queue, cache and metrics are not cached.
+ * 
+ * The REST servlet is loaded on deploy, and its classes loaded by ConfigServlet 
+ * while the store is opened, so the first request doesn't wait for them. Until
+ * the store is open, requests are answered with 503 by StartupFilter.
  *
  * @author José Pereda Llamas
  * Created on 14-dic-2012 - 15:23:16
@@ -43,45 +126,162 @@ import javax.ws.rs.core.MediaType;
 @Path("/") 
 public class EmbeddedREST {
 
-    private CStore store=CStore.getInstance();
+    private static final int MAX_PAGE = 10000;
+    private static final int MAX_ITEMS = 1000;
+    private static final long EXPORT_WINDOW = 86400000; // miliseconds of rows read per query
+    
+    private static final CacheControl REVALIDATE = new CacheControl();
+    private static final CacheControl IMMUTABLE = new CacheControl();
+    static {
+        REVALIDATE.setNoCache(true);
+        IMMUTABLE.setMaxAge(365*24*3600);
+    }
+    
+    private HistoryStore store=Storage.getInstance();
+    
+    @Context
+    private Request request;
+    
+    /*
+     * Validators of one representation of the data stored, taken before reading it,
+     * so a change made while it is read gives a new tag on the next request.
+     * While nothing is stored the services return the last values read, so there
+     * are no validators
+     */
+    private class Validators {
+        final long version;
+        final EntityTag tag;
+        final Date modified;
+        
+        Validators(String representation) {
+            version=store.getVersion();
+            long time=store.getModified();
+            tag=new EntityTag(representation+"-"+Long.toString(version, 36)+"-"+Long.toString(time, 36));
+            modified=new Date(time);
+        }
+        
+        /*
+         * 304 response if the client already has this representation, null otherwise
+         */
+        Response notModified() {
+            if(version==0){
+                return null;
+            }
+            ResponseBuilder builder=request.evaluatePreconditions(modified, tag);
+            return (builder==null?null:builder.tag(tag).cacheControl(REVALIDATE).build());
+        }
+        
+        ResponseBuilder ok(Object entity) {
+            if(version==0){
+                return Response.ok(entity).cacheControl(REVALIDATE);
+            }
+            return Response.ok(entity).tag(tag).lastModified(modified).cacheControl(REVALIDATE);
+        }
+    }
     
     @GET
     @Produces({MediaType.TEXT_PLAIN, MediaType.TEXT_HTML})
-    public String getText() {
-        if(CStore.waitForDatabase("Text")==CStore.TIMEOUT){ 
-            return "Device was blocked for more than "+(CStore.TIMEOUT/10)+" seconds";
-        } 
-        return store.last().toString();
+    public Response getText() {
+        Validators validators=new Validators("text");
+        Response response=validators.notModified();
+        if(response!=null){
+            return response;
+        }
+        return validators.ok(store.last().toString()).build();
     }
     
     @GET
     @Path("last")
     @Produces({MediaType.APPLICATION_JSON})
-    public BeanHT getLast() {
-        if(CStore.waitForDatabase("Last")==CStore.TIMEOUT){ 
-            return CSensor.getInstance().getLastBean();
-        }    
-        return store.last();
+    public Response getLast() {
+        Validators validators=new Validators("last");
+        Response response=validators.notModified();
+        if(response!=null){
+            return response;
+        }
+        return validators.ok(store.last()).build();
     }
 
+    /*
+     * Stored rows never change: their tag depends only on the id
+     */
     @GET
     @Path("{id}")
     @Produces({MediaType.APPLICATION_JSON})
-    public BeanHT getItem(@PathParam("id") int id) {
-        if(CStore.waitForDatabase("Id")==CStore.TIMEOUT){ 
-            return CSensor.getInstance().getLastBean();
+    public Response getItem(@PathParam("id") int id) {
+        EntityTag tag=new EntityTag("row-"+id);
+        if(id>0 && id<=store.getVersion()){
+            ResponseBuilder builder=request.evaluatePreconditions(tag);
+            if(builder!=null){
+                return builder.tag(tag).cacheControl(IMMUTABLE).build();
+            }
         }
-        return store.get(id);
+        BeanHT bean=store.get(id);
+        if(bean.getId()!=id || id>store.getVersion()){
+            // not stored yet, or database busy: last values read, that will change.
+            // Rows are immutable once their batch is committed, as version tells
+            return Response.ok(bean).cacheControl(REVALIDATE).build();
+        }
+        return Response.ok(bean).tag(tag).cacheControl(IMMUTABLE).build();
     }
     
     @GET
     @Path("count")
     @Produces(MediaType.TEXT_PLAIN)
-    public String getCount() {
-        if(CStore.waitForDatabase("Count")==CStore.TIMEOUT){ 
-            return "Device was blocked for more than "+(CStore.TIMEOUT/10)+" seconds";
+    public Response getCount() {
+        Validators validators=new Validators("count");
+        Response response=validators.notModified();
+        if(response!=null){
+            return response;
+        }
+        return validators.ok(String.valueOf(store.count())).build();
+    }
+
+    /** 
+     * Get the number of rows, first and last times and last id stored by the node, 
+     * or by all the nodes with the same values of each one, without reading the database:
+     * @param node Set the address of the node, default -1 for all nodes
+     */
+    @GET
+    @Path("stats")
+    @Produces({MediaType.APPLICATION_JSON})
+    public Response getStats(@QueryParam("node") @DefaultValue("-1") long node) {
+        Validators validators=new Validators("stats");
+        Response response=validators.notModified();
+        if(response!=null){
+            return response;
         }
-        return String.valueOf(store.count());
+        return validators.ok(store.stats(node)).build();
+    }
+
+    @GET
+    @Path("queue")
+    @Produces(MediaType.TEXT_PLAIN)
+    public String getQueue() {
+        return store.getQueue().toString();
+    }
+
+    @GET
+    @Path("cache")
+    @Produces(MediaType.TEXT_PLAIN)
+    public String getCache() {
+        return (store.getCache()==null?"no cache":store.getCache().toString());
+    }
+
+    /** 
+     * Get the metrics of the serial port, the record queue, the database and 
+     * the requests, in Prometheus text format
+     */
+    @GET
+    @Path("metrics")
+    @Produces({Metrics.CONTENT_TYPE})
+    public StreamingOutput getMetrics() {
+        return new StreamingOutput() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                Metrics.getInstance().write(new OutputStreamWriter(out, "UTF-8"));
+            }
+        };
     }
 
     /** 
@@ -89,17 +289,345 @@ public class EmbeddedREST {
      * @param tam Set maximum number of items to grab from database, default 100, 
      * @param ini Set initial calendar date, in milliseconds from 1970, default 1/1/2012 00:00:00, 
      * @param end Set end calendar date, in milliseconds from 1970, default 1/1/2020 00:00:00
+     * @param node Set the address of the node, default -1 for all nodes
+     * @param mode Set how the rows are reduced: first, default, minmax or lttb
+     */
+    @GET
+    @Path("list")
+    @Produces({MediaType.APPLICATION_JSON})
+    public Response getList(@QueryParam("tam") @DefaultValue("100") int tam,
+                                @QueryParam("ini") @DefaultValue("1325286000603") long ini,
+                                @QueryParam("end") @DefaultValue("1577746800603") long end,
+                                @QueryParam("node") @DefaultValue("-1") long node,
+                                @QueryParam("mode") @DefaultValue(Downsampler.FIRST) String mode) {
+        if(!Downsampler.isMode(mode)){
+            return badMode(mode);
+        }
+        Validators validators=new Validators("list");
+        Response response=validators.notModified();
+        if(response!=null){
+            return response;
+        }
+        List<BeanHT> list=(Downsampler.FIRST.equals(mode)?store.list(node,tam,ini,end):
+                Downsampler.list(store,mode,node,tam,ini,end));
+        return validators.ok(new GenericEntity<List<BeanHT>>(list){}).header("Vary", "Accept").build();
+    }
+
+    /** 
+     * Get the same list of list(), in the binary columnar format of HistoryCodec,
+     * when the client accepts its media type
      */
     @GET
     @Path("list")
+    @Produces({HistoryCodec.MEDIA_TYPE})
+    public Response getListBinary(@QueryParam("tam") @DefaultValue("100") final int tam,
+                                @QueryParam("ini") @DefaultValue("1325286000603") final long ini,
+                                @QueryParam("end") @DefaultValue("1577746800603") final long end,
+                                @QueryParam("node") @DefaultValue("-1") final long node,
+                                @QueryParam("mode") @DefaultValue(Downsampler.FIRST) final String mode) {
+        if(!Downsampler.isMode(mode)){
+            return badMode(mode);
+        }
+        Validators validators=new Validators("binary");
+        Response response=validators.notModified();
+        if(response!=null){
+            return response;
+        }
+        return validators.ok(new StreamingOutput() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                HistoryCodec codec=new HistoryCodec();
+                list(node,tam,ini,end,mode,codec);
+                codec.encode(out);
+            }
+        }).header("Vary", "Accept").build();
+    }
+
+    /** 
+     * Stream a JSONArray of rows from database, written while they are read, with
+     * the same limits as list
+     */
+    @GET
+    @Path("list/stream")
+    @Produces({MediaType.APPLICATION_JSON})
+    public Response getListStream(@QueryParam("tam") @DefaultValue("100") final int tam,
+                                @QueryParam("ini") @DefaultValue("1325286000603") final long ini,
+                                @QueryParam("end") @DefaultValue("1577746800603") final long end,
+                                @QueryParam("node") @DefaultValue("-1") final long node,
+                                @QueryParam("mode") @DefaultValue(Downsampler.FIRST) final String mode) {
+        if(!Downsampler.isMode(mode)){
+            return badMode(mode);
+        }
+        Validators validators=new Validators("stream");
+        Response response=validators.notModified();
+        if(response!=null){
+            return response;
+        }
+        return validators.ok(new StreamingOutput() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                JsonRows json=new JsonRows(out);
+                list(node,tam,ini,end,mode,json);
+                json.close();
+            }
+        }).build();
+    }
+
+    /*
+     * streams the rows of the list, reduced with the mode
+     */
+    private void list(long node, int tam, long ini, long end, String mode, RowHandler handler) throws IOException {
+        if(Downsampler.FIRST.equals(mode)){
+            store.list(node,tam,ini,end,handler);
+            return;
+        }
+        Downsampler downsampler=new Downsampler(mode,tam,ini,end,handler);
+        store.rows(node,ini,end,downsampler);
+        downsampler.close();
+    }
+    
+    private static Response badMode(String mode) {
+        return Response.status(Response.Status.BAD_REQUEST)
+                .entity("Unknown mode "+mode+", use "+Downsampler.FIRST+", "+Downsampler.MINMAX+" or "+Downsampler.LTTB)
+                .type(MediaType.TEXT_PLAIN).build();
+    }
+
+    /** 
+     * Stream a JSONArray of rows from database in id order, for paging through 
+     * full resolution history with constant memory:
+     * @param after Set the id after which rows are returned, default 0, 
+     * @param limit Set maximum number of rows, default 1000, up to MAX_PAGE
+     * @param node Set the address of the node, default -1 for all nodes
+     */
+    @GET
+    @Path("page")
+    @Produces({MediaType.APPLICATION_JSON})
+    public Response getPage(@QueryParam("after") @DefaultValue("0") final int after,
+                                @QueryParam("limit") @DefaultValue("1000") int limit,
+                                @QueryParam("node") @DefaultValue("-1") final long node) {
+        final int rows=Math.max(1, Math.min(limit, MAX_PAGE));
+        Validators validators=new Validators("page");
+        Response response=validators.notModified();
+        if(response!=null){
+            return response;
+        }
+        return validators.ok(new StreamingOutput() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                JsonRows json=new JsonRows(out);
+                store.page(node,after,rows,json);
+                json.close();
+            }
+        }).build();
+    }
+
+    /** 
+     * Stream a JSONArray of the rows with the ids given, in the same order, or with 
+     * the ids of a range, in id order, skipping the ids not stored:
+     * @param ids Set the ids, separated by commas, up to MAX_ITEMS, 
+     * @param from Set the first id of the range, if ids is not given, 
+     * @param to Set the last id of the range, up to MAX_PAGE ids from from
+     */
+    @GET
+    @Path("items")
+    @Produces({MediaType.APPLICATION_JSON})
+    public Response getItems(@QueryParam("ids") String ids,
+                                @QueryParam("from") @DefaultValue("1") final int from,
+                                @QueryParam("to") @DefaultValue("0") int to) {
+        final int[] list=(ids==null?null:parseIds(ids));
+        if(ids!=null && (list==null || list.length>MAX_ITEMS)){
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity("Use up to "+MAX_ITEMS+" ids, separated by commas")
+                    .type(MediaType.TEXT_PLAIN).build();
+        }
+        if(ids==null && (from<1 || to<from)){
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity("Use ids, or from and to with 0 < from <= to")
+                    .type(MediaType.TEXT_PLAIN).build();
+        }
+        final int last=(int)Math.min(to, (long)from+MAX_PAGE-1);
+        Validators validators=new Validators("items");
+        Response response=validators.notModified();
+        if(response!=null){
+            return response;
+        }
+        return validators.ok(new StreamingOutput() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                JsonRows json=new JsonRows(out);
+                if(list!=null){
+                    store.get(list,json);
+                } else {
+                    store.get(from,last,json);
+                }
+                json.close();
+            }
+        }).build();
+    }
+
+    /*
+     * ids separated by commas, or null if any is not a number
+     */
+    private static int[] parseIds(String ids) {
+        String[] values=ids.split(",");
+        int[] list=new int[values.length];
+        try {
+            for(int i=0;i<values.length;i++){
+                list[i]=Integer.parseInt(values[i].trim());
+            }
+        } catch(NumberFormatException nfe){
+            return null;
+        }
+        return list;
+    }
+
+    /** 
+     * Get a JSONArray of BeanRollup elements from database, summarizing the measures 
+     * per day, hour or minute, with the coarsest interval that gives at least tam elements:
+     * @param tam Set minimum number of items, default 100, 
+     * @param ini Set initial calendar date, in milliseconds from 1970, default 1/1/2012 00:00:00, 
+     * @param end Set end calendar date, in milliseconds from 1970, default 1/1/2020 00:00:00
+     * @param node Set the address of the node, default -1 for all nodes
+     */
+    @GET
+    @Path("summary")
+    @Produces({MediaType.APPLICATION_JSON})
+    public Response getSummary(@QueryParam("tam") @DefaultValue("100") int tam,
+                                @QueryParam("ini") @DefaultValue("1325286000603") long ini,
+                                @QueryParam("end") @DefaultValue("1577746800603") long end,
+                                @QueryParam("node") @DefaultValue("-1") long node) {
+        Validators validators=new Validators("summary");
+        Response response=validators.notModified();
+        if(response!=null){
+            return response;
+        }
+        List<BeanRollup> list=store.summary(node,tam,ini,end);
+        return validators.ok(new GenericEntity<List<BeanRollup>>(list){}).build();
+    }
+
+    /** 
+     * Get a JSONArray of BeanAggregate elements, computed from the rows stored, per 
+     * bucket of any width, see Aggregation:
+     * @param width Set the width of the buckets, in milliseconds, default 3600000 (one hour), 
+     * @param ini Set initial calendar date, in milliseconds from 1970, default 1/1/2012 00:00:00, 
+     * @param end Set end calendar date, in milliseconds from 1970, default 1/1/2020 00:00:00
+     * @param node Set the address of the node, default -1 for all nodes
+     */
+    @GET
+    @Path("aggregate")
     @Produces({MediaType.APPLICATION_JSON})
-    public List<BeanHT> getList(@QueryParam("tam") @DefaultValue("100") int tam,
+    public Response getAggregate(@QueryParam("width") @DefaultValue("3600000") long width,
                                 @QueryParam("ini") @DefaultValue("1325286000603") long ini,
-                                @QueryParam("end") @DefaultValue("1577746800603") long end) {
-        if(CStore.waitForDatabase("List")==CStore.TIMEOUT){ 
-            return new ArrayList<BeanHT>();
+                                @QueryParam("end") @DefaultValue("1577746800603") long end,
+                                @QueryParam("node") @DefaultValue("-1") long node) {
+        if(width<=0 || Aggregation.buckets(ini,end,width)>Aggregation.MAX_BUCKETS){
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity("Use a width over 0 giving up to "+Aggregation.MAX_BUCKETS+" buckets between ini and end")
+                    .type(MediaType.TEXT_PLAIN).build();
+        }
+        Validators validators=new Validators("aggregate");
+        Response response=validators.notModified();
+        if(response!=null){
+            return response;
+        }
+        List<BeanAggregate> list;
+        try {
+            list=new Aggregation(store).aggregate(node,ini,end,width);
+        } catch (IOException ioe) {
+            // part of the rows couldn't be read, no aggregate is right
+            ioe.printStackTrace();
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).header("Retry-After", "10")
+                    .entity("Rows not read, try again later").type(MediaType.TEXT_PLAIN).build();
+        }
+        return validators.ok(new GenericEntity<List<BeanAggregate>>(list){}).build();
+    }
+
+    /** 
+     * Stream every row stored between ini and end as CSV
+     * @param ini Set initial calendar date, in milliseconds from 1970, default 0, 
+     * @param end Set end calendar date, in milliseconds from 1970, default no end
+     * @param node Set the address of the node, default -1 for all nodes
+     */
+    @GET
+    @Path("export")
+    @Produces({HistoryImport.CSV})
+    public Response getExportCsv(@QueryParam("ini") @DefaultValue("0") long ini,
+                                @QueryParam("end") @DefaultValue("9223372036854775807") long end,
+                                @QueryParam("node") @DefaultValue("-1") long node) {
+        return export(HistoryImport.CSV, ini, end, node);
+    }
+
+    /** 
+     * Stream every row stored between ini and end as NDJSON, with the same params
+     */
+    @GET
+    @Path("export")
+    @Produces({HistoryImport.NDJSON})
+    public Response getExportNdjson(@QueryParam("ini") @DefaultValue("0") long ini,
+                                @QueryParam("end") @DefaultValue("9223372036854775807") long end,
+                                @QueryParam("node") @DefaultValue("-1") long node) {
+        return export(HistoryImport.NDJSON, ini, end, node);
+    }
+
+    /*
+     * streams the rows EXPORT_WINDOW by EXPORT_WINDOW, between the first and the
+     * last time stored, each window read through the time index, so no query lasts
+     * long and no row out of the range is read. The windows, and the rows of each
+     * window, come in time order. A window that can't be read throws
+     * IOException, aborting the response
+     */
+    private Response export(final String format, final long ini, final long end, final long node) {
+        Validators validators=new Validators(format);
+        Response response=validators.notModified();
+        if(response!=null){
+            return response;
         }
-        return store.list(tam,ini,end);
+        return validators.ok(new StreamingOutput() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                ExportRows rows=new ExportRows(out, format);
+                BeanStats stats=store.stats(node);
+                if(stats.getCount()>0){
+                    long from=Math.max(ini, stats.getFirst().getTimeInMillis());
+                    long to=Math.min(end, stats.getLast().getTimeInMillis());
+                    for(long window=from; window<=to && window>=from; window+=EXPORT_WINDOW){
+                        store.rows(node,window,Math.min(to, window+EXPORT_WINDOW-1),true,rows);
+                    }
+                }
+                System.out.println("Exported "+rows.close()+" rows");
+            }
+        }).header("Vary", "Accept").build();
+    }
+
+    /** 
+     * Import rows in CSV format, with a header naming the columns
+     */
+    @POST
+    @Path("import")
+    @Consumes({HistoryImport.CSV})
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response importCsv(InputStream in) throws IOException {
+        return importRows(in, HistoryImport.CSV);
+    }
+
+    /** 
+     * Import rows in NDJSON format, one json object per line
+     */
+    @POST
+    @Path("import")
+    @Consumes({HistoryImport.NDJSON})
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response importNdjson(InputStream in) throws IOException {
+        return importRows(in, HistoryImport.NDJSON);
     }
 
-}
\ No newline at end of file
+    private Response importRows(InputStream in, String format) throws IOException {
+        HistoryImport importer=new HistoryImport(store, format);
+        if(!importer.run(in)){
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).header("Retry-After", "60")
+                    .entity("Another import is running").build();
+        }
+        return Response.status(importer.isFailed()?Response.Status.SERVICE_UNAVAILABLE:Response.Status.OK)
+                .entity(importer.toString()).build();
+    }
+}
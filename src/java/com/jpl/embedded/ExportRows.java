@@ -0,0 +1,85 @@
+package com.jpl.embedded;
+
+import com.jpl.embedded.service.HistoryImport;
+import com.jpl.embedded.service.RowHandler;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Writes the rows of history while they are read, as CSV with a header or as
+ * NDJSON, one json object per line, in the formats read by HistoryImport:
+ *
+ * id,node,time,temp,hum
+ * 1,0,2012-12-14T15:26:09.000+01:00,21.5,45.0
+ *
+ * {"id":1,"node":0,"temp":21.5,"hum":45.0,"time":"2012-12-14T15:26:09.000+01:00"}
+ *
+ * The output is flushed every FLUSH_ROWS rows, so the memory used doesn't
+ * depend on the number of rows.
+ *
+ * @author José Pereda Llamas
+ */
+public class ExportRows implements RowHandler {
+
+    private static final int FLUSH_ROWS = 1024;
+
+    private final Writer out;
+    private final boolean csv;
+    private final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+    private final Date date = new Date();
+    private long rows;
+
+    public ExportRows(OutputStream out, String format) throws IOException {
+        this.out = new BufferedWriter(new OutputStreamWriter(out, Charset.forName("UTF-8")));
+        this.csv = !HistoryImport.NDJSON.equals(format);
+        if (csv) {
+            this.out.write("id,node,time,temp,hum\n");
+        }
+    }
+
+    @Override
+    public void row(int id, long node, long time, float temp, float hum) throws IOException {
+        date.setTime(time);
+        if (csv) {
+            out.write(Integer.toString(id));
+            out.write(',');
+            out.write(Long.toString(node));
+            out.write(',');
+            out.write(sdf.format(date));
+            out.write(',');
+            out.write(Float.toString(temp));
+            out.write(',');
+            out.write(Float.toString(hum));
+            out.write('\n');
+        } else {
+            out.write("{\"id\":");
+            out.write(Integer.toString(id));
+            out.write(",\"node\":");
+            out.write(Long.toString(node));
+            out.write(",\"temp\":");
+            out.write(Float.toString(temp));
+            out.write(",\"hum\":");
+            out.write(Float.toString(hum));
+            out.write(",\"time\":\"");
+            out.write(sdf.format(date));
+            out.write("\"}\n");
+        }
+        if (++rows % FLUSH_ROWS == 0) {
+            out.flush();
+        }
+    }
+
+    /*
+     * flushes the rows left, returning the number of rows written
+     */
+    public long close() throws IOException {
+        out.flush();
+        return rows;
+    }
+}
@@ -0,0 +1,68 @@
+package com.jpl.embedded;
+
+import com.jpl.embedded.service.RowHandler;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Writes the rows of history as a JSONArray while they are read from the database:
+ * 
+ * [{"id":1,"node":0,"temp":21.5,"hum":45.0,"time":"2012-12-14T15:26:09.000+01:00"},...]
+ * 
+ * The output is flushed after the first row and then every FLUSH_ROWS rows, so
+ * the client gets the first bytes before the query finishes, and the memory 
+ * used doesn't depend on the number of rows.
+ *
+ * @author José Pereda Llamas
+ */
+public class JsonRows implements RowHandler {
+    
+    private static final int FLUSH_ROWS = 256;
+    
+    private final Writer out;
+    private final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+    private final Date date = new Date();
+    private int rows;
+    
+    public JsonRows(OutputStream out) throws IOException {
+        this.out = new BufferedWriter(new OutputStreamWriter(out, Charset.forName("UTF-8")));
+        this.out.write('[');
+    }
+
+    @Override
+    public void row(int id, long node, long time, float temp, float hum) throws IOException {
+        if (rows > 0) {
+            out.write(',');
+        }
+        date.setTime(time);
+        out.write("{\"id\":");
+        out.write(Integer.toString(id));
+        out.write(",\"node\":");
+        out.write(Long.toString(node));
+        out.write(",\"temp\":");
+        out.write(Float.toString(temp));
+        out.write(",\"hum\":");
+        out.write(Float.toString(hum));
+        out.write(",\"time\":\"");
+        out.write(sdf.format(date));
+        out.write("\"}");
+        if (++rows % FLUSH_ROWS == 1) {
+            out.flush();
+        }
+    }
+
+    /*
+     * ends the array, returning the number of rows written
+     */
+    public int close() throws IOException {
+        out.write(']');
+        out.flush();
+        return rows;
+    }
+}
@@ -0,0 +1,226 @@
+package com.jpl.embedded;
+
+import com.jpl.embedded.service.LiveFeed;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * SERVLET http://<IP>:<PORT>/embedded/live
+ * 
+ * Pushes every measure to the clients as soon as it is read from the serial port,
+ * from the in-memory LiveFeed, without reading the database:
+ * 
+ *  1    http://<IP>:<PORT>/embedded/live              <-- Server-Sent Events stream, one
+ *               "reading" event per measure, with its version as event id and its json as data
+ *  2    http://<IP>:<PORT>/embedded/live?since=version <-- Long-poll: json of the first measure 
+ *               with a version greater than since, or 204 No Content after 30 seconds.
+ *               The version comes in the X-Version header
+ * 
+ * Requests are processed asynchronously, so waiting clients don't hold container threads
+ *
+ * @author José Pereda Llamas
+ */
+@WebServlet(urlPatterns={"/live"}, asyncSupported=true)
+public class LiveServlet extends HttpServlet {
+    
+    private static final long POLL_TIMEOUT = 30000; // miliseconds 
+    private static final long STREAM_TIMEOUT = 3600000; // miliseconds, clients reconnect
+    
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        final LiveFeed feed=LiveFeed.getInstance();
+        String since=request.getParameter("since");
+        if(since!=null){
+            long version;
+            try {
+                version=Long.parseLong(since);
+            } catch (NumberFormatException nfe) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "since must be a number");
+                return;
+            }
+            String json=feed.getLatestJson();
+            if(json!=null && feed.getLatestVersion()>version){
+                writeJson(response, feed.getLatestVersion(), json);
+                return;
+            }
+            poll(request, feed, version);
+        } else {
+            stream(request, response, feed);
+        }
+    }
+    
+    private void poll(HttpServletRequest request, final LiveFeed feed, final long since){
+        final AsyncContext context=request.startAsync();
+        context.setTimeout(POLL_TIMEOUT);
+        final AtomicBoolean done=new AtomicBoolean();
+        final LiveFeed.Subscriber subscriber=new LiveFeed.Subscriber() {
+            @Override
+            public boolean send(long version, String json) throws IOException {
+                if(version>since && done.compareAndSet(false, true)){
+                    writeJson((HttpServletResponse)context.getResponse(), version, json);
+                    context.complete();
+                }
+                return !done.get();
+            }
+
+            @Override
+            public void close() {
+                if(done.compareAndSet(false, true)){
+                    context.complete();
+                }
+            }
+        };
+        context.addListener(new Unsubscribe(feed, subscriber) {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                super.onTimeout(event);
+                if(done.compareAndSet(false, true)){
+                    ((HttpServletResponse)context.getResponse()).setStatus(HttpServletResponse.SC_NO_CONTENT);
+                    context.complete();
+                }
+            }
+        });
+        feed.subscribe(subscriber);
+        // a measure could have been dispatched before subscribing, if there is one
+        String json=feed.getLatestJson();
+        if(json!=null){
+            try {
+                subscriber.send(feed.getLatestVersion(), json);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+    
+    private void stream(HttpServletRequest request, HttpServletResponse response, LiveFeed feed) throws IOException{
+        response.setContentType("text/event-stream;charset=UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        final AsyncContext context=request.startAsync();
+        context.setTimeout(STREAM_TIMEOUT);
+        final PrintWriter out=response.getWriter();
+        out.print("retry: 5000\n\n");
+        String json=feed.getLatestJson();
+        if(json!=null){
+            event(out, feed.getLatestVersion(), json);
+        }
+        out.flush();
+        final Stream subscriber=new Stream(context, out);
+        context.addListener(new Unsubscribe(feed, subscriber) {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                super.onTimeout(event);
+                subscriber.close();
+            }
+        });
+        feed.subscribe(subscriber);
+    }
+    
+    private static void event(PrintWriter out, long version, String json){
+        out.print("id: "+version+"\nevent: reading\ndata: "+json+"\n\n");
+    }
+    
+    private static void writeJson(HttpServletResponse response, long version, String json) throws IOException{
+        response.setContentType("application/json;charset=UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.setHeader("X-Version", String.valueOf(version));
+        PrintWriter out=response.getWriter();
+        out.print(json);
+        out.flush();
+    }
+    
+    /*
+     * Server-Sent Events subscriber. The request is completed once, and never 
+     * while a measure is being written: closing it then, from the feed or on 
+     * timeout, leaves it to the writer when the write returns
+     */
+    private static class Stream implements LiveFeed.Subscriber {
+        
+        private final AsyncContext context;
+        private final PrintWriter out;
+        private boolean writing;
+        private boolean closed;
+
+        Stream(AsyncContext context, PrintWriter out) {
+            this.context = context;
+            this.out = out;
+        }
+
+        @Override
+        public boolean send(long version, String json) {
+            synchronized (this) {
+                if (closed) {
+                    return false;
+                }
+                writing = true;
+            }
+            boolean open = false;
+            try {
+                event(out, version, json);
+                // flushes, false once the client is gone
+                open = !out.checkError();
+            } finally {
+                synchronized (this) {
+                    writing = false;
+                    if (closed) {
+                        context.complete();
+                    }
+                    open &= !closed;
+                }
+            }
+            return open;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                if (!writing) {
+                    context.complete();
+                }
+            }
+        }
+    }
+    
+    /*
+     * removes the subscriber from the feed when the request ends
+     */
+    private static class Unsubscribe implements AsyncListener {
+        
+        private final LiveFeed feed;
+        private final LiveFeed.Subscriber subscriber;
+
+        Unsubscribe(LiveFeed feed, LiveFeed.Subscriber subscriber) {
+            this.feed = feed;
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {
+            feed.unsubscribe(subscriber);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            feed.unsubscribe(subscriber);
+        }
+
+        @Override
+        public void onError(AsyncEvent event) throws IOException {
+            feed.unsubscribe(subscriber);
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException {
+        }
+    }
+}
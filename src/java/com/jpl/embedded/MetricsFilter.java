@@ -0,0 +1,107 @@
+package com.jpl.embedded;
+
+import com.jpl.embedded.service.Metrics;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Measures the time to answer every request to the REST services and to the
+ * ArduinoOnline page, body included, so lists streamed while the database is
+ * read are timed until their last row is sent.
+ *
+ * Times are kept in Metrics, one histogram per resource. Stored rows are all
+ * counted as {id}, and unknown paths as other. The live push is not measured,
+ * as its requests last until the client leaves. Requests suspended by QueryGate
+ * are timed until they complete, their wait included.
+ *
+ * @author José Pereda Llamas
+ */
+@WebFilter(urlPatterns={"/*"}, asyncSupported=true)
+public class MetricsFilter implements Filter {
+
+    private static final String[] RESOURCES = { "", "last", "count", "queue", "cache", "list", "list/stream",
+        "page", "items", "summary", "aggregate", "export", "import", "stats", "metrics", "ready", "ArduinoOnline", "{id}", "other" };
+
+    private static final Map<String, Metrics.Histogram> HISTOGRAMS = new HashMap<>();
+    static {
+        for (String resource : RESOURCES) {
+            HISTOGRAMS.put(resource, Metrics.getInstance().histogram("arduinofx_http_request_seconds",
+                    "Time to answer the requests, body included", "resource", resource.isEmpty() ? "/" : resource));
+        }
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest http = (HttpServletRequest) request;
+        String path = http.getRequestURI().substring(http.getContextPath().length());
+        if (path.startsWith("/live")) {
+            chain.doFilter(request, response);
+            return;
+        }
+        final long start = System.nanoTime();
+        final Metrics.Histogram histogram = HISTOGRAMS.get(resource(path));
+        boolean async = false;
+        try {
+            chain.doFilter(request, response);
+            async = request.isAsyncStarted();
+            if (async) {
+                request.getAsyncContext().addListener(new AsyncListener() {
+                    @Override
+                    public void onComplete(AsyncEvent event) throws IOException {
+                        histogram.observeSince(start);
+                    }
+
+                    @Override public void onTimeout(AsyncEvent event) throws IOException { }
+                    @Override public void onError(AsyncEvent event) throws IOException { }
+                    @Override public void onStartAsync(AsyncEvent event) throws IOException { }
+                });
+            }
+        } finally {
+            if (!async) {
+                histogram.observeSince(start);
+            }
+        }
+    }
+
+    private static String resource(String path) {
+        if (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        if (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        if (HISTOGRAMS.containsKey(path)) {
+            return path;
+        }
+        if (!path.isEmpty()) {
+            boolean digits = true;
+            for (int i = 0; i < path.length() && digits; i++) {
+                digits = Character.isDigit(path.charAt(i));
+            }
+            if (digits) {
+                return "{id}";
+            }
+        }
+        return "other";
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
@@ -0,0 +1,226 @@
+package com.jpl.embedded;
+
+import com.jpl.embedded.service.Aggregation;
+import com.jpl.embedded.service.CStore;
+import com.jpl.embedded.service.Metrics;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Lets at most QUERIES requests (-Dhttp.queries, as many as reading connections
+ * by default) read the history at the same time, through list, page, items, summary
+ * aggregate and export.
+ *
+ * The other ones are suspended, so they wait without holding a container thread,
+ * in a queue of up to CAPACITY requests (-Dhttp.queue.capacity). When a query
+ * ends, the first one waiting is dispatched again to run. Requests still waiting
+ * after TIMEOUT milliseconds (-Dhttp.queue.timeout), or finding the queue full,
+ * are answered with 503 Service Unavailable and a Retry-After header.
+ *
+ * Requests that can't be suspended, the servlet not supporting it, wait instead
+ * up to TIMEOUT milliseconds for a permit, holding their thread. Requests that
+ * end while waiting, the client being gone, leave the queue, and a permit
+ * handed to one that can't be dispatched any more goes to the next one.
+ *
+ * So a few long queries can't use up the threads of the container, and the
+ * services answered from memory, like last, count or stats, keep responding.
+ * Each query runs for QUERY_TIMEOUT seconds at most, see ConnectionPool. The
+ * reading connections left over by the queries let through are the only ones
+ * the partitions of an aggregate take besides its own, see Aggregation.
+ *
+ * The waiting and running queries and the requests rejected are kept in Metrics.
+ *
+ * @author José Pereda Llamas
+ */
+@WebFilter(urlPatterns={"/list", "/list/*", "/page", "/items", "/summary", "/aggregate", "/export"}, asyncSupported=true,
+        dispatcherTypes={DispatcherType.REQUEST, DispatcherType.ASYNC})
+public class QueryGate implements Filter {
+
+    public static final int QUERIES = Integer.getInteger("http.queries", CStore.READERS);
+    public static final int CAPACITY = Integer.getInteger("http.queue.capacity", 50);
+    public static final long TIMEOUT = Long.getLong("http.queue.timeout", 10000);
+
+    // request attribute of the requests dispatched again holding a permit
+    private static final String GRANTED = QueryGate.class.getName() + ".granted";
+
+    private static final Metrics.Counter REJECTED_FULL = rejected("full");
+    private static final Metrics.Counter REJECTED_TIMEOUT = rejected("timeout");
+
+    private final Semaphore permits = new Semaphore(QUERIES);
+    private final BlockingQueue<Waiter> waiting = new LinkedBlockingQueue<>(CAPACITY);
+
+    /*
+     * suspended request, dispatched or timed out only once
+     */
+    private static class Waiter {
+        final AsyncContext context;
+        final AtomicBoolean done = new AtomicBoolean();
+
+        Waiter(AsyncContext context) {
+            this.context = context;
+        }
+    }
+
+    private static Metrics.Counter rejected(String reason) {
+        return Metrics.getInstance().counter("arduinofx_http_queries_rejected_total",
+                "Queries answered with 503, the queue being full or their wait expired", "reason", reason);
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        Metrics.getInstance().gauge("arduinofx_http_queries_waiting", "Queries suspended waiting to run",
+                new Metrics.Gauge() {
+            @Override public double value() { return waiting.size(); }
+        });
+        Metrics.getInstance().gauge("arduinofx_http_queries_running", "Queries running",
+                new Metrics.Gauge() {
+            @Override public double value() { return QUERIES - permits.availablePermits(); }
+        });
+        Aggregation.spareReaders(CStore.READERS - QUERIES);
+        System.out.println("Query gate: " + QUERIES + " queries, " + CAPACITY + " waiting, timeout " + TIMEOUT + " ms");
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        if (Boolean.TRUE.equals(request.getAttribute(GRANTED))) {
+            // dispatched again, with the permit released by the last query
+            request.setAttribute(GRANTED, null);
+            run(request, response, chain);
+            return;
+        }
+        if (permits.tryAcquire()) {
+            run(request, response, chain);
+            return;
+        }
+        if (!request.isAsyncSupported()) {
+            block(request, response, chain);
+            return;
+        }
+        final AsyncContext context = request.startAsync();
+        context.setTimeout(TIMEOUT);
+        final Waiter waiter = new Waiter(context);
+        context.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                if (waiter.done.compareAndSet(false, true)) {
+                    waiting.remove(waiter);
+                    REJECTED_TIMEOUT.inc();
+                    reject((HttpServletResponse) context.getResponse(), "Too many queries, try again later");
+                    context.complete();
+                }
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) throws IOException {
+                abandon(waiter);
+            }
+
+            @Override
+            public void onError(AsyncEvent event) throws IOException {
+                abandon(waiter);
+            }
+
+            @Override public void onStartAsync(AsyncEvent event) throws IOException { }
+        });
+        if (!waiting.offer(waiter)) {
+            waiter.done.set(true);
+            REJECTED_FULL.inc();
+            reject((HttpServletResponse) context.getResponse(), "Too many queries waiting, try again later");
+            context.complete();
+            return;
+        }
+        // a query may have ended before the request was queued
+        if (permits.tryAcquire()) {
+            release();
+        }
+    }
+
+    /*
+     * waits for a permit holding the thread, when the request can't be suspended
+     */
+    private void block(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        boolean granted;
+        try {
+            granted = permits.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            granted = false;
+        }
+        if (!granted) {
+            REJECTED_TIMEOUT.inc();
+            reject((HttpServletResponse) response, "Too many queries, try again later");
+            return;
+        }
+        run(request, response, chain);
+    }
+
+    /*
+     * removes a request that ended while waiting, as it won't be dispatched
+     */
+    private void abandon(Waiter waiter) {
+        if (waiter.done.compareAndSet(false, true)) {
+            waiting.remove(waiter);
+        }
+    }
+
+    private void run(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            release();
+        }
+    }
+
+    /*
+     * hands the permit held to the first request waiting, or returns it
+     */
+    private void release() {
+        while (true) {
+            Waiter waiter = waiting.poll();
+            if (waiter == null) {
+                permits.release();
+                // a request may have been queued after the poll, with no permit left
+                if (waiting.isEmpty() || !permits.tryAcquire()) {
+                    return;
+                }
+            } else if (waiter.done.compareAndSet(false, true)) {
+                try {
+                    waiter.context.getRequest().setAttribute(GRANTED, Boolean.TRUE);
+                    waiter.context.dispatch();
+                    return;
+                } catch (IllegalStateException ise) {
+                    // completed or gone meanwhile, the permit goes to the next one
+                    System.out.println("Query gate: waiting request gone, " + ise.getMessage());
+                }
+            }
+        }
+    }
+
+    private static void reject(HttpServletResponse response, String message) throws IOException {
+        response.setHeader("Retry-After", String.valueOf(Math.max(1, TIMEOUT / 1000)));
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, message);
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
@@ -0,0 +1,74 @@
+package com.jpl.embedded;
+
+import com.jpl.embedded.service.Startup;
+import java.io.IOException;
+import java.io.PrintWriter;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * SERVLET http://<IP>:<PORT>/embedded/ready
+ * 
+ * Reports the progress of the startup: 200 OK once the application is ready,
+ * 503 Service Unavailable while it isn't, with the state and miliseconds taken
+ * by each phase in json format:
+ * 
+ * {"ready":false,"uptime":2150,"phases":[{"name":"store","required":true,
+ *  "state":"running","millis":2148},...]}
+ * 
+ * Answered from memory, it responds from the moment the application is deployed.
+ *
+ * @author José Pereda Llamas
+ */
+@WebServlet(urlPatterns={"/ready"})
+public class ReadyServlet extends HttpServlet {
+    
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        Startup startup=Startup.getInstance();
+        boolean ready=startup.isReady();
+        StringBuilder json=new StringBuilder();
+        json.append("{\"ready\":").append(ready).append(",\"uptime\":").append(startup.getUptime());
+        json.append(",\"phases\":[");
+        boolean first=true;
+        for(Startup.Phase phase : startup.getPhases()){
+            json.append(first?"":",");
+            json.append("{\"name\":\"").append(phase.getName()).append("\",\"required\":").append(phase.isRequired());
+            json.append(",\"state\":\"").append(phase.getState()).append("\",\"millis\":").append(phase.getMillis());
+            if(phase.getError()!=null){
+                json.append(",\"error\":\"").append(escape(phase.getError())).append("\"");
+            }
+            json.append("}");
+            first=false;
+        }
+        json.append("]}");
+        
+        if(!ready){
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setHeader("Retry-After", "1");
+        }
+        response.setContentType("application/json;charset=UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        PrintWriter out=response.getWriter();
+        out.print(json);
+        out.flush();
+    }
+    
+    private static String escape(String text){
+        StringBuilder sb=new StringBuilder(text.length());
+        for(char c : text.toCharArray()){
+            if(c=='"' || c=='\\'){
+                sb.append('\\').append(c);
+            } else if(c<' '){
+                sb.append(' ');
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,64 @@
+package com.jpl.embedded;
+
+import com.jpl.embedded.service.Startup;
+import java.io.IOException;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Answers the requests to the REST services with 503 Service Unavailable and a
+ * Retry-After header while the application isn't ready (see Startup), instead
+ * of holding them until the store is open.
+ *
+ * The services that don't need the store, ready, live and ArduinoOnline, are
+ * always let through.
+ *
+ * @author José Pereda Llamas
+ */
+@WebFilter(urlPatterns={"/*"}, asyncSupported=true)
+public class StartupFilter implements Filter {
+
+    private static final String[] ALWAYS = { "/ready", "/live", "/ArduinoOnline" };
+
+    // set once ready, so the phases aren't checked again. Startup isn't ready
+    // before its phases are registered, so it is never set too early
+    private volatile boolean ready;
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        if (!ready) {
+            ready = Startup.getInstance().isReady();
+        }
+        if (!ready) {
+            HttpServletRequest http = (HttpServletRequest) request;
+            String path = http.getRequestURI().substring(http.getContextPath().length());
+            boolean always = false;
+            for (String prefix : ALWAYS) {
+                always |= path.startsWith(prefix);
+            }
+            if (!always) {
+                HttpServletResponse httpResponse = (HttpServletResponse) response;
+                httpResponse.setHeader("Retry-After", "1");
+                httpResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Starting, see /ready");
+                return;
+            }
+        }
+        chain.doFilter(request, response);
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
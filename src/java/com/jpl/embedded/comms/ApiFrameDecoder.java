@@ -0,0 +1,243 @@
+package com.jpl.embedded.comms;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decoder for XBee API mode frames, used when the local antenna is a coordinator
+ * receiving data from several remote nodes:
+ *
+ *   0x7E | length MSB | length LSB | frame data | checksum
+ *
+ * In API mode 2 (AP=2) the bytes 0x7E, 0x7D, 0x11 and 0x13 after the delimiter
+ * are escaped as 0x7D followed by the byte XOR 0x20, so a 0x7E always starts a
+ * new frame. In API mode 1 (AP=1) a 0x7E can be any byte of a frame: the frame
+ * ends after its length, and only when its length or checksum are wrong the
+ * decoder looks for the next delimiter among the bytes of the discarded frame.
+ *
+ * The checksum is valid when the sum of the frame data bytes plus the checksum
+ * byte is 0xFF. Invalid frames are discarded.
+ *
+ * The RF data of the receive packets is passed to the FrameParser of the
+ * source address, so each remote node can split its "{T,H}\r\n" text among
+ * several packets:
+ *
+ *   0x80 RX (Receive) Packet: 64-bit Address
+ *   0x81 RX (Receive) Packet: 16-bit Address
+ *   0x90 ZigBee Receive Packet (64-bit Address)
+ *
+ * Any other frame type is ignored.
+ *
+ * @author José Pereda Llamas
+ */
+public class ApiFrameDecoder implements FrameDecoder {
+
+    public static final int RX_64 = 0x80;
+    public static final int RX_16 = 0x81;
+    public static final int ZB_RX = 0x90;
+
+    private static final byte DELIMITER = 0x7E;
+    private static final byte ESCAPE = 0x7D;
+    private static final int XOR = 0x20;
+
+    private static final int MAX_LENGTH = 512;
+
+    private static final int WAIT_DELIMITER = 0;
+    private static final int LENGTH_MSB = 1;
+    private static final int LENGTH_LSB = 2;
+    private static final int FRAME_DATA = 3;
+    private static final int CHECKSUM = 4;
+
+    private final boolean escaped;
+    private final ReadingListener listener;
+    // read by the metrics too
+    private final Map<Long, FrameParser> parsers = new ConcurrentHashMap<>();
+
+    // reusable frame data buffer
+    private final byte[] data = new byte[MAX_LENGTH];
+    // bytes of the frame after its delimiter, to resync from them in AP=1
+    private final byte[] raw = new byte[MAX_LENGTH + 3];
+    private int count;
+    private int state = WAIT_DELIMITER;
+    private int length;
+    private int pos;
+    private int sum;
+    private boolean unescape;
+
+    // written only by the serial reader, read by the metrics
+    private volatile long frames;
+    private volatile long errors;
+
+    public ApiFrameDecoder(boolean escaped, ReadingListener listener) {
+        this.escaped = escaped;
+        this.listener = listener;
+    }
+
+    @Override
+    public int parse(byte[] buffer, int off, int len) {
+        int readings = 0;
+        for (int i = off; i < off + len; i++) {
+            readings += accept(buffer[i]);
+        }
+        return readings;
+    }
+
+    /*
+     * feed one byte from the serial port, returns the readings it completes
+     */
+    private int accept(byte b) {
+        if (state == WAIT_DELIMITER) {
+            if (b == DELIMITER) {
+                start();
+            }
+            return 0;
+        }
+        if (!escaped) {
+            // in AP=1 a 0x7E is just another byte of the frame
+            raw[count++] = b;
+            return decode(b & 0xff);
+        }
+        if (b == DELIMITER) {
+            // in AP=2 a delimiter is never escaped data, so it always starts a new frame
+            errors++;
+            start();
+            return 0;
+        }
+        if (b == ESCAPE) {
+            unescape = true;
+            return 0;
+        }
+        if (unescape) {
+            b = (byte) (b ^ XOR);
+            unescape = false;
+        }
+        return decode(b & 0xff);
+    }
+
+    private void start() {
+        state = LENGTH_MSB;
+        unescape = false;
+        count = 0;
+    }
+
+    /*
+     * discard the frame being decoded. In AP=1 its delimiter may have been a
+     * data byte of a frame cut short, so the decoder starts again from the next
+     * 0x7E among its bytes, returning the readings found there
+     */
+    private int discard() {
+        errors++;
+        state = WAIT_DELIMITER;
+        if (escaped) {
+            return 0;
+        }
+        for (int i = 0; i < count; i++) {
+            if (raw[i] == DELIMITER) {
+                byte[] rest = new byte[count - i];
+                System.arraycopy(raw, i, rest, 0, rest.length);
+                return parse(rest, 0, rest.length);
+            }
+        }
+        return 0;
+    }
+
+    private int decode(int b) {
+        switch (state) {
+            case LENGTH_MSB:
+                length = b << 8;
+                state = LENGTH_LSB;
+                break;
+            case LENGTH_LSB:
+                length |= b;
+                if (length == 0 || length > MAX_LENGTH) {
+                    return discard();
+                } else {
+                    pos = 0;
+                    sum = 0;
+                    state = FRAME_DATA;
+                }
+                break;
+            case FRAME_DATA:
+                data[pos++] = (byte) b;
+                sum += b;
+                if (pos == length) {
+                    state = CHECKSUM;
+                }
+                break;
+            case CHECKSUM:
+                state = WAIT_DELIMITER;
+                if (((sum + b) & 0xff) != 0xff) {
+                    return discard();
+                }
+                frames++;
+                return dispatch();
+        }
+        return 0;
+    }
+
+    /*
+     * pass the RF data of a receive packet to the parser of its source address
+     */
+    private int dispatch() {
+        int type = data[0] & 0xff;
+        long node;
+        int offset;
+        switch (type) {
+            case RX_64:
+                // 64-bit address, RSSI, options
+                node = address(1, 8);
+                offset = 11;
+                break;
+            case RX_16:
+                // 16-bit address, RSSI, options
+                node = address(1, 2);
+                offset = 5;
+                break;
+            case ZB_RX:
+                // 64-bit address, 16-bit address, options
+                node = address(1, 8);
+                offset = 12;
+                break;
+            default:
+                return 0;
+        }
+        if (offset >= length) {
+            return 0;
+        }
+        FrameParser parser = parsers.get(node);
+        if (parser == null) {
+            parser = new FrameParser(node, listener);
+            parsers.put(node, parser);
+        }
+        return parser.parse(data, offset, length - offset);
+    }
+
+    private long address(int off, int len) {
+        long address = 0;
+        for (int i = off; i < off + len; i++) {
+            address = (address << 8) | (data[i] & 0xff);
+        }
+        return address;
+    }
+
+    /*
+     * number of frames with a valid checksum
+     */
+    @Override
+    public long getFrames() {
+        return frames;
+    }
+
+    /*
+     * number of frames discarded: bad length, bad checksum or truncated, plus
+     * the measures discarded by the parsers of the nodes
+     */
+    @Override
+    public long getErrors() {
+        long total = errors;
+        for (FrameParser parser : parsers.values()) {
+            total += parser.getErrors();
+        }
+        return total;
+    }
+}
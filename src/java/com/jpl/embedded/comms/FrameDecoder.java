@@ -0,0 +1,28 @@
+package com.jpl.embedded.comms;
+
+/**
+ * Decoder of the byte stream read from the serial port. 
+ * 
+ * Bytes are fed in chunks as they arrive, the decoder keeps its state between
+ * calls and notifies every complete reading to its ReadingListener
+ *
+ * @author José Pereda Llamas
+ */
+public interface FrameDecoder {
+
+    /*
+     * decode len bytes from buffer, starting at off
+     * returns the number of readings found
+     */
+    int parse(byte[] buffer, int off, int len);
+
+    /*
+     * number of frames decoded so far
+     */
+    long getFrames();
+
+    /*
+     * number of frames discarded so far
+     */
+    long getErrors();
+}
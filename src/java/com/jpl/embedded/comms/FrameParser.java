@@ -0,0 +1,178 @@
+package com.jpl.embedded.comms;
+
+/**
+ * Byte oriented parser for the frames sent by the Arduino with the format
+ * "{00.0,00.0}\r\n"
+ *
+ * Bytes are fed as they are read from the serial port, in any chunk size, so
+ * a frame can be split across several reads and one read can contain several
+ * frames. The values are decoded straight from the bytes, without creating any
+ * String, and the listener is notified once the CR LF ending is found.
+ *
+ * Only digits, '-', '.' and ',' are meaningful, any other byte ('{', '}',
+ * spaces...) is skipped. Frames without exactly two numbers are discarded.
+ * 
+ * Every parser is bound to one node: the local antenna in transparent mode, or
+ * one of the remote nodes in API mode (see ApiFrameDecoder)
+ *
+ * @author José Pereda Llamas
+ */
+public class FrameParser implements FrameDecoder {
+
+    private static final byte CR = 0x0D;
+    private static final byte LF = 0x0A;
+
+    // frames longer than this without CR LF are considered garbage
+    private static final int MAX_FRAME = 64;
+    // more digits would overflow the long mantissa
+    private static final int MAX_DIGITS = 18;
+
+    private static final double[] POW10 = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+        1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18 };
+
+    private final long node;
+    private final ReadingListener listener;
+
+    // state of the frame being parsed
+    private final double[] values = new double[2];
+    private int field;
+    private int length;
+    private boolean cr;
+    private boolean error;
+
+    // written only by the serial reader, read by the metrics
+    private volatile long frames;
+    private volatile long errors;
+
+    // state of the number being parsed
+    private long mantissa;
+    private int digits;
+    private int decimals;
+    private boolean negative;
+    private boolean point;
+
+    public FrameParser(ReadingListener listener) {
+        this(0, listener);
+    }
+
+    public FrameParser(long node, ReadingListener listener) {
+        this.node = node;
+        this.listener = listener;
+        reset();
+    }
+
+    @Override
+    public int parse(byte[] buffer, int off, int len) {
+        int frames = 0;
+        for (int i = off; i < off + len; i++) {
+            if (parse(buffer[i])) {
+                frames++;
+            }
+        }
+        return frames;
+    }
+
+    /*
+     * parse one byte, returns true if it completes a valid frame
+     */
+    public boolean parse(byte b) {
+        if (b == LF && cr) {
+            boolean valid = endFrame();
+            reset();
+            return valid;
+        }
+        cr = (b == CR);
+        if (cr || error) {
+            return false;
+        }
+        if (++length > MAX_FRAME) {
+            error = true;
+            return false;
+        }
+        if (b >= '0' && b <= '9') {
+            if (digits == MAX_DIGITS) {
+                error = true;
+                return false;
+            }
+            mantissa = mantissa * 10 + (b - '0');
+            digits++;
+            if (point) {
+                decimals++;
+            }
+        } else if (b == '.') {
+            if (point) {
+                error = true;
+            }
+            point = true;
+        } else if (b == '-') {
+            if (digits > 0 || point || negative) {
+                error = true;
+            }
+            negative = true;
+        } else if (b == ',') {
+            endNumber();
+        } else if (Character.isLetter((char) (b & 0xff))) {
+            error = true;
+        }
+        return false;
+    }
+
+    /*
+     * number of valid frames parsed
+     */
+    @Override
+    public long getFrames() {
+        return frames;
+    }
+
+    /*
+     * number of frames discarded: without two numbers, too long or with letters
+     */
+    @Override
+    public long getErrors() {
+        return errors;
+    }
+
+    /*
+     * discards any partial frame
+     */
+    public final void reset() {
+        field = 0;
+        length = 0;
+        cr = false;
+        error = false;
+        resetNumber();
+    }
+
+    private boolean endFrame() {
+        endNumber();
+        if (error || field != 2) {
+            errors++;
+            return false;
+        }
+        frames++;
+        listener.onReading(node, values[0], values[1]);
+        return true;
+    }
+
+    private void endNumber() {
+        if (error) {
+            return;
+        }
+        if (digits == 0 || field == values.length) {
+            error = true;
+            return;
+        }
+        double value = mantissa / POW10[decimals];
+        values[field++] = negative ? -value : value;
+        resetNumber();
+    }
+
+    private void resetNumber() {
+        mantissa = 0;
+        digits = 0;
+        decimals = 0;
+        negative = false;
+        point = false;
+    }
+}
@@ -0,0 +1,14 @@
+package com.jpl.embedded.comms;
+
+/**
+ * Receives every reading decoded from the serial port, tagged with the 
+ * address of the node that sent it. 
+ * 
+ * It's called from the serial reader thread, so it shouldn't block
+ *
+ * @author José Pereda Llamas
+ */
+public interface ReadingListener {
+
+    void onReading(long node, double temp, double hum);
+}
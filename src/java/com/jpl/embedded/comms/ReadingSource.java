@@ -0,0 +1,27 @@
+package com.jpl.embedded.comms;
+
+/**
+ * Source of the bytes sent by the Arduino nodes, fed to a FrameDecoder as they
+ * arrive, from its own thread:
+ *
+ * - Serial: the XBee antenna plugged in a serial port
+ * - ReplaySource: a file, fifo or pty with a recorded byte stream
+ * - SyntheticSource: generated frames of any number of virtual sensors
+ *
+ * All of them feed the same decoders, so the rest of the ingestion path can be
+ * loaded without hardware.
+ *
+ * @author José Pereda Llamas
+ */
+public interface ReadingSource {
+
+    /*
+     * start feeding the bytes read to the decoder
+     */
+    void start(FrameDecoder decoder) throws Exception;
+
+    /*
+     * stop reading and release the source
+     */
+    void stop();
+}
@@ -0,0 +1,72 @@
+package com.jpl.embedded.comms;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * FrameDecoder that records every chunk of bytes read, with the time it was
+ * read, before passing it to the decoder it wraps, so the stream can be played
+ * back later at its original pace, or faster, with ReplaySource:
+ *
+ *   magic    4 bytes   'A' 'F' 'X' 'R'
+ *   chunks   8 bytes time read, milliseconds from 1970, 4 bytes length, and
+ *            length bytes, until the end of the file
+ *
+ * @author José Pereda Llamas
+ */
+public class Recorder implements FrameDecoder {
+
+    static final byte[] MAGIC = { 'A', 'F', 'X', 'R' };
+
+    private final FrameDecoder decoder;
+    private volatile DataOutputStream out;
+
+    public Recorder(String path, FrameDecoder decoder) throws IOException {
+        this.decoder = decoder;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+        out.write(MAGIC);
+    }
+
+    @Override
+    public int parse(byte[] buffer, int off, int len) {
+        DataOutputStream out = this.out;
+        if (out != null) {
+            try {
+                out.writeLong(System.currentTimeMillis());
+                out.writeInt(len);
+                out.write(buffer, off, len);
+                out.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+                close();
+            }
+        }
+        return decoder.parse(buffer, off, len);
+    }
+
+    @Override
+    public long getFrames() {
+        return decoder.getFrames();
+    }
+
+    @Override
+    public long getErrors() {
+        return decoder.getErrors();
+    }
+
+    /*
+     * stop recording, the decoder keeps being fed
+     */
+    public void close() {
+        DataOutputStream out = this.out;
+        this.out = null;
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.jpl.embedded.comms;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * ReadingSource that plays back a byte stream from a file, a fifo or a pty.
+ *
+ * Streams recorded with Recorder are played at their original pace multiplied
+ * by speed (1 real time, 1000 one thousand times faster, 0 or less as fast as
+ * possible). Any other file is raw bytes, as captured from the port, fed as
+ * fast as they can be read: a fifo or a pty are paced by their writer.
+ *
+ * With loop, regular files are played again from the start when they end,
+ * to keep a constant load for as long as needed.
+ *
+ * @author José Pereda Llamas
+ */
+public class ReplaySource implements ReadingSource, Runnable {
+
+    private final File file;
+    private final double speed;
+    private final boolean loop;
+
+    private FrameDecoder decoder;
+    private Thread thread;
+    private volatile boolean running;
+
+    public ReplaySource(String path, double speed, boolean loop) {
+        this.file = new File(path);
+        this.speed = speed;
+        this.loop = loop;
+    }
+
+    @Override
+    public void start(FrameDecoder decoder) throws Exception {
+        if (!file.canRead()) {
+            throw new IOException("Can't read " + file);
+        }
+        this.decoder = decoder;
+        running = true;
+        thread = new Thread(this, "ReplaySource");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            do {
+                InputStream in = new BufferedInputStream(new FileInputStream(file));
+                try {
+                    byte[] magic = new byte[Recorder.MAGIC.length];
+                    in.mark(magic.length);
+                    int read = in.read(magic);
+                    if (read == magic.length && Arrays.equals(magic, Recorder.MAGIC)) {
+                        playRecorded(new DataInputStream(in));
+                    } else {
+                        in.reset();
+                        playRaw(in);
+                    }
+                } finally {
+                    in.close();
+                }
+            } while (running && loop && file.isFile());
+        } catch (InterruptedException ie) {
+            // stopped
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.out.println("Replay of " + file + " finished");
+    }
+
+    private void playRaw(InputStream in) throws IOException {
+        byte[] buffer = new byte[1024];
+        int len;
+        while (running && (len = in.read(buffer)) > -1) {
+            if (len > 0) {
+                decoder.parse(buffer, 0, len);
+            }
+        }
+    }
+
+    private void playRecorded(DataInputStream in) throws IOException, InterruptedException {
+        byte[] buffer = new byte[1024];
+        long first = -1;
+        long start = System.currentTimeMillis();
+        while (running) {
+            long time;
+            try {
+                time = in.readLong();
+            } catch (EOFException eof) {
+                return;
+            }
+            int len = in.readInt();
+            if (len > buffer.length) {
+                buffer = new byte[len];
+            }
+            in.readFully(buffer, 0, len);
+            if (first < 0) {
+                first = time;
+            }
+            if (speed > 0) {
+                long wait = start + (long) ((time - first) / speed) - System.currentTimeMillis();
+                if (wait > 0) {
+                    Thread.sleep(wait);
+                }
+            }
+            decoder.parse(buffer, 0, len);
+        }
+    }
+}
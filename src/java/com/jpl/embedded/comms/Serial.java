@@ -1,23 +1,24 @@
 package com.jpl.embedded.comms;
 
-import com.jpl.embedded.model.BeanHT;
-import com.jpl.embedded.model.CSensor;
 import gnu.io.CommPort;
 import gnu.io.CommPortIdentifier;
 import gnu.io.SerialPort;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Calendar;
 
 /**
  * Serial connect with RXTXcomm library to specified serial port
  * starting two threads to read and write on it.
  * 
  * SerialReader thread reads some bytes from serial port, and then
- * tries to get the string sent from arduino with the format "{00.0,00.0}\n"
- * creating and storing a BeanHT(T,H,Time)
- * It doesn't block Raspberry Pi's CPU
+ * a FrameDecoder decodes the frames sent from arduino with the format "{00.0,00.0}\r\n",
+ * directly (FrameParser, transparent mode) or wrapped in XBee API frames (ApiFrameDecoder),
+ * notifying each reading to its ReadingListener.
+ * It blocks on the port read, so it doesn't block Raspberry Pi's CPU
+ * 
+ * It is the ReadingSource of the XBee antenna: start connects to the port
+ * given on construction.
  * 
  * On undeploy, the serial port is closed
  * 
@@ -25,12 +26,30 @@ import java.util.Calendar;
  * Created on 04-dic-2012 - 19:32:10
  */
 
-public class Serial {
+public class Serial implements ReadingSource {
     
     private CommPort m_commPort;
     private SerialPort m_serialPort;
+    private String portName;
+    
+    public Serial(){
+    }
+    
+    public Serial( String portName ){
+        this.portName = portName;
+    }
+    
+    @Override
+    public void start( FrameDecoder decoder ) throws Exception {
+        connect( portName, decoder );
+    }
+    
+    @Override
+    public void stop(){
+        disconnect();
+    }
     
-    public void connect( String portName ) throws Exception {
+    public void connect( String portName, FrameDecoder decoder ) throws Exception {
         CommPortIdentifier portIdentifier = CommPortIdentifier.getPortIdentifier( portName );
         if( portIdentifier.isCurrentlyOwned() ) {
             System.out.println( "Error: Port is currently in use" );
@@ -46,7 +65,7 @@ public class Serial {
                 InputStream in = m_serialPort.getInputStream();
                 OutputStream out = m_serialPort.getOutputStream();
 
-                ( new Thread( new SerialReader( in ) ) ).start();
+                ( new Thread( new SerialReader( in, decoder ) ) ).start();
                 ( new Thread( new SerialWriter( out ) ) ).start();
 
             } else {
@@ -70,48 +89,22 @@ public class Serial {
     private static class SerialReader implements Runnable {
  
         InputStream in;
+        FrameDecoder decoder;
         
-        public SerialReader( InputStream in ) {
+        public SerialReader( InputStream in, FrameDecoder decoder ) {
             this.in = in;
+            this.decoder = decoder;
         }
  
         @Override
         public void run() {
-            String sz="";
             byte[] buffer = new byte[ 1024 ];
             int len = -1;
             try {
               while( ( len = this.in.read( buffer ) ) > -1 ) {
                 if(len>0){
-                    // string of space-separated hexadecimal numbers                        
-                    for(int i=0; i<len; i++){
-                        sz=sz.concat(" ").concat(dec2hexStr(buffer[i]));                    
-                    }
-                    
-                    if(sz.length()>6){
-                        if(sz.trim().endsWith("0D 0A")){
-                            // readable string "T,H"
-                            String[] sz2=hex2ReadStr(sz).split("\\,");
-                            BeanHT bean=new BeanHT();
-                            try {
-                                bean.setTemp(Double.parseDouble(sz2[0]));
-                                bean.setHum(Double.parseDouble(sz2[1]));
-                            } catch (NumberFormatException exception) {}
-                            
-                            Calendar cal=Calendar.getInstance();
-                            bean.setTime(cal);
-                            
-                            // set last bean to this last measure
-                            CSensor.getInstance().setLastBean(bean);
-                            //System.out.println(bean);          
-                            
-                            // reset sz string, and continue reading
-                            sz="";
-                            try{
-                                Thread.sleep(1000);
-                            } catch(InterruptedException ie) {}
-                        }
-                    }
+                    // readings are notified to the listener as soon as they are decoded
+                    decoder.parse(buffer, 0, len);
                 }
               }
             } catch( IOException e ) {
@@ -140,6 +133,11 @@ public class Serial {
         }
     }
     
+    /*
+     * Legacy String based decoding, kept for reference and benchmarking
+     * against FrameParser
+     */
+    
     /*
      * byte (0xA8) to String ("A8")
      */
@@ -0,0 +1,173 @@
+package com.jpl.embedded.comms;
+
+import java.util.Random;
+
+/**
+ * ReadingSource that generates the frames of sensors virtual sensors, as the
+ * Arduino sends them, at rate readings per second in total (0 or less as fast
+ * as possible), to load the ingestion path without hardware.
+ *
+ * In transparent mode every frame comes from the local antenna (node 0). In API
+ * mode each sensor is a ZigBee end node, with 64-bit address BASE + its number,
+ * and its frames are wrapped in ZigBee Receive Packets, escaped if needed.
+ * Without escaping, the frames with a 0x7E byte (address, length or checksum)
+ * are lost, as with a real antenna in AP=1 mode.
+ *
+ * Temperature and humidity follow a random walk for each sensor.
+ *
+ * @author José Pereda Llamas
+ */
+public class SyntheticSource implements ReadingSource, Runnable {
+
+    public static final long BASE = 0x0013A20040000000L;
+
+    // readings generated at most before checking the rate and the stop flag
+    private static final int BURST = 64;
+
+    private final int sensors;
+    private final double rate;
+    private final boolean api;
+    private final boolean escaped;
+    private final double[] temps;
+    private final double[] hums;
+    private final Random random = new Random();
+
+    // frame being generated, raw and escaped
+    private final byte[] frame = new byte[64];
+    private final byte[] buffer = new byte[BURST * 2 * frame.length];
+
+    private FrameDecoder decoder;
+    private Thread thread;
+    private volatile boolean running;
+
+    public SyntheticSource(int sensors, double rate, boolean api, boolean escaped) {
+        this.sensors = Math.max(1, sensors);
+        this.rate = rate;
+        this.api = api;
+        this.escaped = escaped;
+        temps = new double[this.sensors];
+        hums = new double[this.sensors];
+        for (int i = 0; i < this.sensors; i++) {
+            temps[i] = 15 + 10 * random.nextDouble();
+            hums[i] = 30 + 40 * random.nextDouble();
+        }
+    }
+
+    @Override
+    public void start(FrameDecoder decoder) throws Exception {
+        this.decoder = decoder;
+        running = true;
+        thread = new Thread(this, "SyntheticSource");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("Generating " + sensors + " sensors at "
+                + (rate > 0 ? rate + " readings/s" : "full speed") + (api ? " in API mode" : ""));
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        long generated = 0;
+        int sensor = 0;
+        while (running) {
+            int n = BURST;
+            if (rate > 0) {
+                long due = (long) ((System.nanoTime() - start) * rate / 1e9) - generated;
+                if (due <= 0) {
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                    continue;
+                }
+                n = (int) Math.min(due, BURST);
+            }
+            int len = 0;
+            for (int i = 0; i < n; i++) {
+                len = append(sensor, len);
+                sensor = (sensor + 1) % sensors;
+            }
+            generated += n;
+            decoder.parse(buffer, 0, len);
+        }
+    }
+
+    /*
+     * append the next frame of the sensor to buffer at len, returning the new length
+     */
+    private int append(int sensor, int len) {
+        temps[sensor] = Math.max(-20, Math.min(50, temps[sensor] + random.nextGaussian() * 0.1));
+        hums[sensor] = Math.max(0, Math.min(100, hums[sensor] + random.nextGaussian() * 0.2));
+        // "{T,H}\r\n" with one decimal, as the Arduino prints them
+        int text = api ? 15 : 0;
+        int end = text;
+        frame[end++] = '{';
+        end = decimal(temps[sensor], end);
+        frame[end++] = ',';
+        end = decimal(hums[sensor], end);
+        frame[end++] = '}';
+        frame[end++] = '\r';
+        frame[end++] = '\n';
+        if (!api) {
+            System.arraycopy(frame, 0, buffer, len, end);
+            return len + end;
+        }
+        // ZigBee Receive Packet: type, 64-bit address, 16-bit address, options, data
+        int length = end - 3;
+        frame[0] = 0x7E;
+        frame[1] = (byte) (length >> 8);
+        frame[2] = (byte) length;
+        frame[3] = (byte) ApiFrameDecoder.ZB_RX;
+        long address = BASE + sensor;
+        for (int i = 0; i < 8; i++) {
+            frame[4 + i] = (byte) (address >>> (56 - 8 * i));
+        }
+        frame[12] = (byte) 0xFF;
+        frame[13] = (byte) 0xFE;
+        frame[14] = 0x01;
+        int sum = 0;
+        for (int i = 3; i < end; i++) {
+            sum += frame[i] & 0xff;
+        }
+        frame[end++] = (byte) (0xff - (sum & 0xff));
+        buffer[len++] = frame[0];
+        for (int i = 1; i < end; i++) {
+            byte b = frame[i];
+            if (escaped && (b == 0x7E || b == 0x7D || b == 0x11 || b == 0x13)) {
+                buffer[len++] = 0x7D;
+                b = (byte) (b ^ 0x20);
+            }
+            buffer[len++] = b;
+        }
+        return len;
+    }
+
+    /*
+     * write value with one decimal in frame at pos, returning the new position
+     */
+    private int decimal(double value, int pos) {
+        long tenths = Math.round(value * 10);
+        if (tenths < 0) {
+            frame[pos++] = '-';
+            tenths = -tenths;
+        }
+        pos = digits(tenths / 10, pos);
+        frame[pos++] = '.';
+        frame[pos++] = (byte) ('0' + tenths % 10);
+        return pos;
+    }
+
+    private int digits(long value, int pos) {
+        if (value >= 10) {
+            pos = digits(value / 10, pos);
+        }
+        frame[pos++] = (byte) ('0' + value % 10);
+        return pos;
+    }
+}
@@ -0,0 +1,61 @@
+package com.jpl.embedded.model;
+
+import java.util.Calendar;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Aggregate of the measures taken in one bucket of any length starting at
+ * time: the summary of BeanRollup plus the standard deviation of temperature
+ * and relative humidity.
+ *
+ * node is -1 when the bucket aggregates all the nodes
+ *
+ * @author José Pereda Llamas
+ */
+@XmlRootElement
+public class BeanAggregate extends BeanRollup {
+    private double tempStd;
+    private double humStd;
+
+    public BeanAggregate() {
+        super();
+    }
+
+    public BeanAggregate(long node, Calendar time, long interval, int count,
+            double tempMin, double tempMax, double tempAvg, double tempStd,
+            double humMin, double humMax, double humAvg, double humStd) {
+        super(node, time, interval, count, tempMin, tempMax, tempAvg, humMin, humMax, humAvg);
+        this.tempStd = tempStd;
+        this.humStd = humStd;
+    }
+
+    /*
+     * population standard deviation of the temperature
+     */
+    public double getTempStd() {
+        return tempStd;
+    }
+
+    public void setTempStd(double tempStd) {
+        this.tempStd = tempStd;
+    }
+
+    /*
+     * population standard deviation of the relative humidity
+     */
+    public double getHumStd() {
+        return humStd;
+    }
+
+    public void setHumStd(double humStd) {
+        this.humStd = humStd;
+    }
+
+    @Override
+    public String toString() {
+        return "BeanAggregate{node=" + Long.toHexString(getNode()) + ", time=" + getTime().getTime().toString() +
+                ", interval=" + getInterval() + ", count=" + getCount() +
+                ", T=" + getTempMin() + "/" + getTempAvg() + "/" + getTempMax() + " ±" + tempStd + " ºC, HR=" + 
+                getHumMin() + "/" + getHumAvg() + "/" + getHumMax() + " ±" + humStd + " %}";
+    }
+}
@@ -2,33 +2,59 @@ package com.jpl.embedded.model;
 
 import java.util.Calendar;
 import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlTransient;
 
 /**
- *
+ * Measure of temperature and relative humidity, read from the node with 
+ * the given address (0 for the antenna in transparent mode)
+ * 
  * @author José Pereda Llamas
  * Created on 05-dic-2012 - 18:09:53
  */
 @XmlRootElement
 public class BeanHT {
     private int id;
+    private long node;
     private double temp;
     private double hum;
     private Calendar time;
     
     public BeanHT() {
         id=1;
+        node=0;
         temp=0;
         hum=0;
         time=Calendar.getInstance();
     }
     
     public BeanHT(int id, double temp, double hum, Calendar time){
+        this(id, 0, temp, hum, time);
+    }
+    
+    public BeanHT(int id, long node, double temp, double hum, Calendar time){
         this.id=id;
+        this.node=node;
         this.temp=temp;
         this.hum=hum;
         this.time=time;
     }
 
+    /*
+     * not serialized, the id was never part of the json format
+     */
+    @XmlTransient
+    public int getId() {
+        return id;
+    }
+
+    public long getNode() {
+        return node;
+    }
+
+    public void setNode(long node) {
+        this.node = node;
+    }
+
     public double getTemp() {
         return temp;
     }
@@ -55,6 +81,6 @@ public class BeanHT {
 
     @Override
     public String toString() {
-        return "BeanHT{id=" + id + ", T=" + temp + " ºC, HR=" + hum + " %, time=" + time.getTime().toString() + '}';
+        return "BeanHT{id=" + id + ", node=" + Long.toHexString(node) + ", T=" + temp + " ºC, HR=" + hum + " %, time=" + time.getTime().toString() + '}';
     }
 }
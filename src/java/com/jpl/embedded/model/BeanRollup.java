@@ -0,0 +1,136 @@
+package com.jpl.embedded.model;
+
+import java.util.Calendar;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Summary of the measures taken in one interval (minute, hour or day) starting
+ * at time: number of measures and minimum, maximum and average of temperature
+ * and relative humidity.
+ *
+ * node is -1 when the interval summarizes all the nodes
+ *
+ * @author José Pereda Llamas
+ */
+@XmlRootElement
+public class BeanRollup {
+    private long node;
+    private Calendar time;
+    private long interval;
+    private int count;
+    private double tempMin;
+    private double tempMax;
+    private double tempAvg;
+    private double humMin;
+    private double humMax;
+    private double humAvg;
+
+    public BeanRollup() {
+        time=Calendar.getInstance();
+    }
+
+    public BeanRollup(long node, Calendar time, long interval, int count,
+            double tempMin, double tempMax, double tempAvg,
+            double humMin, double humMax, double humAvg) {
+        this.node = node;
+        this.time = time;
+        this.interval = interval;
+        this.count = count;
+        this.tempMin = tempMin;
+        this.tempMax = tempMax;
+        this.tempAvg = tempAvg;
+        this.humMin = humMin;
+        this.humMax = humMax;
+        this.humAvg = humAvg;
+    }
+
+    public long getNode() {
+        return node;
+    }
+
+    public void setNode(long node) {
+        this.node = node;
+    }
+
+    public Calendar getTime() {
+        return time;
+    }
+
+    public void setTime(Calendar time) {
+        this.time = time;
+    }
+
+    /*
+     * length of the interval, in milliseconds
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    public void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    public double getTempMin() {
+        return tempMin;
+    }
+
+    public void setTempMin(double tempMin) {
+        this.tempMin = tempMin;
+    }
+
+    public double getTempMax() {
+        return tempMax;
+    }
+
+    public void setTempMax(double tempMax) {
+        this.tempMax = tempMax;
+    }
+
+    public double getTempAvg() {
+        return tempAvg;
+    }
+
+    public void setTempAvg(double tempAvg) {
+        this.tempAvg = tempAvg;
+    }
+
+    public double getHumMin() {
+        return humMin;
+    }
+
+    public void setHumMin(double humMin) {
+        this.humMin = humMin;
+    }
+
+    public double getHumMax() {
+        return humMax;
+    }
+
+    public void setHumMax(double humMax) {
+        this.humMax = humMax;
+    }
+
+    public double getHumAvg() {
+        return humAvg;
+    }
+
+    public void setHumAvg(double humAvg) {
+        this.humAvg = humAvg;
+    }
+
+    @Override
+    public String toString() {
+        return "BeanRollup{node=" + Long.toHexString(node) + ", time=" + time.getTime().toString() +
+                ", interval=" + interval + ", count=" + count +
+                ", T=" + tempMin + "/" + tempAvg + "/" + tempMax + " ºC, HR=" + humMin + "/" + humAvg + "/" + humMax + " %}";
+    }
+}
@@ -0,0 +1,104 @@
+package com.jpl.embedded.model;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Metadata of the measures stored: number of rows, time of the first and
+ * last ones and id of the last one, for all the nodes (node -1), with the
+ * same values for each node in nodes.
+ *
+ * first and last are null while there are no rows
+ *
+ * @author José Pereda Llamas
+ */
+@XmlRootElement
+public class BeanStats {
+    private long node;
+    private long count;
+    private Calendar first;
+    private Calendar last;
+    private long lastId;
+    private List<BeanStats> nodes;
+
+    public BeanStats() {
+        node=-1;
+    }
+
+    public BeanStats(long node, long count, Calendar first, Calendar last, long lastId) {
+        this.node = node;
+        this.count = count;
+        this.first = first;
+        this.last = last;
+        this.lastId = lastId;
+    }
+
+    public long getNode() {
+        return node;
+    }
+
+    public void setNode(long node) {
+        this.node = node;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public void setCount(long count) {
+        this.count = count;
+    }
+
+    public Calendar getFirst() {
+        return first;
+    }
+
+    public void setFirst(Calendar first) {
+        this.first = first;
+    }
+
+    public Calendar getLast() {
+        return last;
+    }
+
+    public void setLast(Calendar last) {
+        this.last = last;
+    }
+
+    public long getLastId() {
+        return lastId;
+    }
+
+    public void setLastId(long lastId) {
+        this.lastId = lastId;
+    }
+
+    /*
+     * stats of each node, sorted by address, null in the stats of one node
+     */
+    public List<BeanStats> getNodes() {
+        return nodes;
+    }
+
+    public void setNodes(List<BeanStats> nodes) {
+        this.nodes = nodes;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("node=").append(node == -1 ? "all" : Long.toHexString(node))
+                .append(" count=").append(count)
+                .append(" first=").append(first == null ? "-" : first.getTime().toString())
+                .append(" last=").append(last == null ? "-" : last.getTime().toString())
+                .append(" lastId=").append(lastId);
+        if (nodes != null) {
+            for (BeanStats stats : nodes) {
+                sb.append("\n").append(stats);
+            }
+        }
+        return sb.toString();
+    }
+}
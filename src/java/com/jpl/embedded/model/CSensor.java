@@ -1,6 +1,23 @@
 package com.jpl.embedded.model;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
+ * Keeps the last measure read, both from any node and from each one of the
+ * nodes seen on the XBee network
+ *
+ * Measures are kept as immutable Reading snapshots, replaced as a whole with
+ * every new measure, so readers never lock and never see half updated values.
+ * Every snapshot has a version, increasing by one with each measure, and
+ * getVersion tells if there is anything new without reading the snapshots.
+ *
+ * The sorted list of node addresses is copied only when a new node appears.
  *
  * @author José Pereda Llamas
  * Created on 05-dic-2012 - 18:22:09
@@ -8,10 +25,13 @@ package com.jpl.embedded.model;
 public class CSensor {
 
     private static CSensor instance;
-    private BeanHT lastBean;
-    
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicReference<Reading> last = new AtomicReference<>();
+    private final ConcurrentMap<Long, Reading> nodes = new ConcurrentHashMap<>();
+    private volatile long[] addresses = new long[0];
+
     private CSensor(){
-        lastBean=new BeanHT();
+        last.set(new Reading(0, 0, 0, 0, System.currentTimeMillis()));
     }
     public static synchronized CSensor getInstance() {
         if (instance == null) {
@@ -19,19 +39,86 @@ public class CSensor {
         }
         return instance;
     }
-    
+
     public void reset(){
-        lastBean.setHum(0);
-        lastBean.setTemp(0);
+        synchronized(nodes){
+            nodes.clear();
+            addresses = new long[0];
+        }
+        last.set(new Reading(version.incrementAndGet(), 0, 0, 0, System.currentTimeMillis()));
     }
-    public void setLastBean(BeanHT bean){
-        lastBean.setHum(bean.getHum());
-        lastBean.setTemp(bean.getTemp());
-        lastBean.setTime(bean.getTime());
+
+    /*
+     * publish a new measure of the node, returning its snapshot
+     */
+    public Reading update(long node, double temp, double hum, long time){
+        Reading reading = new Reading(version.incrementAndGet(), node, temp, hum, time);
+        if (nodes.put(node, reading) == null) {
+            addNode(node);
+        }
+        // keep the newest one if two threads update at the same time
+        Reading current;
+        do {
+            current = last.get();
+        } while (current.getVersion() < reading.getVersion() && !last.compareAndSet(current, reading));
+        return reading;
+    }
+
+    private void addNode(long node){
+        synchronized(nodes){
+            long[] copy = Arrays.copyOf(addresses, addresses.length + 1);
+            copy[addresses.length] = node;
+            Arrays.sort(copy);
+            addresses = copy;
+        }
+    }
+
+    /*
+     * version of the last measure read, 0 if none yet
+     */
+    public long getVersion(){
+        return version.get();
     }
-    
+
+    /*
+     * snapshot of the last measure read from any node
+     */
+    public Reading getLatest(){
+        return last.get();
+    }
+
+    /*
+     * snapshot of the last measure read from the node, or null if it hasn't sent any yet
+     */
+    public Reading getLatest(long node){
+        return nodes.get(node);
+    }
+
+    /*
+     * copy of the last measure read from any node
+     */
     public BeanHT getLastBean(){
-        return lastBean;
-    } 
-    
+        return last.get().toBean();
+    }
+
+    /*
+     * copy of the last measure read from the node, or null if it hasn't sent any yet
+     */
+    public BeanHT getLastBean(long node){
+        Reading reading = nodes.get(node);
+        return (reading == null ? null : reading.toBean());
+    }
+
+    /*
+     * addresses of the nodes read so far, sorted
+     */
+    public List<Long> getNodes(){
+        long[] snapshot = addresses;
+        List<Long> list = new ArrayList<>(snapshot.length);
+        for (long node : snapshot) {
+            list.add(node);
+        }
+        return list;
+    }
+
 }
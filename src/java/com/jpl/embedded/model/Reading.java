@@ -0,0 +1,68 @@
+package com.jpl.embedded.model;
+
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * Immutable snapshot of the last measure read from one node, as kept by
+ * CSensor. It can be shared between threads without locks: all the fields
+ * are final, and time is kept in milliseconds instead of a mutable Calendar.
+ *
+ * version increases by one with every measure read from any node, so a
+ * reader can tell if there is something new comparing only two longs.
+ *
+ * @author José Pereda Llamas
+ */
+public final class Reading {
+    private final long version;
+    private final long node;
+    private final double temp;
+    private final double hum;
+    private final long time;
+
+    public Reading(long version, long node, double temp, double hum, long time) {
+        this.version = version;
+        this.node = node;
+        this.temp = temp;
+        this.hum = hum;
+        this.time = time;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getNode() {
+        return node;
+    }
+
+    public double getTemp() {
+        return temp;
+    }
+
+    public double getHum() {
+        return hum;
+    }
+
+    /*
+     * time of the measure, in milliseconds from 1970
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /*
+     * new bean with the values of this snapshot, free to be modified, with
+     * id 0 as it isn't a stored row
+     */
+    public BeanHT toBean() {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(time);
+        return new BeanHT(0, node, temp, hum, cal);
+    }
+
+    @Override
+    public String toString() {
+        return "Reading{version=" + version + ", node=" + Long.toHexString(node) + ", T=" + temp + " ºC, HR=" + hum + " %, time=" + new Date(time).toString() + '}';
+    }
+}
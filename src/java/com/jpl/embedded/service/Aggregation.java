@@ -0,0 +1,344 @@
+package com.jpl.embedded.service;
+
+import com.jpl.embedded.model.BeanAggregate;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Count, minimum, maximum, mean and standard deviation of temperature and
+ * humidity per bucket of width milliseconds between ini and end, of any width,
+ * computed from the rows stored in one pass, without building a list of them.
+ *
+ * The range is split in time partitions, down to SPAN milliseconds
+ * (-Dstore.parallel.span, one hour by default) or a few per thread, computed
+ * concurrently on a ForkJoinPool of PARALLELISM threads (-Dstore.parallelism,
+ * the cores available, and no more than the reading connections with derby).
+ * Each partition reads its rows with HistoryStore.rows and keeps the mean and
+ * the sum of squared deviations of each bucket it touches, updated row by row
+ * (Welford), so they are merged exactly (Chan et al.) whatever the order and
+ * the partition the rows of a bucket come from. With a parallelism of 1 the
+ * whole range is read by the calling thread.
+ *
+ * With derby every partition being read takes a reading connection. Besides
+ * the one of its request, an aggregate only takes the connections left spare
+ * by the other queries (see spareReaders), running with fewer threads, down
+ * to the calling thread alone, when there aren't enough. If a partition can't
+ * be read, the store being busy or failing, aggregate throws IOException
+ * instead of returning the buckets of the other ones.
+ *
+ * Buckets without rows are not returned. The standard deviation is the one of
+ * the population of the bucket. A range is split in up to MAX_BUCKETS buckets
+ * (-Dstore.aggregate.buckets), as their aggregates are kept in memory.
+ *
+ * @author José Pereda Llamas
+ */
+public class Aggregation {
+
+    public static final int PARALLELISM = Integer.getInteger("store.parallelism",
+            "segments".equals(Storage.ENGINE) ? Runtime.getRuntime().availableProcessors()
+                    : Math.min(Runtime.getRuntime().availableProcessors(), CStore.READERS));
+    public static final long SPAN = Long.getLong("store.parallel.span", Rollups.HOUR);
+    public static final int MAX_BUCKETS = Integer.getInteger("store.aggregate.buckets", 10000);
+
+    // partitions per thread, so threads ending early take some more
+    private static final int PARTITIONS = 4;
+    private static final int VARIABLES = 2;
+
+    private static ForkJoinPool pool;
+    // reading connections the partitions may take besides the one of their request, no limit if null
+    private static volatile Semaphore spare;
+
+    private final HistoryStore store;
+    private final int parallelism;
+
+    /*
+     * aggregates of the consecutive buckets from first, of one partition or of
+     * several merged
+     */
+    private static class Partial {
+        final int first;
+        final long[] count;
+        final double[][] mean = new double[VARIABLES][];
+        final double[][] m2 = new double[VARIABLES][];
+        final double[][] min = new double[VARIABLES][];
+        final double[][] max = new double[VARIABLES][];
+
+        Partial(int first, int size) {
+            this.first = first;
+            this.count = new long[size];
+            for (int v = 0; v < VARIABLES; v++) {
+                mean[v] = new double[size];
+                m2[v] = new double[size];
+                min[v] = new double[size];
+                max[v] = new double[size];
+            }
+        }
+
+        int last() {
+            return first + count.length - 1;
+        }
+
+        void add(int bucket, float temp, float hum) {
+            int b = bucket - first;
+            long n = ++count[b];
+            add(0, b, n, temp);
+            add(1, b, n, hum);
+        }
+
+        private void add(int v, int b, long n, double value) {
+            double delta = value - mean[v][b];
+            mean[v][b] += delta / n;
+            m2[v][b] += delta * (value - mean[v][b]);
+            if (n == 1 || value < min[v][b]) {
+                min[v][b] = value;
+            }
+            if (n == 1 || value > max[v][b]) {
+                max[v][b] = value;
+            }
+        }
+
+        /*
+         * adds the bucket of other to the same bucket of this one
+         */
+        void merge(Partial other, int bucket) {
+            int a = bucket - first, b = bucket - other.first;
+            long nb = other.count[b];
+            if (nb == 0) {
+                return;
+            }
+            long na = count[a];
+            long n = na + nb;
+            for (int v = 0; v < VARIABLES; v++) {
+                if (na == 0) {
+                    mean[v][a] = other.mean[v][b];
+                    m2[v][a] = other.m2[v][b];
+                    min[v][a] = other.min[v][b];
+                    max[v][a] = other.max[v][b];
+                    continue;
+                }
+                double delta = other.mean[v][b] - mean[v][a];
+                mean[v][a] += delta * nb / n;
+                m2[v][a] += other.m2[v][b] + delta * delta * ((double) na * nb / n);
+                min[v][a] = Math.min(min[v][a], other.min[v][b]);
+                max[v][a] = Math.max(max[v][a], other.max[v][b]);
+            }
+            count[a] = n;
+        }
+    }
+
+    /*
+     * IOException of a partition, through the tasks of the pool
+     */
+    private static class ReadFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ReadFailure(IOException cause) {
+            super(cause);
+        }
+    }
+
+    /*
+     * aggregates of the rows between lo and hi, splitting them while they are long
+     */
+    private class Task extends RecursiveTask<Partial> {
+        private static final long serialVersionUID = 1L;
+
+        final long node;
+        final long ini;
+        final long width;
+        final long lo;
+        final long hi;
+        final long span;
+
+        Task(long node, long ini, long width, long lo, long hi, long span) {
+            this.node = node;
+            this.ini = ini;
+            this.width = width;
+            this.lo = lo;
+            this.hi = hi;
+            this.span = span;
+        }
+
+        @Override
+        protected Partial compute() {
+            if (hi - lo <= span) {
+                try {
+                    return read(node, ini, width, lo, hi);
+                } catch (IOException ioe) {
+                    throw new ReadFailure(ioe);
+                }
+            }
+            long mid = lo + (hi - lo) / 2;
+            Task left = new Task(node, ini, width, lo, mid, span);
+            Task right = new Task(node, ini, width, mid + 1, hi, span);
+            right.fork();
+            Partial partial = left.compute();
+            return merge(partial, right.join());
+        }
+    }
+
+    public Aggregation(HistoryStore store) {
+        this(store, PARALLELISM);
+    }
+
+    public Aggregation(HistoryStore store, int parallelism) {
+        this.store = store;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /*
+     * sets the reading connections that no other query takes, so the partitions
+     * of the aggregates may take them. Ignored without derby
+     */
+    public static void spareReaders(int readers) {
+        if (!"segments".equals(Storage.ENGINE)) {
+            spare = new Semaphore(Math.max(0, readers));
+            System.out.println("Aggregation: " + Math.max(0, readers) + " spare reading connections");
+        }
+    }
+
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(PARALLELISM, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                @Override public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                    ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) { };
+                    thread.setName("Aggregation " + thread.getPoolIndex());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }, null, false);
+            System.out.println("Aggregation pool: " + PARALLELISM + " threads");
+        }
+        return pool;
+    }
+
+    /*
+     * aggregates per bucket of width milliseconds from ini, of the rows of the node
+     * between ini and end, for the buckets with rows. Throws IOException if the
+     * rows can't all be read
+     */
+    public List<BeanAggregate> aggregate(long node, long ini, long end, long width) throws IOException {
+        List<BeanAggregate> list = new ArrayList<>();
+        if (end < ini || width <= 0) {
+            return list;
+        }
+        if (buckets(ini, end, width) > MAX_BUCKETS) {
+            throw new IllegalArgumentException("More than " + MAX_BUCKETS + " buckets of " + width + " ms");
+        }
+        Semaphore readers = spare;
+        int extra = 0;
+        while (extra < parallelism - 1 && (readers == null || readers.tryAcquire())) {
+            extra++;
+        }
+        Partial partial;
+        try {
+            partial = partitions(node, ini, width, end, 1 + extra);
+        } finally {
+            if (readers != null) {
+                readers.release(extra);
+            }
+        }
+        for (int b = 0; b < partial.count.length; b++) {
+            long n = partial.count[b];
+            if (n == 0) {
+                continue;
+            }
+            Calendar cal = Calendar.getInstance();
+            cal.setTimeInMillis(ini + (partial.first + b) * width);
+            list.add(new BeanAggregate(node, cal, width, (int) Math.min(n, Integer.MAX_VALUE),
+                    partial.min[0][b], partial.max[0][b], partial.mean[0][b], Math.sqrt(partial.m2[0][b] / n),
+                    partial.min[1][b], partial.max[1][b], partial.mean[1][b], Math.sqrt(partial.m2[1][b] / n)));
+        }
+        return list;
+    }
+
+    /*
+     * number of buckets of width milliseconds between ini and end
+     */
+    public static long buckets(long ini, long end, long width) {
+        return (end < ini || width <= 0 ? 0 : (end - ini) / width + 1);
+    }
+
+    /*
+     * aggregates of the rows between ini and end, in partitions read by threads
+     */
+    private Partial partitions(long node, long ini, long width, long end, int threads) throws IOException {
+        if (threads == 1) {
+            return read(node, ini, width, ini, end);
+        }
+        long span = Math.max(SPAN, (end - ini) / ((long) threads * PARTITIONS));
+        Task task = new Task(node, ini, width, ini, end, span);
+        try {
+            if (threads == PARALLELISM) {
+                return pool().invoke(task);
+            }
+            ForkJoinPool own = new ForkJoinPool(threads);
+            try {
+                return own.invoke(task);
+            } finally {
+                own.shutdown();
+            }
+        } catch (RuntimeException re) {
+            // the pool may wrap the failure of the partition
+            for (Throwable cause = re; cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+            }
+            throw re;
+        }
+    }
+
+    /*
+     * aggregates of the rows between lo and hi, read from the store
+     */
+    private Partial read(long node, final long ini, final long width, long lo, long hi) throws IOException {
+        final Partial partial = new Partial((int) ((lo - ini) / width), (int) ((hi - ini) / width - (lo - ini) / width + 1));
+        store.rows(node, lo, hi, new RowHandler() {
+            @Override
+            public void row(int id, long node, long time, float temp, float hum) {
+                partial.add((int) ((time - ini) / width), temp, hum);
+            }
+        });
+        return partial;
+    }
+
+    /*
+     * aggregates of two partials of consecutive ranges, a before b
+     */
+    private static Partial merge(Partial a, Partial b) {
+        Partial merged = new Partial(a.first, b.last() - a.first + 1);
+        copy(a, merged, a.first);
+        if (b.first == a.last()) {
+            // the bucket split between both
+            merged.merge(b, b.first);
+            copy(b, merged, b.first + 1);
+        } else {
+            copy(b, merged, b.first);
+        }
+        return merged;
+    }
+
+    /*
+     * copies the buckets of from, from the bucket given, into to
+     */
+    private static void copy(Partial from, Partial to, int bucket) {
+        int src = bucket - from.first, dst = bucket - to.first, length = from.count.length - src;
+        if (length <= 0) {
+            return;
+        }
+        System.arraycopy(from.count, src, to.count, dst, length);
+        for (int v = 0; v < VARIABLES; v++) {
+            System.arraycopy(from.mean[v], src, to.mean[v], dst, length);
+            System.arraycopy(from.m2[v], src, to.m2[v], dst, length);
+            System.arraycopy(from.min[v], src, to.min[v], dst, length);
+            System.arraycopy(from.max[v], src, to.max[v], dst, length);
+        }
+    }
+}
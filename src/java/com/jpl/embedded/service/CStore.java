@@ -5,36 +5,83 @@
 package com.jpl.embedded.service;
 
 import com.jpl.embedded.model.BeanHT;
+import com.jpl.embedded.model.BeanRollup;
+import com.jpl.embedded.model.BeanStats;
 import com.jpl.embedded.model.CSensor;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
- * CStore is a singleton that creates a connection to a database named xbeeBDD using JavaDB
+ * CStore is the HistoryStore on JavaDB, a singleton that creates a connection to a database named xbeeBDD using JavaDB
  * stored in /usr/java/jes7.0/samples/dist/run/xbeeBDD
  * 
  * A table 'history' is created the first time, with these fields:
- * id INTEGER, time TIMESTAMP, temp FLOAT, hum FLOAT
+ * id INTEGER, time TIMESTAMP, temp FLOAT, hum FLOAT, node BIGINT
+ * 
+ * node is the address of the XBee node that sent the measure, 0 for the antenna
+ * in transparent mode. Tables created before it existed are altered to add it.
+ * 
+ * Indexes on id, on time and on node, time, are created the first time, so  
+ * lookups and range queries don't scan the whole table. Tables, columns and 
+ * indexes are read from the metadata of the database on startup, and only the 
+ * missing ones are created.
+ * 
+ * Lists can be read as a List of BeanHT, or streamed row by row to a RowHandler
+ * while the cursor is read.
  * 
  * On undeploy, the connection is shutdown
  * 
- * On every statement execution, the connection is locked till is fullfilled, 
- * and no more attempts of access are processed.
- * This prevents errors when resolving simultaneous REST web requests
+ * Measures are recorded through a write-behind RecordQueue, that stores them 
+ * in batches, one transaction per batch. Bulk imports are stored with backfill,
+ * in batches too, skipping the measures already stored.
+ * 
+ * The last rows stored are kept in a RecentCache, that serves last, get and 
+ * list for recent ranges without reading the database
+ * 
+ * Summaries per minute, hour and day are kept in Rollups tables, updated with 
+ * every batch, to serve long ranges.
+ * 
+ * Connections are taken from a ConnectionPool: simultaneous REST web requests
+ * read in parallel, each one with its own connection, while the measures are 
+ * written with a dedicated connection, so writes don't block reads.
+ * When no connection is available after TIMEOUT milliseconds the request 
+ * gives up, with the same fallback values used when the database is empty.
+ * 
+ * The id of the last row stored and the time of the last change are kept in 
+ * memory, so clients can be told nothing changed without reading the database.
+ * 
+ * Number of rows, first and last times and last id, in total and per node, are
+ * kept in StoreStats, read once on startup and updated with every batch.
+ * 
+ * The time of every query, once its connection is acquired, is kept in Metrics.
+ * 
+ * Rows older than the retention periods set in Retention are purged every 
+ * hour by a background thread, in short chunks between the batches. Ranges
+ * purged from history table are still served by summary, from the rollups.
  * 
  * 
  * Modified by José Pereda Llamas
  * On 05-dic-2012 - 18:32:10
  */
-public class CStore {
+public class CStore implements HistoryStore {
 
     private final static String DB_DRIVER = "org.apache.derby.jdbc.EmbeddedDriver";
     private final static String DB_NAME = "xbeeBDD";
@@ -42,13 +89,45 @@ public class CStore {
     // Boot password must be at least 8 bytes long.
     private final static String DB_KEY = "jes12345";
     
-    private static boolean bddInUse=false;
-    public static final int TIMEOUT = 600; // 60 seconds
+    // miliseconds to wait for a connection, -Dstore.timeout
+    public static final long TIMEOUT = Long.getLong("store.timeout", 10000);
+    // reading connections, -Dstore.readers
+    public static final int READERS = Integer.getInteger("store.readers", 3);
+    // times of an imported batch looked up per query
+    private static final int PROBES = 100;
+    // minutes between purges of expired rows
+    private static final long PURGE_PERIOD = 60;
+    
+    // node value to list measures from all the nodes
+    public static final long ALL_NODES = -1;
+    
+    private final static String COLUMNS = "id, time, temp, hum, node";
+    // rows read at a time by the cursors of full ranges
+    private final static int FETCH_SIZE = 256;
+    // ids read by each statement of get(ids), padded so it's compiled once
+    private final static int IN_SIZE = 100;
     
     private static CStore instance;
 
-    private Connection connection;
-    private Statement statement;
+    private ConnectionPool pool;
+    private PreparedStatement insert;
+    private PreparedStatement lastId;
+    private RecordQueue queue;
+    private final RecentCache cache = new RecentCache();
+    private final Rollups rollups = new Rollups();
+    private final StoreStats stats = new StoreStats();
+    private ScheduledExecutorService purger;
+    
+    private static final Metrics.Histogram QUERY_GET = query("get");
+    private static final Metrics.Histogram QUERY_ITEMS = query("items");
+    private static final Metrics.Histogram QUERY_LAST = query("last");
+    private static final Metrics.Histogram QUERY_LIST = query("list");
+    private static final Metrics.Histogram QUERY_PAGE = query("page");
+    private static final Metrics.Histogram QUERY_SUMMARY = query("summary");
+    private static final Metrics.Histogram QUERY_BATCH = query("batch");
+    // id of the last row stored and time of the last change, for the http validators
+    private volatile long version;
+    private volatile long modified = System.currentTimeMillis();
 
     public static synchronized CStore getInstance() {
         if (instance == null) {
@@ -57,33 +136,207 @@ public class CStore {
         return instance;
     }
 
-    public static boolean isBddInUse() { return bddInUse; }
-   
     private CStore() {
         System.out.println("Creating database");
+        boolean rebuild = false;
+        Connection connection = null;
+        Statement statement = null;
         try {
             Class.forName(DB_DRIVER);
-	    connection = DriverManager.getConnection(DB_URL + ";create=true;bootPassword="+DB_KEY, null);
-            statement = connection.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE,ResultSet.CONCUR_READ_ONLY);
+            pool = new ConnectionPool(DB_URL + ";create=true;bootPassword="+DB_KEY, READERS);
+            connection = pool.acquireWriter(TIMEOUT);
+            statement = connection.createStatement();
         } catch (ClassNotFoundException cnfe) {
             System.out.println("Please put derby.jar in the classpath");
             System.exit(1);
         } catch (SQLException sqe) {
             sqe.printStackTrace();
         }
+        // the schema is read first, so the statements run only when something is missing
+        Set<String> tables = new HashSet<>();
+        Set<String> indexes = new HashSet<>();
         try {
-            statement.execute("CREATE TABLE history(id INTEGER NOT NULL GENERATED "
-                    + "ALWAYS AS IDENTITY (START WITH 1, INCREMENT BY 1), "
-                    + "time TIMESTAMP NOT NULL, " 
-                    + "temp FLOAT NOT NULL, " 
-                    + "hum FLOAT NOT NULL)");
-            System.out.println("Database created");
-        } catch (SQLException ignored) {
-            // ignore if already exist.
-            System.out.println("Database was already created");
-            // ignored.printStackTrace();
+            tables = tables(connection);
+            indexes = indexes(connection, tables);
+            if (!tables.contains("HISTORY")) {
+                statement.execute("CREATE TABLE history(id INTEGER NOT NULL GENERATED "
+                        + "ALWAYS AS IDENTITY (START WITH 1, INCREMENT BY 1), "
+                        + "time TIMESTAMP NOT NULL, " 
+                        + "temp FLOAT NOT NULL, " 
+                        + "hum FLOAT NOT NULL, "
+                        + "node BIGINT NOT NULL DEFAULT 0)");
+                System.out.println("Database created");
+            } else if (!hasColumn(connection, "HISTORY", "NODE")) {
+                statement.execute("ALTER TABLE history ADD COLUMN node BIGINT NOT NULL DEFAULT 0");
+                System.out.println("Database altered, node added");
+            } else {
+                System.out.println("Database was already created");
+            }
+        } catch (SQLException sqe) {
+            sqe.printStackTrace();
         }
+        createIndex(statement, indexes, "history_id", "CREATE UNIQUE INDEX history_id ON history(id)");
+        createIndex(statement, indexes, "history_time", "CREATE INDEX history_time ON history(time)");
+        createIndex(statement, indexes, "history_node_time", "CREATE INDEX history_node_time ON history(node, time)");
+        rebuild = rollups.create(statement, tables, indexes);
+        try {
+            statement.close();
+            insert = connection.prepareStatement("INSERT INTO history (time, temp, hum, node) VALUES (?, ?, ?, ?)");
+            lastId = connection.prepareStatement("VALUES IDENTITY_VAL_LOCAL()");
+            rollups.prepare(connection);
+            cache.load(connection);
+            stats.load(connection);
+            version = cache.lastId();
+        } catch (SQLException sqe) {
+            sqe.printStackTrace();
+        } finally {
+            pool.releaseWriter();
+        }
+        queue = new RecordQueue(this);
+        register(Metrics.getInstance());
+        if (rebuild) {
+            new Thread(new Runnable() {
+                @Override public void run() {
+                    rollups.rebuild(pool, TIMEOUT);
+                    modified = System.currentTimeMillis();
+                }
+            }, "Rollups").start();
+        }
+        if (Retention.enabled()) {
+            startPurger();
+        }
+    }
+
+    /*
+     * purges the expired rows now and then every PURGE_PERIOD minutes, in a daemon thread
+     */
+    private void startPurger() {
+        final Retention retention = new Retention(pool, TIMEOUT, stats, cache);
+        purger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Retention");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        purger.scheduleWithFixedDelay(new Runnable() {
+            @Override public void run() {
+                try {
+                    if (retention.purge() > 0) {
+                        modified = System.currentTimeMillis();
+                    }
+                } catch (RuntimeException re) {
+                    re.printStackTrace();
+                }
+            }
+        }, 1, PURGE_PERIOD, TimeUnit.MINUTES);
+        System.out.println("Retention of raw rows " + Retention.RAW + " days, minute summaries " 
+                + Retention.MINUTE + " days, hour summaries " + Retention.HOUR + " days (0: forever)");
+    }
 
+    private static Metrics.Histogram query(String name) {
+        return Metrics.getInstance().histogram("arduinofx_store_query_seconds", 
+                "Time reading or writing the database, once the connection is acquired", "query", name);
+    }
+    
+    /*
+     * gauges of the record queue, the cache and the stats, read when the metrics are written
+     */
+    private void register(Metrics metrics) {
+        metrics.gauge("arduinofx_queue_depth", "Measures waiting in the record queue", new Metrics.Gauge() {
+            @Override public double value() { return queue.getDepth(); }
+        });
+        metrics.counter("arduinofx_readings_dropped_total", "Measures read that were never stored", "reason", "queue_full", 
+                new Metrics.Gauge() {
+            @Override public double value() { return queue.getDropped(); }
+        });
+        metrics.counter("arduinofx_readings_dropped_total", "Measures read that were never stored", "reason", "store_failed", 
+                new Metrics.Gauge() {
+            @Override public double value() { return queue.getFailed(); }
+        });
+        metrics.counter("arduinofx_readings_stored_total", "Measures stored in history table", null, null, 
+                new Metrics.Gauge() {
+            @Override public double value() { return queue.getRecorded(); }
+        });
+        metrics.gauge("arduinofx_store_rows", "Rows in history table", new Metrics.Gauge() {
+            @Override public double value() { return stats.getCount(); }
+        });
+        metrics.gauge("arduinofx_pool_available", "Reading connections available", new Metrics.Gauge() {
+            @Override public double value() { return pool.available(); }
+        });
+        metrics.gauge("arduinofx_cache_rows", "Rows held by the cache of recent rows", new Metrics.Gauge() {
+            @Override public double value() { return cache.size(); }
+        });
+        metrics.counter("arduinofx_cache_requests_total", "Requests to the cache of recent rows", "result", "hit", 
+                new Metrics.Gauge() {
+            @Override public double value() { return cache.getHits(); }
+        });
+        metrics.counter("arduinofx_cache_requests_total", "Requests to the cache of recent rows", "result", "miss", 
+                new Metrics.Gauge() {
+            @Override public double value() { return cache.getMisses(); }
+        });
+    }
+
+    /*
+     * creates the index unless it's already in indexes
+     */
+    static void createIndex(Statement statement, Set<String> indexes, String name, String sql) {
+        if (indexes.contains(name.toUpperCase())) {
+            return;
+        }
+        try {
+            statement.execute(sql);
+            System.out.println("Index created: "+sql);
+        } catch (SQLException se) {
+            se.printStackTrace();
+        }
+    }
+
+    /*
+     * names of the tables of the database, in upper case
+     */
+    static Set<String> tables(Connection connection) throws SQLException {
+        Set<String> tables = new HashSet<>();
+        ResultSet resultset = connection.getMetaData().getTables(null, null, "%", new String[] { "TABLE" });
+        try {
+            while (resultset.next()) {
+                tables.add(resultset.getString("TABLE_NAME"));
+            }
+        } finally {
+            resultset.close();
+        }
+        return tables;
+    }
+
+    /*
+     * names of the indexes of the tables, in upper case
+     */
+    static Set<String> indexes(Connection connection, Set<String> tables) throws SQLException {
+        Set<String> indexes = new HashSet<>();
+        for (String table : tables) {
+            ResultSet resultset = connection.getMetaData().getIndexInfo(null, null, table, false, true);
+            try {
+                while (resultset.next()) {
+                    String name = resultset.getString("INDEX_NAME");
+                    if (name != null) {
+                        indexes.add(name);
+                    }
+                }
+            } finally {
+                resultset.close();
+            }
+        }
+        return indexes;
+    }
+
+    private static boolean hasColumn(Connection connection, String table, String column) throws SQLException {
+        ResultSet resultset = connection.getMetaData().getColumns(null, null, table, column);
+        try {
+            return resultset.next();
+        } finally {
+            resultset.close();
+        }
     }
 
     @Override
@@ -91,15 +344,19 @@ public class CStore {
         super.finalize();
         // cleanup 
         try {
-            if (statement != null) {
-                statement.close();
+            if (insert != null) {
+                insert.close();
             }
-            if (connection != null) {
-                connection.close();
+            if (lastId != null) {
+                lastId.close();
             }
+            rollups.close();
         } catch (SQLException se) {
             se.printStackTrace();
         }
+        if (pool != null) {
+            pool.close();
+        }
         // shutdown the database
         try {
             DriverManager.getConnection(DB_URL + ";shutdown=true");
@@ -113,104 +370,397 @@ public class CStore {
     }
 
     /*
-     * stores a beanHT id history table
+     * queues a beanHT to be stored in history table
+     * returns false if the queue is full and it was dropped
      */
-    public void record(BeanHT bean) {
-        String sz="INSERT INTO history (time, temp, hum) VALUES ('"
-                + new Timestamp(bean.getTime().getTimeInMillis()) +"', " +
-                (float)bean.getTemp() + ", " + (float)bean.getHum()+ ")";
-        try{  lock(); } catch(InterruptedException ie) {}
+    public boolean record(BeanHT bean) {
+        return queue.offer(bean);
+    }
+    
+    /*
+     * stores a batch of beanHT in history table, in one transaction. Returns the
+     * number stored, all of them or none
+     */
+    public int recordBatch(List<BeanHT> beans) {
+        return Math.max(0, store(beans, false));
+    }
+    
+    /*
+     * stores a batch of imported beanHT in history table, in one transaction, 
+     * skipping the ones with the node and time of a row already stored or of a 
+     * previous one of the batch. Returns the number stored, or -1 if the batch 
+     * couldn't be stored
+     */
+    public int backfill(List<BeanHT> beans) {
+        return store(beans, true);
+    }
+    
+    private int store(List<BeanHT> beans, boolean backfill) {
+        Connection connection = pool.acquireWriter(TIMEOUT);
+        if (connection == null) {
+            System.out.println("Database writer busy, "+beans.size()+" measures not "+(backfill?"imported":"stored"));
+            return -1;
+        }
+        long start = System.nanoTime();
         try {
-            statement.execute(sz);
+            connection.setAutoCommit(false);
+            if (backfill) {
+                beans = missing(connection, beans);
+                if (beans.isEmpty()) {
+                    connection.commit();
+                    return 0;
+                }
+            }
+            for(BeanHT bean : beans){
+                insert.setTimestamp(1, new Timestamp(bean.getTime().getTimeInMillis()));
+                insert.setFloat(2, (float)bean.getTemp());
+                insert.setFloat(3, (float)bean.getHum());
+                insert.setLong(4, bean.getNode());
+                insert.addBatch();
+            }
+            insert.executeBatch();
+            rollups.add(beans);
+            // the writer is the only connection inserting, so the ids of the batch are consecutive
+            int id = 0;
+            ResultSet resultset = lastId.executeQuery();
+            if (resultset.next()) {
+                id = resultset.getInt(1);
+            }
+            resultset.close();
+            connection.commit();
+            if (backfill) {
+                // rows older than the last ones stored aren't cached
+                long newest = Long.MIN_VALUE;
+                for(BeanHT bean : beans){
+                    newest = Math.max(newest, bean.getTime().getTimeInMillis());
+                }
+                cache.skip(newest);
+            } else {
+                int cached = id - beans.size();
+                for(BeanHT bean : beans){
+                    cache.add(++cached, bean.getNode(), bean.getTime().getTimeInMillis(), 
+                            (float)bean.getTemp(), (float)bean.getHum());
+                }
+            }
+            stats.add(beans, id);
+            version = id;
+            modified = System.currentTimeMillis();
+            return beans.size();
         } catch (SQLException se) {
             se.printStackTrace();
+            try {
+                connection.rollback();
+            } catch (SQLException ignored) {
+            }
+            return -1;
+        } finally {
+            try {
+                connection.setAutoCommit(true);
+            } catch (SQLException ignored) {
+            }
+            QUERY_BATCH.observeSince(start);
+            pool.releaseWriter();
+        }
+    }
+    
+    /*
+     * the beans without a row of the same node and time in history table, nor
+     * before them in the batch. The times of the batch are looked up through the
+     * index on node and time, PROBES at a time, so only the keys of the batch
+     * are kept, whatever the rows stored in its range
+     */
+    private static List<BeanHT> missing(Connection connection, List<BeanHT> beans) throws SQLException {
+        // times of each node not stored yet
+        Map<Long, Set<Long>> keys = new HashMap<>();
+        for(BeanHT bean : beans){
+            Set<Long> times = keys.get(bean.getNode());
+            if (times == null) {
+                times = new HashSet<>();
+                keys.put(bean.getNode(), times);
+            }
+            times.add(bean.getTime().getTimeInMillis());
+        }
+        for (Map.Entry<Long, Set<Long>> entry : keys.entrySet()) {
+            List<Long> times = new ArrayList<>(entry.getValue());
+            Collections.sort(times);
+            for (int from = 0; from < times.size(); from += PROBES) {
+                probe(connection, entry.getKey(), times.subList(from, Math.min(times.size(), from + PROBES)),
+                        entry.getValue());
+            }
+        }
+        List<BeanHT> missing = new ArrayList<>(beans.size());
+        for(BeanHT bean : beans){
+            if (keys.get(bean.getNode()).remove(bean.getTime().getTimeInMillis())) {
+                missing.add(bean);
+            }
+        }
+        return missing;
+    }
+    
+    /*
+     * removes from missing the times of the node already stored
+     */
+    private static void probe(Connection connection, long node, List<Long> times, Set<Long> missing) throws SQLException {
+        StringBuilder in = new StringBuilder();
+        for (int i = 0; i < times.size(); i++) {
+            in.append(i == 0 ? "?" : ",?");
+        }
+        PreparedStatement statement = connection.prepareStatement(
+                "SELECT time FROM history WHERE node=? AND time IN ("+in+")");
+        ResultSet resultset = null;
+        try {
+            statement.setLong(1, node);
+            for (int i = 0; i < times.size(); i++) {
+                statement.setTimestamp(i + 2, new Timestamp(times.get(i)));
+            }
+            resultset = statement.executeQuery();
+            while (resultset.next()) {
+                missing.remove(resultset.getTimestamp(1).getTime());
+            }
+        } finally {
+            close(resultset, statement);
+        }
+    }
+    
+    /*
+     * stores now every beanHT waiting in the queue
+     */
+    public void flush() {
+        queue.flush();
+    }
+    
+    /*
+     * flushes the queue and stops its writer, on undeploy
+     */
+    public void shutdown() {
+        if (purger != null) {
+            purger.shutdownNow();
         }
-        unlock();
+        queue.shutdown();
+    }
+    
+    public RecordQueue getQueue() {
+        return queue;
+    }
+    
+    public RecentCache getCache() {
+        return cache;
+    }
+    
+    /*
+     * id of the last row stored, read without the database
+     */
+    public long getVersion() {
+        return version;
+    }
+    
+    /*
+     * time of the last change of history or rollups tables, in milliseconds from 1970,
+     * or the time the store was created
+     */
+    public long getModified() {
+        return modified;
+    }
+    
+    /*
+     * rebuilds the summaries per minute, hour and day from history table
+     */
+    public void rebuildRollups() {
+        rollups.rebuild(pool, TIMEOUT);
+        modified = System.currentTimeMillis();
     }
     
     /*
      * get recorded beanHT number id
      */
     public BeanHT get(int id) {
-        BeanHT bean = null;
+        BeanHT bean = cache.get(id);
+        if (bean != null) {
+            return bean;
+        }
+        Connection connection = pool.acquire(TIMEOUT);
+        if (connection == null) {
+            return CSensor.getInstance().getLastBean();
+        }
+        long start = System.nanoTime();
+        PreparedStatement statement = null;
         ResultSet resultset = null;
-        try{  lock(); } catch(InterruptedException ie) {}
         try {
-            resultset = statement.executeQuery("SELECT * FROM history where id = " + id);
+            statement = ConnectionPool.prepare(connection, "SELECT * FROM history where id = ?");
+            statement.setInt(1, id);
+            resultset = statement.executeQuery();
             if (resultset.next()) {
                 Calendar cal=Calendar.getInstance();
                 cal.setTime(resultset.getTimestamp(2));
-                bean = new BeanHT(id, (double)resultset.getFloat(3),
+                bean = new BeanHT(id, resultset.getLong(5), (double)resultset.getFloat(3),
                         (double)resultset.getFloat(4), cal);
             }
         } catch (SQLException se) {
             se.printStackTrace();
         } finally {
-            try {
-                if (resultset != null) {
+            close(resultset, statement);
+            QUERY_GET.observeSince(start);
+            pool.release(connection);
+        }
+        return (bean==null?CSensor.getInstance().getLastBean():bean);
+    }
+
+    /*
+     * stream the rows with the ids, in the same order. The ones not in the cache
+     * are read with one connection, IN_SIZE at a time 
+     */
+    public void get(int[] ids, RowHandler handler) throws IOException {
+        Map<Integer, BeanHT> found = new HashMap<>();
+        Set<Integer> missing = new HashSet<>();
+        for (int id : ids) {
+            if (found.containsKey(id) || missing.contains(id)) {
+                continue;
+            }
+            BeanHT bean = cache.get(id);
+            if (bean != null) {
+                found.put(id, bean);
+            } else {
+                missing.add(id);
+            }
+        }
+        if (!missing.isEmpty()) {
+            read(new ArrayList<>(missing), found);
+        }
+        for (int id : ids) {
+            BeanHT bean = found.get(id);
+            if (bean != null) {
+                handler.row(id, bean.getNode(), bean.getTime().getTimeInMillis(), 
+                        (float) bean.getTemp(), (float) bean.getHum());
+            }
+        }
+    }
+
+    /*
+     * reads the rows with the ids into found
+     */
+    private void read(List<Integer> ids, final Map<Integer, BeanHT> found) throws IOException {
+        Connection connection = pool.acquire(TIMEOUT);
+        if (connection == null) {
+            System.out.println("Database busy, returning cached rows only");
+            return;
+        }
+        long start = System.nanoTime();
+        PreparedStatement statement = null;
+        StringBuilder in = new StringBuilder("?");
+        for (int i = 1; i < IN_SIZE; i++) {
+            in.append(",?");
+        }
+        RowHandler collect = new RowHandler() {
+            @Override
+            public void row(int id, long node, long time, float temp, float hum) {
+                Calendar cal = Calendar.getInstance();
+                cal.setTimeInMillis(time);
+                found.put(id, new BeanHT(id, node, temp, hum, cal));
+            }
+        };
+        try {
+            statement = ConnectionPool.prepare(connection, "SELECT "+COLUMNS+" FROM history WHERE id IN ("+in+")");
+            for (int from = 0; from < ids.size(); from += IN_SIZE) {
+                for (int i = 0; i < IN_SIZE; i++) {
+                    // the last id fills the rest
+                    statement.setInt(i + 1, ids.get(Math.min(from + i, ids.size() - 1)));
+                }
+                ResultSet resultset = statement.executeQuery();
+                try {
+                    while (resultset.next()) {
+                        row(resultset, collect);
+                    }
+                } finally {
                     resultset.close();
                 }
-            } catch (SQLException ignored) {
             }
+        } catch (SQLException se) {
+            se.printStackTrace();
+        } finally {
+            close(null, statement);
+            QUERY_ITEMS.observeSince(start);
+            pool.release(connection);
+        }
+    }
+
+    /*
+     * stream the rows with ids from from to to, in id order 
+     */
+    public void get(int from, int to, RowHandler handler) throws IOException {
+        Connection connection = pool.acquire(TIMEOUT);
+        if (connection == null) {
+            System.out.println("Database busy, returning empty list");
+            return;
+        }
+        long start = System.nanoTime();
+        PreparedStatement statement = null;
+        ResultSet resultset = null;
+        try {
+            statement = ConnectionPool.prepare(connection, "SELECT "+COLUMNS+" FROM history WHERE id>=? AND id<=? ORDER BY id");
+            statement.setFetchSize(FETCH_SIZE);
+            statement.setInt(1, from);
+            statement.setInt(2, to);
+            resultset = statement.executeQuery();
+            while (resultset.next()) {
+                row(resultset, handler);
+            }
+        } catch (SQLException se) {
+            se.printStackTrace();
+        } finally {
+            close(resultset, statement);
+            QUERY_ITEMS.observeSince(start);
+            pool.release(connection);
         }
-        unlock();
-        return (bean==null?CSensor.getInstance().getLastBean():bean);
     }
 
     /*
      * get last beanHT recorded 
      */
     public BeanHT last() {
-        BeanHT bean = null;
+        BeanHT bean = cache.last();
+        if (bean != null) {
+            return bean;
+        }
+        Connection connection = pool.acquire(TIMEOUT);
+        if (connection == null) {
+            return CSensor.getInstance().getLastBean();
+        }
+        long start = System.nanoTime();
+        PreparedStatement statement = null;
         ResultSet resultset = null;
-        try{  lock(); } catch(InterruptedException ie) {}
         try {
-            resultset = statement.executeQuery("SELECT * FROM history ORDER BY id DESC FETCH FIRST ROW ONLY");
+            statement = ConnectionPool.prepare(connection, "SELECT * FROM history ORDER BY id DESC FETCH FIRST ROW ONLY");
+            resultset = statement.executeQuery();
             if (resultset.next()) {
                 Calendar cal=Calendar.getInstance();
                 cal.setTime(resultset.getTimestamp(2));
-                bean = new BeanHT(1, (double)resultset.getFloat(3),
+                bean = new BeanHT(resultset.getInt(1), resultset.getLong(5), (double)resultset.getFloat(3),
                         (double)resultset.getFloat(4), cal);
             }
         } catch (SQLException se) {
             se.printStackTrace();
         } finally {
-            try {
-                if (resultset != null) {
-                    resultset.close();
-                }
-            } catch (SQLException ignored) {
-            }
+            close(resultset, statement);
+            QUERY_LAST.observeSince(start);
+            pool.release(connection);
         }
-        unlock();
         return (bean==null?CSensor.getInstance().getLastBean():bean);
     }
 
     
     /*
-     * get number of records in history table
+     * get number of records in history table, kept in memory by StoreStats
      */
-    public int count() {
-        int tam=0;
-        ResultSet resultset = null;
-        try{  lock(); } catch(InterruptedException ie) {}
-        try {
-            resultset = statement.executeQuery("SELECT count(*) FROM history");
-            if (resultset!=null && resultset.next()) {
-                tam = resultset.getInt(1);
-            }
-        } catch (SQLException se) {
-            se.printStackTrace();
-        } finally {
-            try {
-                if (resultset != null) {
-                    resultset.close();
-                }
-            } catch (SQLException ignored) {
-            }
-        }
-        unlock();
-        return tam;
+    public long count() {
+        return stats.getCount();
+    }
+
+    /*
+     * number of rows, first and last times and last id of the node, or of all
+     * the nodes with the stats of each one for ALL_NODES, without reading the database
+     */
+    public BeanStats stats(long node) {
+        return stats.get(node);
     }
     
     /*
@@ -221,83 +771,238 @@ public class CStore {
      
      */
     public List<BeanHT> list(int tam, long ini, long end) {
+        return list(ALL_NODES, tam, ini, end);
+    }
+    
+    /*
+     * return a list of BeanHT elements measured by one node, or by all of them with ALL_NODES
+     */
+    public List<BeanHT> list(long node, int tam, long ini, long end) {
+        BeanCollector collector = new BeanCollector();
+        try {
+            list(node, tam, ini, end, collector);
+        } catch (IOException ignored) {
+            // the collector doesn't throw it
+        }
+        return collector.list;
+    }
+    
+    /*
+     * stream the rows measured by one node, or by all of them with ALL_NODES, to the handler
+     * 
+     * If the range has no more than tam rows, all of them are returned. Otherwise
+     * the range is split in tam intervals of the same length, returning the first 
+     * row of each interval, so each one costs one index lookup and tam rows are 
+     * read at most, no matter how many rows the range has. 
+     * Intervals without rows are skipped.
+     * 
+     * Ranges fully held by the cache are served from it.
+     */
+    public void list(long node, int tam, long ini, long end, RowHandler handler) throws IOException {
+        if(tam<=0){
+            tam=100;
+        }            
+        List<BeanHT> cached = cache.list(node, tam, ini, end);
+        if (cached != null) {
+            for(BeanHT bean : cached){
+                handler.row(bean.getId(), bean.getNode(), bean.getTime().getTimeInMillis(), 
+                        (float)bean.getTemp(), (float)bean.getHum());
+            }
+            return;
+        }
+        Connection connection = pool.acquire(TIMEOUT);
+        if (connection == null) {
+            System.out.println("Database busy, returning empty list");
+            return;
+        }
+        long start = System.nanoTime();
+        String where=" WHERE time>=? AND time<=?"+(node==ALL_NODES?"":" AND node=?");
+        PreparedStatement statement = null;
         ResultSet resultset = null;
-        
-        Calendar calIni=Calendar.getInstance();
-        calIni.setTimeInMillis(ini);
-        
-        Calendar calEnd=Calendar.getInstance();
-        calEnd.setTimeInMillis(end);
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        
-        ArrayList<BeanHT> list = new ArrayList<>();
-        try{  lock(); } catch(InterruptedException ie) {}
         try {
-            System.out.println("Reading database");
-            resultset = statement.executeQuery("SELECT * FROM history WHERE time>='" + 
-                    sdf.format(calIni.getTime()) +"' AND time<='"+
-                    sdf.format(calEnd.getTime()) +"'"); 
+            // is there a row after the first tam ones?
+            statement = ConnectionPool.prepare(connection, "SELECT id FROM history"+where+
+                    " ORDER BY time OFFSET "+tam+" ROWS FETCH NEXT 1 ROWS ONLY"); 
+            setRange(statement, node, ini, end);
+            resultset = statement.executeQuery();
+            boolean sample = resultset.next();
+            close(resultset, statement);
+            resultset = null;
+            statement = null;
             
-            resultset.last();
-            int cont=resultset.getRow();
-            resultset.beforeFirst();
-            if(tam==0){
-                tam=100;
-            }            
-            int step=cont/tam;
-            System.out.println("List Size: "+cont+", Step: "+step);
-            cont=0;
-            while (resultset.next()) {
-                if(cont%step==0){
-                    Calendar cal=Calendar.getInstance();
-                    cal.setTime(resultset.getTimestamp(2));
-                    list.add(new BeanHT(
-                            resultset.getInt(1),
-                            (double)resultset.getFloat(3),
-                            (double)resultset.getFloat(4),
-                            cal));
+            if(!sample){
+                statement = ConnectionPool.prepare(connection, "SELECT "+COLUMNS+" FROM history"+where+" ORDER BY time"); 
+                setRange(statement, node, ini, end);
+                resultset = statement.executeQuery();
+                while (resultset.next()) {
+                    row(resultset, handler);
+                }
+            } else {
+                statement = ConnectionPool.prepare(connection, "SELECT "+COLUMNS+" FROM history"+
+                        where.replace("time<=?", "time<?")+" ORDER BY time"); 
+                statement.setMaxRows(1);
+                double step=(double)(end-ini)/tam;
+                for(int i=0; i<tam; i++){
+                    setRange(statement, node, ini+(long)(i*step), 
+                            (i==tam-1?end+1:ini+(long)((i+1)*step)));
+                    resultset = statement.executeQuery();
+                    if (resultset.next()) {
+                        row(resultset, handler);
+                    }
+                    resultset.close();
+                    resultset = null;
                 }
-                cont=cont+1;
             }
         } catch (SQLException se) {
             se.printStackTrace();
         } finally {
-            try {
-                if (resultset != null) {
-                    resultset.close();
-                }
-            } catch (SQLException ignored) {
+            close(resultset, statement);
+            QUERY_LIST.observeSince(start);
+            pool.release(connection);
+        }
+    }
+    
+    /*
+     * stream every row between ini and end measured by one node, or by all of them 
+     * with ALL_NODES, to the handler, in one pass of the cursor. They aren't sorted,
+     * but they come in time order when the range is read through an index.
+     * Throws IOException if the database is busy or the query fails, as the rows
+     * already passed are only part of the range
+     */
+    public void rows(long node, long ini, long end, RowHandler handler) throws IOException {
+        rows(node, ini, end, false, handler);
+    }
+
+    /*
+     * same rows, ordered by time if sorted: the time indexes give them in that 
+     * order, so Derby doesn't sort them
+     */
+    public void rows(long node, long ini, long end, boolean sorted, RowHandler handler) throws IOException {
+        Connection connection = pool.acquire(TIMEOUT);
+        if (connection == null) {
+            throw new IOException("Database busy, no connection in " + TIMEOUT + " ms");
+        }
+        long start = System.nanoTime();
+        PreparedStatement statement = null;
+        ResultSet resultset = null;
+        try {
+            statement = ConnectionPool.prepare(connection, "SELECT "+COLUMNS+" FROM history WHERE time>=? AND time<=?"+
+                    (node==ALL_NODES?"":" AND node=?")+(sorted?" ORDER BY time":"")); 
+            statement.setFetchSize(FETCH_SIZE);
+            setRange(statement, node, ini, end);
+            resultset = statement.executeQuery();
+            while (resultset.next()) {
+                row(resultset, handler);
+            }
+        } catch (SQLException se) {
+            throw new IOException("Rows between " + ini + " and " + end + " not read", se);
+        } finally {
+            close(resultset, statement);
+            QUERY_LIST.observeSince(start);
+            pool.release(connection);
+        }
+    }
+    
+    /*
+     * stream up to limit rows with id greater than after, in id order, measured by one 
+     * node or by all of them with ALL_NODES. 
+     * Clients page through history passing the last id read as the next after 
+     */
+    public void page(long node, int after, int limit, RowHandler handler) throws IOException {
+        Connection connection = pool.acquire(TIMEOUT);
+        if (connection == null) {
+            System.out.println("Database busy, returning empty page");
+            return;
+        }
+        long start = System.nanoTime();
+        PreparedStatement statement = null;
+        ResultSet resultset = null;
+        try {
+            statement = ConnectionPool.prepare(connection, "SELECT "+COLUMNS+" FROM history WHERE id>?"+
+                    (node==ALL_NODES?"":" AND node=?")+" ORDER BY id"); 
+            statement.setMaxRows(limit);
+            statement.setInt(1, after);
+            if(node!=ALL_NODES){
+                statement.setLong(2, node);
+            }
+            resultset = statement.executeQuery();
+            while (resultset.next()) {
+                row(resultset, handler);
             }
+        } catch (SQLException se) {
+            se.printStackTrace();
+        } finally {
+            close(resultset, statement);
+            QUERY_PAGE.observeSince(start);
+            pool.release(connection);
         }
-        unlock();
-        System.out.println("Returning list, size: "+list.size());
-        return list;
     }
     
-    private synchronized void lock() throws InterruptedException{
-        while(bddInUse){          
-            wait(); //wait strategy - related to notification strategy
+    private static void setRange(PreparedStatement statement, long node, long ini, long end) throws SQLException {
+        statement.setTimestamp(1, new Timestamp(ini));
+        statement.setTimestamp(2, new Timestamp(end));
+        if(node!=ALL_NODES){
+            statement.setLong(3, node);
         }
-        bddInUse = true;
     }
-
-    private synchronized void unlock(){
-        bddInUse = false;
-        notify(); //notification strategy
+    
+    /*
+     * pass the current row, selected with COLUMNS, to the handler
+     */
+    private static void row(ResultSet resultset, RowHandler handler) throws SQLException, IOException {
+        handler.row(resultset.getInt(1), resultset.getLong(5), resultset.getTimestamp(2).getTime(),
+                resultset.getFloat(3), resultset.getFloat(4));
+    }
+    
+    /*
+     * builds a list of BeanHT with the rows
+     */
+    private static class BeanCollector implements RowHandler {
+        
+        private final List<BeanHT> list = new ArrayList<>();
+        
+        @Override
+        public void row(int id, long node, long time, float temp, float hum) {
+            Calendar cal=Calendar.getInstance();
+            cal.setTimeInMillis(time);
+            list.add(new BeanHT(id, node, temp, hum, cal));
+        }
+    }
+    
+    /*
+     * return the summaries of the measures between ini and end, per day, hour or minute,
+     * using the coarsest interval that still gives tam summaries
+     */
+    public List<BeanRollup> summary(long node, int tam, long ini, long end) {
+        if(tam<=0){
+            tam=100;
+        }            
+        Connection connection = pool.acquire(TIMEOUT);
+        if (connection == null) {
+            System.out.println("Database busy, returning empty list");
+            return new ArrayList<>();
+        }
+        long start = System.nanoTime();
+        try {
+            return rollups.list(connection, node, tam, ini, end);
+        } catch (SQLException se) {
+            se.printStackTrace();
+            return new ArrayList<>();
+        } finally {
+            QUERY_SUMMARY.observeSince(start);
+            pool.release(connection);
+        }
     }
     
-    public static int waitForDatabase(String rest){
-        int cont=0;
-        while(isBddInUse()){
-            try{
-                Thread.sleep(100);
-                cont+=1;
-            } catch(InterruptedException ie) {}
-            if(cont>TIMEOUT){ 
-                return TIMEOUT;
-            }    
-        }
-        System.out.println(rest+" time access: "+(cont/10)+" s");
-        return cont;
+    private static void close(ResultSet resultset, Statement statement){
+        try {
+            if (resultset != null) {
+                resultset.close();
+            }
+            if (statement != null) {
+                statement.close();
+            }
+        } catch (SQLException ignored) {
+        }
     }
 }
@@ -0,0 +1,211 @@
+package com.jpl.embedded.service;
+
+import com.jpl.embedded.model.BeanHT;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Chooses which of the measures read from each node are stored, so the stored
+ * series still gives every measure within a tolerance, TEMP_TOLERANCE degrees
+ * (-Dxbee.tolerance.temp) and HUM_TOLERANCE % (-Dxbee.tolerance.hum):
+ *
+ * - none: every measure is stored
+ * - deadband: a measure is stored when its temperature or humidity differ from
+ *   the last one stored by more than the tolerance. Holding each stored value
+ *   till the next one gives every measure read within the tolerance
+ * - swingingdoor: the measures stored are the vertices of a polyline passing
+ *   within the tolerance of every measure read. The lines from the last one
+ *   stored through each measure since then, moved up and down by the tolerance,
+ *   bound the slopes that pass near all of them (the doors). The last measure
+ *   read is held while the line to it stays between the doors, and stored when
+ *   the line to the next one doesn't. Interpolating between the stored measures
+ *   gives every measure read within the tolerance
+ *
+ * Temperature and humidity are checked separately, and a measure is stored if
+ * any of them needs it. A measure is stored anyway MAX_GAP milliseconds after
+ * the last one stored of the node (-Dxbee.maxgap, 10 minutes by default), so
+ * a gap in the stored series means the node wasn't read.
+ *
+ * The measures read and stored are counted in Metrics, with their ratio.
+ *
+ * @author José Pereda Llamas
+ */
+public class Compressor {
+
+    public static final String NONE = "none";
+    public static final String DEADBAND = "deadband";
+    public static final String SWINGING_DOOR = "swingingdoor";
+
+    public static final double TEMP_TOLERANCE = Double.parseDouble(System.getProperty("xbee.tolerance.temp", "0.1"));
+    public static final double HUM_TOLERANCE = Double.parseDouble(System.getProperty("xbee.tolerance.hum", "0.5"));
+    public static final long MAX_GAP = Long.getLong("xbee.maxgap", 600000);
+
+    private static final Metrics.Counter READ = Metrics.getInstance().counter("arduinofx_compressor_readings_total",
+            "Measures offered to the compressor");
+    private static final Metrics.Counter STORED = Metrics.getInstance().counter("arduinofx_compressor_stored_total",
+            "Measures kept by the compressor to be stored");
+
+    private final String mode;
+    private final ConcurrentMap<Long, Door[]> nodes = new ConcurrentHashMap<>();
+
+    /*
+     * state of one variable of one node since the last measure stored
+     */
+    private static class Door {
+        final double tolerance;
+        // last measure stored
+        long time;
+        double value;
+        // lowest slope of the upper door and highest of the lower door
+        double upper;
+        double lower;
+
+        Door(double tolerance) {
+            this.tolerance = tolerance;
+        }
+
+        void store(long time, double value) {
+            this.time = time;
+            this.value = value;
+            upper = Double.POSITIVE_INFINITY;
+            lower = Double.NEGATIVE_INFINITY;
+        }
+
+        boolean outOfBand(double value) {
+            return Math.abs(value - this.value) > tolerance;
+        }
+
+        /*
+         * true if the line from the last measure stored to this one passes within
+         * the tolerance of every measure since then. Then narrows the doors with it
+         */
+        boolean fits(long time, double value) {
+            double dt = time - this.time;
+            if (dt <= 0) {
+                return !outOfBand(value);
+            }
+            double slope = (value - this.value) / dt;
+            boolean fits = slope >= lower && slope <= upper;
+            upper = Math.min(upper, (value + tolerance - this.value) / dt);
+            lower = Math.max(lower, (value - tolerance - this.value) / dt);
+            return fits;
+        }
+    }
+
+    /*
+     * measures read from each node and still not stored, in swingingdoor mode
+     */
+    private final ConcurrentMap<Long, BeanHT> held = new ConcurrentHashMap<>();
+
+    public Compressor(String mode) {
+        if (!DEADBAND.equals(mode) && !SWINGING_DOOR.equals(mode)) {
+            mode = NONE;
+        }
+        this.mode = mode;
+        Metrics.getInstance().gauge("arduinofx_compressor_ratio", "Measures read per measure stored",
+                new Metrics.Gauge() {
+            @Override public double value() { return getRatio(); }
+        });
+        System.out.println("Compressor " + this.mode + ", tolerance " + TEMP_TOLERANCE + " C, "
+                + HUM_TOLERANCE + " %, max gap " + MAX_GAP + " ms");
+    }
+
+    /*
+     * measures to be stored after this one, in time order: none, this one, or the
+     * one held before this one. Called from the reader thread
+     */
+    public List<BeanHT> offer(long node, double temp, double hum, long time) {
+        READ.inc();
+        List<BeanHT> stored = new ArrayList<>(1);
+        if (NONE.equals(mode)) {
+            stored.add(bean(node, temp, hum, time));
+            STORED.inc();
+            return stored;
+        }
+        Door[] doors = nodes.get(node);
+        if (doors == null) {
+            // first measure of the node
+            doors = new Door[] { new Door(TEMP_TOLERANCE), new Door(HUM_TOLERANCE) };
+            nodes.put(node, doors);
+            store(doors, stored, bean(node, temp, hum, time));
+            return stored;
+        }
+        synchronized (doors) {
+            boolean gap = time - doors[0].time >= MAX_GAP;
+            if (DEADBAND.equals(mode)) {
+                if (gap || doors[0].outOfBand(temp) || doors[1].outOfBand(hum)) {
+                    store(doors, stored, bean(node, temp, hum, time));
+                }
+                return stored;
+            }
+            // swinging door
+            BeanHT last = held.remove(node);
+            boolean fits = doors[0].fits(time, temp);
+            fits = doors[1].fits(time, hum) && fits;
+            if (last != null && (!fits || gap)) {
+                // the held one is the end of the last segment that fits
+                store(doors, stored, last);
+                doors[0].fits(time, temp);
+                doors[1].fits(time, hum);
+            }
+            BeanHT bean = bean(node, temp, hum, time);
+            if (gap && last == null) {
+                store(doors, stored, bean);
+            } else {
+                held.put(node, bean);
+            }
+        }
+        return stored;
+    }
+
+    private static void store(Door[] doors, List<BeanHT> stored, BeanHT bean) {
+        long time = bean.getTime().getTimeInMillis();
+        doors[0].store(time, bean.getTemp());
+        doors[1].store(time, bean.getHum());
+        stored.add(bean);
+        STORED.inc();
+    }
+
+    private static BeanHT bean(long node, double temp, double hum, long time) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(time);
+        return new BeanHT(0, node, temp, hum, cal);
+    }
+
+    /*
+     * the measures held, to be stored on shutdown so the series ends at the last one read
+     */
+    public List<BeanHT> flush() {
+        List<BeanHT> stored = new ArrayList<>();
+        for (Long node : held.keySet()) {
+            Door[] doors = nodes.get(node);
+            synchronized (doors) {
+                BeanHT bean = held.remove(node);
+                if (bean != null) {
+                    store(doors, stored, bean);
+                }
+            }
+        }
+        return stored;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    /*
+     * measures read per measure stored
+     */
+    public double getRatio() {
+        long stored = STORED.get();
+        return (stored == 0 ? 0 : (double) READ.get() / stored);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("mode=%s read=%d stored=%d ratio=%.1f", mode, READ.get(), STORED.get(), getRatio());
+    }
+}
@@ -0,0 +1,159 @@
+package com.jpl.embedded.service;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Small pool of connections to the embedded database.
+ *
+ * Reading connections are handed out to any number of threads, up to the size
+ * of the pool, so simultaneous REST requests run in parallel. They read
+ * committed data only, so a row of a batch rolled back is never served, waiting
+ * at most for the short transaction of one batch being written.
+ *
+ * There is one writing connection, owned by one thread at a time, so writes
+ * don't take connections from readers.
+ *
+ * Both acquire methods wait at most the given timeout, returning null when
+ * there is no connection available, so callers can give up instead of piling
+ * up behind a slow query. Queries prepared with prepare are cancelled after
+ * QUERY_TIMEOUT seconds (-Dstore.query.timeout), so neither a connection nor
+ * the request thread is held for longer.
+ *
+ * The time spent waiting for a connection and holding it, and the number of
+ * timeouts, are kept in Metrics.
+ *
+ * @author José Pereda Llamas
+ */
+public class ConnectionPool {
+
+    // seconds a query may run, -Dstore.query.timeout
+    public static final int QUERY_TIMEOUT = Integer.getInteger("store.query.timeout", 30);
+
+    private final BlockingQueue<Connection> readers;
+    private final List<Connection> all = new ArrayList<>();
+    private final Connection writer;
+    private final ReentrantLock writerLock = new ReentrantLock(true);
+
+    private static final Metrics.Histogram READER_WAIT = Metrics.getInstance().histogram("arduinofx_pool_wait_seconds",
+            "Time waiting for a database connection", "connection", "reader");
+    private static final Metrics.Histogram WRITER_WAIT = Metrics.getInstance().histogram("arduinofx_pool_wait_seconds",
+            "Time waiting for a database connection", "connection", "writer");
+    private static final Metrics.Histogram READER_HOLD = Metrics.getInstance().histogram("arduinofx_pool_hold_seconds",
+            "Time a database connection is held", "connection", "reader");
+    private static final Metrics.Histogram WRITER_HOLD = Metrics.getInstance().histogram("arduinofx_pool_hold_seconds",
+            "Time a database connection is held", "connection", "writer");
+    private static final Metrics.Counter READER_TIMEOUTS = Metrics.getInstance().counter("arduinofx_pool_timeouts_total",
+            "Requests that gave up waiting for a database connection", "connection", "reader");
+    private static final Metrics.Counter WRITER_TIMEOUTS = Metrics.getInstance().counter("arduinofx_pool_timeouts_total",
+            "Requests that gave up waiting for a database connection", "connection", "writer");
+
+    // time each thread acquired its reading connection, and the writer
+    private final ThreadLocal<long[]> acquired = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+    private long writerAcquired;
+
+    public ConnectionPool(String url, int size) throws SQLException {
+        writer = DriverManager.getConnection(url);
+        all.add(writer);
+        readers = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; i++) {
+            Connection connection = DriverManager.getConnection(url);
+            connection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+            connection.setReadOnly(true);
+            readers.add(connection);
+            all.add(connection);
+        }
+    }
+
+    /*
+     * prepares a query cancelled by the database, throwing SQLException, once
+     * it runs for QUERY_TIMEOUT seconds
+     */
+    public static PreparedStatement prepare(Connection connection, String sql) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(sql);
+        statement.setQueryTimeout(QUERY_TIMEOUT);
+        return statement;
+    }
+
+    /*
+     * returns a reading connection, or null if none was released in timeout milliseconds
+     */
+    public Connection acquire(long timeout) {
+        long start = System.nanoTime();
+        Connection connection = null;
+        try {
+            connection = readers.poll(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        long now = System.nanoTime();
+        READER_WAIT.observe(now - start);
+        if (connection == null) {
+            READER_TIMEOUTS.inc();
+        } else {
+            acquired.get()[0] = now;
+        }
+        return connection;
+    }
+
+    public void release(Connection connection) {
+        if (connection != null) {
+            READER_HOLD.observeSince(acquired.get()[0]);
+            readers.offer(connection);
+        }
+    }
+
+    /*
+     * returns the writing connection, or null if it wasn't released in timeout milliseconds
+     */
+    public Connection acquireWriter(long timeout) {
+        long start = System.nanoTime();
+        try {
+            if (writerLock.tryLock(timeout, TimeUnit.MILLISECONDS)) {
+                writerAcquired = System.nanoTime();
+                WRITER_WAIT.observe(writerAcquired - start);
+                return writer;
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        WRITER_WAIT.observeSince(start);
+        WRITER_TIMEOUTS.inc();
+        return null;
+    }
+
+    public void releaseWriter() {
+        WRITER_HOLD.observeSince(writerAcquired);
+        writerLock.unlock();
+    }
+
+    /*
+     * number of reading connections available right now
+     */
+    public int available() {
+        return readers.size();
+    }
+
+    public void close() {
+        for (Connection connection : all) {
+            try {
+                connection.close();
+            } catch (SQLException se) {
+                se.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,388 @@
+package com.jpl.embedded.service;
+
+import com.jpl.embedded.model.BeanHT;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Reduces the rows of a range to a series that keeps its shape on a chart, in
+ * one pass over the rows as they are read, in any order, with memory for tam
+ * intervals, whatever the number of rows:
+ *
+ * - first: the first row of each of tam intervals of the same length, as
+ *   HistoryStore.list does, for comparison
+ * - minmax: the rows with the minimum and maximum temperature and humidity of
+ *   each interval, so no spike or dip is lost (up to 4 rows per interval)
+ * - lttb: Largest-Triangle-Three-Buckets, for temperature and humidity: the row
+ *   of each interval that forms the largest triangle with the row chosen in the
+ *   previous interval and the average of the next one (up to 2 rows per
+ *   interval), plus the first and last rows of the range
+ *
+ * If the range has no more than tam rows, all of them are returned, as list does.
+ * Rows are returned in time order.
+ *
+ * The row of an interval farthest from a line is on the convex hull of its rows,
+ * so lttb keeps, for each interval and variable, its upper and lower hull only,
+ * up to MAX_HULL rows each: the hull of a noisy series has a few rows, and a
+ * longer one, as a smooth curve gives, is thinned dropping the rows closest to
+ * the line between their neighbours. The rows of every interval are chosen once
+ * the last row is read.
+ *
+ * @author José Pereda Llamas
+ */
+public class Downsampler implements RowHandler {
+
+    public static final String FIRST = "first";
+    public static final String MINMAX = "minmax";
+    public static final String LTTB = "lttb";
+
+    private static final int MAX_HULL = 32;
+    private static final int VARIABLES = 2;
+
+    private final String mode;
+    private final int tam;
+    private final long ini;
+    private final long end;
+    private final double step;
+    private final RowHandler handler;
+
+    // rows while there are no more than tam
+    private List<Row> rows = new ArrayList<>();
+    private final Bucket[] buckets;
+    private Row first;
+    private Row last;
+
+    /*
+     * one row of the range
+     */
+    private static class Row {
+        final int id;
+        final long node;
+        final long time;
+        final float temp;
+        final float hum;
+
+        Row(int id, long node, long time, float temp, float hum) {
+            this.id = id;
+            this.node = node;
+            this.time = time;
+            this.temp = temp;
+            this.hum = hum;
+        }
+
+        double value(int variable) {
+            return (variable == 0 ? temp : hum);
+        }
+    }
+
+    private static final Comparator<Row> BY_TIME = new Comparator<Row>() {
+        @Override public int compare(Row a, Row b) {
+            return (a.time < b.time ? -1 : (a.time > b.time ? 1 : Integer.compare(a.id, b.id)));
+        }
+    };
+
+    /*
+     * rows kept of one interval, for each variable
+     */
+    private static class Bucket {
+        long count;
+        double sumTime;
+        final double[] sum = new double[VARIABLES];
+        final Row[] min = new Row[VARIABLES];
+        final Row[] max = new Row[VARIABLES];
+        Hull[] upper;
+        Hull[] lower;
+        // rows chosen by lttb
+        final Row[] chosen = new Row[VARIABLES];
+    }
+
+    /*
+     * upper or lower convex hull of the rows of an interval, time against the
+     * value of one variable, in time order
+     */
+    private static class Hull {
+        final int variable;
+        // 1 for the upper hull, -1 for the lower
+        final int sign;
+        final List<Row> rows = new ArrayList<>();
+
+        Hull(int variable, int sign) {
+            this.variable = variable;
+            this.sign = sign;
+        }
+
+        /*
+         * how far q is out of the hull, beyond the line from a to b: positive if it's out
+         */
+        double out(Row a, Row b, Row q) {
+            double cross = (double) (b.time - a.time) * (q.value(variable) - a.value(variable))
+                    - (b.value(variable) - a.value(variable)) * (double) (q.time - a.time);
+            return sign * cross;
+        }
+
+        void add(Row row) {
+            int lo = 0, hi = rows.size();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (rows.get(mid).time <= row.time) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            int pos = lo;
+            if (pos > 0 && rows.get(pos - 1).time == row.time) {
+                // same time: keep the outermost value, or the first row
+                double outer = sign * (row.value(variable) - rows.get(pos - 1).value(variable));
+                if (outer < 0 || (outer == 0 && row.id > rows.get(pos - 1).id)) {
+                    return;
+                }
+                rows.remove(--pos);
+            } else if (pos > 0 && pos < rows.size() && out(rows.get(pos - 1), rows.get(pos), row) <= 0) {
+                return;
+            }
+            rows.add(pos, row);
+            while (pos >= 2 && out(rows.get(pos - 2), row, rows.get(pos - 1)) <= 0) {
+                rows.remove(--pos);
+            }
+            while (pos + 2 < rows.size() && out(row, rows.get(pos + 2), rows.get(pos + 1)) <= 0) {
+                rows.remove(pos + 1);
+            }
+            if (rows.size() > MAX_HULL) {
+                thin();
+            }
+        }
+
+        /*
+         * drops the inner row closest to the line between its neighbours
+         */
+        private void thin() {
+            int closest = 1;
+            double distance = Double.MAX_VALUE;
+            for (int i = 1; i < rows.size() - 1; i++) {
+                Row a = rows.get(i - 1), b = rows.get(i + 1);
+                double d = out(a, b, rows.get(i)) / (b.time - a.time);
+                if (d < distance) {
+                    distance = d;
+                    closest = i;
+                }
+            }
+            rows.remove(closest);
+        }
+    }
+
+    public Downsampler(String mode, int tam, long ini, long end, RowHandler handler) {
+        this.mode = (LTTB.equals(mode) || MINMAX.equals(mode) ? mode : FIRST);
+        this.tam = (tam <= 0 ? 100 : tam);
+        this.ini = ini;
+        this.end = end;
+        this.step = (double) (end - ini) / this.tam;
+        this.handler = handler;
+        this.buckets = new Bucket[this.tam];
+    }
+
+    public static boolean isMode(String mode) {
+        return FIRST.equals(mode) || MINMAX.equals(mode) || LTTB.equals(mode);
+    }
+
+    @Override
+    public void row(int id, long node, long time, float temp, float hum) {
+        if (time < ini || time > end) {
+            return;
+        }
+        Row row = new Row(id, node, time, temp, hum);
+        if (rows != null) {
+            rows.add(row);
+            if (rows.size() > tam) {
+                rows = null;
+            }
+        }
+        if (first == null || BY_TIME.compare(row, first) < 0) {
+            first = row;
+        }
+        if (last == null || BY_TIME.compare(row, last) > 0) {
+            last = row;
+        }
+        int index = bucket(time);
+        Bucket bucket = buckets[index];
+        if (bucket == null) {
+            bucket = new Bucket();
+            buckets[index] = bucket;
+        }
+        add(bucket, row);
+    }
+
+    /*
+     * interval of the time, with the same bounds as the intervals of list
+     */
+    private int bucket(long time) {
+        int bucket = (int) Math.min(tam - 1, (long) ((time - ini) / step));
+        if (bucket > 0 && time < ini + (long) (bucket * step)) {
+            bucket--;
+        } else if (bucket < tam - 1 && time >= ini + (long) ((bucket + 1) * step)) {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    private void add(Bucket bucket, Row row) {
+        bucket.count++;
+        bucket.sumTime += row.time - ini;
+        if (FIRST.equals(mode)) {
+            if (bucket.min[0] == null || BY_TIME.compare(row, bucket.min[0]) < 0) {
+                bucket.min[0] = row;
+            }
+            return;
+        }
+        for (int v = 0; v < VARIABLES; v++) {
+            double value = row.value(v);
+            bucket.sum[v] += value;
+            // ties keep the earliest row, whatever the order they are read
+            if (bucket.min[v] == null || value < bucket.min[v].value(v)
+                    || (value == bucket.min[v].value(v) && BY_TIME.compare(row, bucket.min[v]) < 0)) {
+                bucket.min[v] = row;
+            }
+            if (bucket.max[v] == null || value > bucket.max[v].value(v)
+                    || (value == bucket.max[v].value(v) && BY_TIME.compare(row, bucket.max[v]) < 0)) {
+                bucket.max[v] = row;
+            }
+        }
+        if (LTTB.equals(mode)) {
+            if (bucket.upper == null) {
+                bucket.upper = new Hull[] { new Hull(0, 1), new Hull(1, 1) };
+                bucket.lower = new Hull[] { new Hull(0, -1), new Hull(1, -1) };
+            }
+            for (int v = 0; v < VARIABLES; v++) {
+                bucket.upper[v].add(row);
+                bucket.lower[v].add(row);
+            }
+        }
+    }
+
+    /*
+     * sends the rows chosen to the handler, in time order. Returns the number of rows sent
+     */
+    public int close() throws IOException {
+        List<Row> out = new ArrayList<>();
+        if (rows != null) {
+            out.addAll(rows);
+            Collections.sort(out, BY_TIME);
+            return send(out);
+        }
+        if (LTTB.equals(mode)) {
+            for (int v = 0; v < VARIABLES; v++) {
+                choose(v);
+            }
+        }
+        for (Bucket bucket : buckets) {
+            if (bucket == null) {
+                continue;
+            }
+            List<Row> chosen = new ArrayList<>(4);
+            if (FIRST.equals(mode)) {
+                chosen.add(bucket.min[0]);
+            } else {
+                Row[][] candidates = (MINMAX.equals(mode) ? new Row[][] { bucket.min, bucket.max }
+                        : new Row[][] { bucket.chosen });
+                for (Row[] group : candidates) {
+                    for (Row row : group) {
+                        if (!chosen.contains(row)) {
+                            chosen.add(row);
+                        }
+                    }
+                }
+            }
+            Collections.sort(chosen, BY_TIME);
+            out.addAll(chosen);
+        }
+        if (LTTB.equals(mode)) {
+            // the range keeps its ends
+            if (!out.contains(first)) {
+                out.add(0, first);
+            }
+            if (!out.contains(last)) {
+                out.add(last);
+            }
+        }
+        return send(out);
+    }
+
+    /*
+     * chooses the row of each interval for the variable, from the first one on
+     */
+    private void choose(int v) {
+        Row previous = first;
+        int next = nextBucket(-1);
+        while (next >= 0) {
+            Bucket bucket = buckets[next];
+            next = nextBucket(next);
+            // average of the next interval, or the last row of the range
+            double time, value;
+            if (next >= 0) {
+                time = buckets[next].sumTime / buckets[next].count;
+                value = buckets[next].sum[v] / buckets[next].count;
+            } else {
+                time = last.time - ini;
+                value = last.value(v);
+            }
+            double ax = previous.time - ini, ay = previous.value(v);
+            Row best = null;
+            double area = -1;
+            for (Hull hull : new Hull[] { bucket.upper[v], bucket.lower[v] }) {
+                for (Row row : hull.rows) {
+                    double a = Math.abs((row.time - ini - ax) * (value - ay) - (row.value(v) - ay) * (time - ax));
+                    if (a > area || (a == area && BY_TIME.compare(row, best) < 0)) {
+                        area = a;
+                        best = row;
+                    }
+                }
+            }
+            bucket.chosen[v] = best;
+            previous = best;
+        }
+    }
+
+    private int nextBucket(int from) {
+        for (int i = from + 1; i < buckets.length; i++) {
+            if (buckets[i] != null) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int send(List<Row> out) throws IOException {
+        for (Row row : out) {
+            handler.row(row.id, row.node, row.time, row.temp, row.hum);
+        }
+        return out.size();
+    }
+
+    /*
+     * the rows chosen from the range of the store, as a list of BeanHT
+     */
+    public static List<BeanHT> list(HistoryStore store, String mode, long node, int tam, long ini, long end) {
+        final List<BeanHT> list = new ArrayList<>();
+        Downsampler downsampler = new Downsampler(mode, tam, ini, end, new RowHandler() {
+            @Override
+            public void row(int id, long node, long time, float temp, float hum) {
+                Calendar cal = Calendar.getInstance();
+                cal.setTimeInMillis(time);
+                list.add(new BeanHT(id, node, temp, hum, cal));
+            }
+        });
+        try {
+            store.rows(node, ini, end, downsampler);
+            downsampler.close();
+        } catch (IOException ioe) {
+            // the store is busy, as list does the list is empty
+            ioe.printStackTrace();
+            list.clear();
+        }
+        return list;
+    }
+}
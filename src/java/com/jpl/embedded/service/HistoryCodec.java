@@ -0,0 +1,196 @@
+package com.jpl.embedded.service;
+
+import com.jpl.embedded.model.BeanHT;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact columnar binary format for lists of history rows, served with the
+ * media type application/x-arduinofx-history.
+ *
+ * All the multibyte fixed size values are big-endian. varint is an unsigned
+ * LEB128 value (7 bits per byte, low bits first), zigzag is a signed value
+ * mapped to varint as (v << 1) ^ (v >> 63).
+ *
+ *   magic       4 bytes   'A' 'F' 'X' 'H'
+ *   version     1 byte    1
+ *   count       varint    number of rows, n
+ *   if n > 0:
+ *   id0         varint    id of the first row
+ *   time0       8 bytes   time of the first row, milliseconds from 1970
+ *   ids         n-1 zigzag, difference with the id of the previous row
+ *   times       n-1 zigzag, difference in milliseconds with the previous row
+ *   nodes       varint    number of different nodes, m, followed by m 8 bytes
+ *                         addresses, and then n varint indexes into them
+ *   temps       n 4 bytes IEEE 754 floats
+ *   hums        n 4 bytes IEEE 754 floats
+ *
+ * Rows are collected in primitive arrays as a RowHandler, then encoded. The
+ * decode method is the reference decoder.
+ *
+ * @author José Pereda Llamas
+ */
+public class HistoryCodec implements RowHandler {
+
+    public static final String MEDIA_TYPE = "application/x-arduinofx-history";
+    public static final int VERSION = 1;
+    private static final byte[] MAGIC = { 'A', 'F', 'X', 'H' };
+
+    private int size;
+    private int[] ids = new int[128];
+    private long[] times = new long[128];
+    private long[] nodes = new long[128];
+    private float[] temps = new float[128];
+    private float[] hums = new float[128];
+
+    @Override
+    public void row(int id, long node, long time, float temp, float hum) {
+        if (size == ids.length) {
+            int capacity = size * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            times = Arrays.copyOf(times, capacity);
+            nodes = Arrays.copyOf(nodes, capacity);
+            temps = Arrays.copyOf(temps, capacity);
+            hums = Arrays.copyOf(hums, capacity);
+        }
+        ids[size] = id;
+        times[size] = time;
+        nodes[size] = node;
+        temps[size] = temp;
+        hums[size] = hum;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /*
+     * writes the rows collected so far
+     */
+    public void encode(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        writeVarint(out, size);
+        if (size > 0) {
+            writeVarint(out, ids[0] & 0xffffffffL);
+            out.writeLong(times[0]);
+            for (int i = 1; i < size; i++) {
+                writeZigzag(out, (long) ids[i] - ids[i - 1]);
+            }
+            for (int i = 1; i < size; i++) {
+                writeZigzag(out, times[i] - times[i - 1]);
+            }
+            Map<Long, Integer> index = new HashMap<>();
+            List<Long> dictionary = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                if (!index.containsKey(nodes[i])) {
+                    index.put(nodes[i], dictionary.size());
+                    dictionary.add(nodes[i]);
+                }
+            }
+            writeVarint(out, dictionary.size());
+            for (Long node : dictionary) {
+                out.writeLong(node);
+            }
+            for (int i = 0; i < size; i++) {
+                writeVarint(out, index.get(nodes[i]));
+            }
+            for (int i = 0; i < size; i++) {
+                out.writeFloat(temps[i]);
+            }
+            for (int i = 0; i < size; i++) {
+                out.writeFloat(hums[i]);
+            }
+        }
+        out.flush();
+    }
+
+    /*
+     * reference decoder, reads a list encoded with encode
+     */
+    public static List<BeanHT> decode(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not an ArduinoFX history stream");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported version " + version);
+        }
+        int n = (int) readVarint(in);
+        List<BeanHT> list = new ArrayList<>(n);
+        if (n == 0) {
+            return list;
+        }
+        int[] id = new int[n];
+        long[] time = new long[n];
+        id[0] = (int) readVarint(in);
+        time[0] = in.readLong();
+        for (int i = 1; i < n; i++) {
+            id[i] = (int) (id[i - 1] + readZigzag(in));
+        }
+        for (int i = 1; i < n; i++) {
+            time[i] = time[i - 1] + readZigzag(in);
+        }
+        long[] dictionary = new long[(int) readVarint(in)];
+        for (int i = 0; i < dictionary.length; i++) {
+            dictionary[i] = in.readLong();
+        }
+        long[] node = new long[n];
+        for (int i = 0; i < n; i++) {
+            node[i] = dictionary[(int) readVarint(in)];
+        }
+        float[] temp = new float[n];
+        for (int i = 0; i < n; i++) {
+            temp[i] = in.readFloat();
+        }
+        for (int i = 0; i < n; i++) {
+            Calendar cal = Calendar.getInstance();
+            cal.setTimeInMillis(time[i]);
+            list.add(new BeanHT(id[i], node[i], temp[i], in.readFloat(), cal));
+        }
+        return list;
+    }
+
+    private static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static void writeZigzag(DataOutputStream out, long value) throws IOException {
+        writeVarint(out, (value << 1) ^ (value >> 63));
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static long readZigzag(DataInputStream in) throws IOException {
+        long value = readVarint(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,271 @@
+package com.jpl.embedded.service;
+
+import com.jpl.embedded.model.BeanHT;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bulk import of measures into a HistoryStore, to migrate history or to
+ * backfill the gaps left by an outage with the measures buffered by the nodes.
+ *
+ * The rows are read line by line, as CSV with a header naming the columns
+ * (node, time, temp and hum, others like id are ignored; without a header they
+ * are in that order), or as NDJSON, one object per line with the same fields:
+ *
+ * id,node,time,temp,hum
+ * 1,0,2012-12-14T15:26:09.000+01:00,21.5,45.0
+ *
+ * {"id":1,"node":0,"temp":21.5,"hum":45.0,"time":"2012-12-14T15:26:09.000+01:00"}
+ *
+ * time is in the format of the REST services or in milliseconds from 1970, and
+ * node is decimal or hexadecimal with 0x. So the exports can be imported back.
+ *
+ * Rows are stored with HistoryStore.backfill in batches of BATCH rows
+ * (-Dstore.import.batch), each one in its own short transaction, skipping the
+ * ones with the node and time of a row already stored, so importing the same
+ * file twice stores it once. Each batch is sorted by time before it is stored,
+ * so the rows already stored are looked up in order and the rows imported are
+ * stored in time order. Between batches the writer is free for the
+ * measures being read, so ingestion is never held for long, and the memory used
+ * doesn't depend on the size of the file. Invalid lines are counted and skipped.
+ *
+ * Only one import runs at a time. Rows imported are counted in Metrics.
+ *
+ * @author José Pereda Llamas
+ */
+public class HistoryImport {
+
+    public static final String CSV = "text/csv";
+    public static final String NDJSON = "application/x-ndjson";
+
+    public static final int BATCH = Integer.getInteger("store.import.batch", 1000);
+
+    private static final AtomicBoolean RUNNING = new AtomicBoolean();
+
+    // beans by time, the first ones first
+    static final Comparator<BeanHT> BY_TIME = new Comparator<BeanHT>() {
+        @Override public int compare(BeanHT a, BeanHT b) {
+            long ta = a.getTime().getTimeInMillis(), tb = b.getTime().getTimeInMillis();
+            return (ta < tb ? -1 : (ta > tb ? 1 : 0));
+        }
+    };
+
+    private static final Metrics.Counter STORED = imported("stored");
+    private static final Metrics.Counter DUPLICATE = imported("duplicate");
+    private static final Metrics.Counter INVALID = imported("invalid");
+
+    // invalid lines printed
+    private static final int MAX_PRINTED = 10;
+
+    private final HistoryStore store;
+    private final boolean csv;
+    private final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+    // columns of node, time, temp and hum in csv
+    private int[] columns = { 0, 1, 2, 3 };
+
+    private long lines;
+    private long stored;
+    private long duplicates;
+    private long invalid;
+    private long millis;
+    private boolean failed;
+
+    public HistoryImport(HistoryStore store, String format) {
+        this.store = store;
+        this.csv = !NDJSON.equals(format);
+    }
+
+    private static Metrics.Counter imported(String result) {
+        return Metrics.getInstance().counter("arduinofx_import_rows_total",
+                "Rows read by the bulk imports", "result", result);
+    }
+
+    /*
+     * imports every row of in. Returns false, without reading it, if another
+     * import is running
+     */
+    public boolean run(InputStream in) throws IOException {
+        if (!RUNNING.compareAndSet(false, true)) {
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, Charset.forName("UTF-8")));
+            List<BeanHT> batch = new ArrayList<>(BATCH);
+            String line;
+            while (!failed && (line = reader.readLine()) != null) {
+                lines++;
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (csv && lines == 1 && header(line)) {
+                    continue;
+                }
+                BeanHT bean = (csv ? parseCsv(line) : parseJson(line));
+                if (bean == null) {
+                    if (invalid++ < MAX_PRINTED) {
+                        System.out.println("Import, invalid line " + lines + ": " + line);
+                    }
+                    INVALID.inc();
+                    continue;
+                }
+                batch.add(bean);
+                if (batch.size() == BATCH) {
+                    store(batch);
+                    batch = new ArrayList<>(BATCH);
+                }
+            }
+            if (!failed && !batch.isEmpty()) {
+                store(batch);
+            }
+        } finally {
+            millis = System.currentTimeMillis() - start;
+            RUNNING.set(false);
+            System.out.println("Import " + this);
+        }
+        return true;
+    }
+
+    private void store(List<BeanHT> batch) {
+        Collections.sort(batch, BY_TIME);
+        int n = store.backfill(batch);
+        if (n < 0) {
+            // already stored rows are skipped when the file is imported again
+            failed = true;
+            return;
+        }
+        stored += n;
+        duplicates += batch.size() - n;
+        STORED.add(n);
+        DUPLICATE.add(batch.size() - n);
+    }
+
+    /*
+     * reads the columns from the header, if the line is one
+     */
+    private boolean header(String line) {
+        String[] names = line.split(",");
+        String first = (names.length == 0 ? "" : names[0].trim().replace("\"", ""));
+        if (first.isEmpty() || !Character.isLetter(first.charAt(0))) {
+            return false;
+        }
+        int[] found = { -1, -1, -1, -1 };
+        String[] fields = { "node", "time", "temp", "hum" };
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i].trim().replace("\"", "");
+            for (int f = 0; f < fields.length; f++) {
+                if (fields[f].equalsIgnoreCase(name)) {
+                    found[f] = i;
+                }
+            }
+        }
+        columns = found;
+        return true;
+    }
+
+    private BeanHT parseCsv(String line) {
+        String[] values = line.split(",");
+        String[] fields = new String[4];
+        for (int f = 0; f < fields.length; f++) {
+            int column = columns[f];
+            fields[f] = (column >= 0 && column < values.length ? values[column].trim().replace("\"", "") : null);
+        }
+        return bean(fields[0], fields[1], fields[2], fields[3]);
+    }
+
+    private BeanHT parseJson(String line) {
+        if (!line.startsWith("{")) {
+            return null;
+        }
+        return bean(field(line, "node"), field(line, "time"), field(line, "temp"), field(line, "hum"));
+    }
+
+    /*
+     * value of the field of a flat json object, without quotes, or null
+     */
+    private static String field(String json, String name) {
+        int i = json.indexOf("\"" + name + "\"");
+        if (i < 0) {
+            return null;
+        }
+        i = json.indexOf(':', i + name.length() + 2);
+        if (i < 0) {
+            return null;
+        }
+        i++;
+        while (i < json.length() && json.charAt(i) == ' ') {
+            i++;
+        }
+        if (i < json.length() && json.charAt(i) == '"') {
+            int end = json.indexOf('"', i + 1);
+            return (end < 0 ? null : json.substring(i + 1, end));
+        }
+        int end = i;
+        while (end < json.length() && json.charAt(end) != ',' && json.charAt(end) != '}') {
+            end++;
+        }
+        return json.substring(i, end).trim();
+    }
+
+    /*
+     * the measure of the fields, or null if any is invalid. node is 0 if missing
+     */
+    private BeanHT bean(String node, String time, String temp, String hum) {
+        if (time == null || temp == null || hum == null) {
+            return null;
+        }
+        try {
+            long address = 0;
+            if (node != null && !node.isEmpty()) {
+                address = (node.startsWith("0x") ? Long.parseLong(node.substring(2), 16) : Long.parseLong(node));
+            }
+            Calendar cal = Calendar.getInstance();
+            cal.setTimeInMillis(time(time));
+            double t = Double.parseDouble(temp);
+            double h = Double.parseDouble(hum);
+            if (Double.isNaN(t) || Double.isNaN(h)) {
+                return null;
+            }
+            return new BeanHT(0, address, t, h, cal);
+        } catch (NumberFormatException | ParseException e) {
+            return null;
+        }
+    }
+
+    private long time(String time) throws ParseException {
+        boolean digits = !time.isEmpty();
+        for (int i = 0; i < time.length() && digits; i++) {
+            digits = Character.isDigit(time.charAt(i));
+        }
+        return (digits ? Long.parseLong(time) : sdf.parse(time).getTime());
+    }
+
+    /*
+     * rows stored per second
+     */
+    public double getRate() {
+        return (millis == 0 ? 0 : stored * 1000.0 / millis);
+    }
+
+    public boolean isFailed() {
+        return failed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d lines, %d rows stored, %d duplicates, %d invalid in %d ms, %.0f rows/s",
+                failed ? "stopped, a batch couldn't be stored" : "done", lines, stored, duplicates, invalid, millis, getRate());
+    }
+}
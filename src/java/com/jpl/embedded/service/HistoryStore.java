@@ -0,0 +1,131 @@
+package com.jpl.embedded.service;
+
+import com.jpl.embedded.model.BeanHT;
+import com.jpl.embedded.model.BeanRollup;
+import com.jpl.embedded.model.BeanStats;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Storage of the measures read, as used by the REST services and the XBee
+ * scheduler. Implemented by CStore, on the embedded JavaDB database, and by
+ * SegmentStore, on memory mapped files. Storage.getInstance() returns the one
+ * selected with -Dstore.engine
+ *
+ * Rows have consecutive ids from 1, in the order they were stored. node is
+ * CStore.ALL_NODES to read the measures of every node.
+ *
+ * @author José Pereda Llamas
+ */
+public interface HistoryStore {
+
+    /*
+     * queues a beanHT to be stored, returns false if the queue is full and it was dropped
+     */
+    boolean record(BeanHT bean);
+
+    /*
+     * stores a batch of beanHT, called by the RecordQueue writer. Returns the
+     * number stored, the first ones of the batch: the rest weren't stored
+     */
+    int recordBatch(List<BeanHT> beans);
+
+    /*
+     * stores a batch of imported beanHT, skipping the ones with the node and time
+     * of a row already stored or of a previous one of the batch. Returns the number
+     * stored, or -1 if the batch couldn't be stored
+     */
+    int backfill(List<BeanHT> beans);
+
+    /*
+     * stores now every beanHT waiting in the queue
+     */
+    void flush();
+
+    /*
+     * flushes the queue and stops its writer, on undeploy
+     */
+    void shutdown();
+
+    /*
+     * beanHT stored number id, or the last one read if there is no such row
+     */
+    BeanHT get(int id);
+
+    /*
+     * streams the rows stored with the ids, in the order given, skipping the ids
+     * not stored, reading the ones not cached at once
+     */
+    void get(int[] ids, RowHandler handler) throws IOException;
+
+    /*
+     * streams the rows stored with ids from from to to, in id order
+     */
+    void get(int from, int to, RowHandler handler) throws IOException;
+
+    /*
+     * last beanHT stored, or the last one read if nothing is stored
+     */
+    BeanHT last();
+
+    /*
+     * number of rows stored, kept in memory
+     */
+    long count();
+
+    /*
+     * number of rows, first and last times and last id of the node, or of all
+     * the nodes with the stats of each one for ALL_NODES
+     */
+    BeanStats stats(long node);
+
+    /*
+     * rows between ini and end, the first one of each of tam intervals if there are more
+     */
+    List<BeanHT> list(long node, int tam, long ini, long end);
+
+    /*
+     * same rows as list, streamed to the handler
+     */
+    void list(long node, int tam, long ini, long end, RowHandler handler) throws IOException;
+
+    /*
+     * streams every row between ini and end to the handler, in one pass and in
+     * no particular order, as a Downsampler reads them. Throws IOException if
+     * they can't all be read
+     */
+    void rows(long node, long ini, long end, RowHandler handler) throws IOException;
+
+    /*
+     * same rows as rows, in time order if sorted
+     */
+    void rows(long node, long ini, long end, boolean sorted, RowHandler handler) throws IOException;
+
+    /*
+     * up to limit rows with id greater than after, in id order
+     */
+    void page(long node, int after, int limit, RowHandler handler) throws IOException;
+
+    /*
+     * summaries of the measures between ini and end, per day, hour or minute,
+     * using the coarsest interval that still gives tam summaries
+     */
+    List<BeanRollup> summary(long node, int tam, long ini, long end);
+
+    /*
+     * id of the last row stored
+     */
+    long getVersion();
+
+    /*
+     * time of the last change, in milliseconds from 1970
+     */
+    long getModified();
+
+    RecordQueue getQueue();
+
+    /*
+     * cache of recent rows, null if the store has none
+     */
+    RecentCache getCache();
+}
@@ -0,0 +1,327 @@
+package com.jpl.embedded.service;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Broadcast of the measures read from the serial port to the live subscribers,
+ * kept in memory, without reading the database.
+ *
+ * publish only offers the measure to a bounded queue, so the serial reader
+ * never waits. A dispatcher thread formats each measure once as json and hands
+ * it to every subscriber's own bounded queue, drained by a small pool of writer
+ * threads. A slow subscriber only delays itself: when its queue is full the
+ * oldest measure is dropped, and after MAX_OVERFLOWS drops without catching up
+ * it is disconnected.
+ *
+ * Writes to the clients block, so a watchdog checks every subscriber being sent
+ * to: one whose send takes more than SEND_TIMEOUT milliseconds (-Dlive.send.timeout)
+ * is disconnected, and another writer thread is started in place of the one it
+ * holds, up to MAX_STALLED of them, so stalled sockets never hold every writer
+ * (-Dlive.writers) and the rest of the subscribers keep getting the measures.
+ * The extra thread stops when the stalled send returns.
+ *
+ * Each measure gets a version number, increasing by one, so long-polling
+ * clients can ask for measures newer than the last one they got.
+ *
+ * @author José Pereda Llamas
+ */
+public class LiveFeed implements Runnable {
+
+    public interface Subscriber {
+        /*
+         * send the measure, returning false when the subscriber is closed
+         */
+        boolean send(long version, String json) throws IOException;
+
+        /*
+         * called when the subscriber is disconnected for being too slow
+         */
+        void close();
+    }
+
+    private static final int EVENTS = 1024;
+    private static final int PENDING = 16;
+    private static final int MAX_OVERFLOWS = 64;
+    private static final int WRITERS = Integer.getInteger("live.writers", 4);
+    private static final long SEND_TIMEOUT = Long.getLong("live.send.timeout", 5000);
+    private static final int MAX_STALLED = Integer.getInteger("live.writers.stalled", 16);
+
+    private static LiveFeed instance;
+
+    private final BlockingQueue<Event> events = new ArrayBlockingQueue<>(EVENTS);
+    private final Set<Slot> slots = Collections.newSetFromMap(new ConcurrentHashMap<Slot, Boolean>());
+    private final ThreadPoolExecutor writers;
+    private final ScheduledExecutorService watchdog;
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong disconnected = new AtomicLong();
+    // writers held by stalled sends, replaced by new ones
+    private int stalled;
+    private final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+
+    private volatile long latestVersion;
+    private volatile String latestJson;
+
+    public static synchronized LiveFeed getInstance() {
+        if (instance == null) {
+            instance = new LiveFeed();
+        }
+        return instance;
+    }
+
+    private LiveFeed() {
+        ThreadFactory daemons = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "LiveFeed");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        writers = new ThreadPoolExecutor(WRITERS, WRITERS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), daemons);
+        daemons.newThread(this).start();
+        watchdog = Executors.newSingleThreadScheduledExecutor(daemons);
+        long period = Math.max(1, SEND_TIMEOUT / 4);
+        watchdog.scheduleWithFixedDelay(new Runnable() {
+            @Override public void run() {
+                check();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+        Metrics.getInstance().gauge("arduinofx_live_subscribers", "Clients receiving live measures", new Metrics.Gauge() {
+            @Override public double value() { return slots.size(); }
+        });
+        Metrics.getInstance().counter("arduinofx_live_dropped_total", "Live measures dropped for slow subscribers", 
+                null, null, new Metrics.Gauge() {
+            @Override public double value() { return dropped.get(); }
+        });
+        Metrics.getInstance().counter("arduinofx_live_stalled_total", "Live subscribers disconnected for a stalled send",
+                null, null, new Metrics.Gauge() {
+            @Override public double value() { return disconnected.get(); }
+        });
+    }
+
+    private static class Event {
+        final long version;
+        final long node;
+        final double temp;
+        final double hum;
+        final long time;
+
+        Event(long version, long node, double temp, double hum, long time) {
+            this.version = version;
+            this.node = node;
+            this.temp = temp;
+            this.hum = hum;
+            this.time = time;
+        }
+    }
+
+    private static class Message {
+        final long version;
+        final String json;
+
+        Message(long version, String json) {
+            this.version = version;
+            this.json = json;
+        }
+    }
+
+    /*
+     * queue a measure to be sent to the subscribers, without blocking
+     */
+    public void publish(long node, double temp, double hum, long time) {
+        if (!events.offer(new Event(version.incrementAndGet(), node, temp, hum, time))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Event event;
+            try {
+                event = events.take();
+            } catch (InterruptedException ie) {
+                return;
+            }
+            String json = "{\"node\":" + event.node + ",\"temp\":" + event.temp + ",\"hum\":" + event.hum
+                    + ",\"time\":\"" + sdf.format(new Date(event.time)) + "\"}";
+            latestJson = json;
+            latestVersion = event.version;
+            Message message = new Message(event.version, json);
+            for (Slot slot : slots) {
+                slot.offer(message);
+            }
+        }
+    }
+
+    public void subscribe(Subscriber subscriber) {
+        slots.add(new Slot(subscriber));
+    }
+
+    public void unsubscribe(Subscriber subscriber) {
+        for (Slot slot : slots) {
+            if (slot.subscriber == subscriber) {
+                slots.remove(slot);
+            }
+        }
+    }
+
+    /*
+     * disconnects the subscribers whose send takes too long, replacing the writer
+     * each one holds. The slot is locked while its writer is replaced, so the writer
+     * returning from the send either finds it replaced or is never replaced
+     */
+    private void check() {
+        long now = System.nanoTime();
+        for (Slot slot : slots) {
+            long since = slot.sending;
+            if (since == 0 || now - since <= TimeUnit.MILLISECONDS.toNanos(SEND_TIMEOUT)) {
+                continue;
+            }
+            synchronized (slot) {
+                if (slot.sending != since || !slots.remove(slot)) {
+                    continue;
+                }
+                slot.stalled = resize(1);
+            }
+            disconnected.incrementAndGet();
+            System.out.println("Live subscriber stalled for " + SEND_TIMEOUT + " ms, disconnected");
+            slot.subscriber.close();
+        }
+    }
+
+    /*
+     * adds or removes writers, returning true if they were added
+     */
+    private boolean resize(int delta) {
+        synchronized (writers) {
+            if (delta > 0 && stalled >= MAX_STALLED) {
+                return false;
+            }
+            stalled += delta;
+            int size = WRITERS + stalled;
+            if (delta > 0) {
+                writers.setMaximumPoolSize(size);
+                writers.setCorePoolSize(size);
+            } else {
+                writers.setCorePoolSize(size);
+                writers.setMaximumPoolSize(size);
+            }
+            return true;
+        }
+    }
+
+    /*
+     * version of the last measure dispatched, 0 if none yet
+     */
+    public long getLatestVersion() {
+        return latestVersion;
+    }
+
+    /*
+     * json of the last measure dispatched, null if none yet
+     */
+    public String getLatestJson() {
+        return latestJson;
+    }
+
+    public int getSubscribers() {
+        return slots.size();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /*
+     * pending measures of one subscriber, written by one writer thread at a time
+     */
+    private class Slot implements Runnable {
+
+        final Subscriber subscriber;
+        final BlockingQueue<Message> pending = new ArrayBlockingQueue<>(PENDING);
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        // measures dropped since the queue was last emptied
+        final AtomicInteger overflows = new AtomicInteger();
+        // start of the send in progress, in nanoseconds, 0 if none
+        volatile long sending;
+        // the writer sending was replaced by the watchdog
+        volatile boolean stalled;
+
+        Slot(Subscriber subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        void offer(Message message) {
+            while (!pending.offer(message)) {
+                pending.poll();
+                dropped.incrementAndGet();
+                if (overflows.incrementAndGet() > MAX_OVERFLOWS) {
+                    System.out.println("Live subscriber too slow, disconnected");
+                    slots.remove(this);
+                    subscriber.close();
+                    return;
+                }
+            }
+            schedule();
+        }
+
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                writers.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            Message message;
+            while ((message = pending.poll()) != null) {
+                boolean open;
+                boolean replaced;
+                sending = System.nanoTime();
+                try {
+                    open = subscriber.send(message.version, message.json);
+                } catch (IOException e) {
+                    open = false;
+                } finally {
+                    synchronized (this) {
+                        sending = 0;
+                        replaced = stalled;
+                    }
+                }
+                if (replaced) {
+                    // disconnected while sending, this thread was replaced
+                    resize(-1);
+                    return;
+                }
+                if (!open || !slots.contains(this)) {
+                    slots.remove(this);
+                    return;
+                }
+            }
+            overflows.set(0);
+            scheduled.set(false);
+            if (!pending.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+}
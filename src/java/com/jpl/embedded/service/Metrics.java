@@ -0,0 +1,218 @@
+package com.jpl.embedded.service;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Registry of the metrics of the ingestion and query pipeline, exported in the
+ * Prometheus text format (version 0.0.4).
+ *
+ * Counters and histograms are updated with atomic increments only, without
+ * locks nor allocations, so they can be used in the hot paths. Histograms
+ * take durations in nanoseconds and count them in fixed buckets, from 100
+ * microseconds to 10 seconds.
+ *
+ * Metrics are registered once, usually in static fields, and then updated
+ * directly. Values already kept elsewhere (queue depth, cache size...) are
+ * registered as gauges read when the metrics are written.
+ *
+ * @author José Pereda Llamas
+ */
+public class Metrics {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4";
+
+    // upper bounds of the histogram buckets, in seconds
+    private static final String[] BOUNDS = { "0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005",
+        "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10" };
+
+    private static Metrics instance;
+
+    private final List<Family> families = new CopyOnWriteArrayList<>();
+    private final ConcurrentMap<String, Family> names = new ConcurrentHashMap<>();
+
+    public static synchronized Metrics getInstance() {
+        if (instance == null) {
+            instance = new Metrics();
+        }
+        return instance;
+    }
+
+    private Metrics() {
+    }
+
+    /*
+     * value read when the metrics are written
+     */
+    public interface Gauge {
+        double value();
+    }
+
+    public static class Counter {
+        private final AtomicLong value = new AtomicLong();
+
+        public void inc() {
+            value.incrementAndGet();
+        }
+
+        public void add(long n) {
+            value.addAndGet(n);
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    public static class Histogram {
+        private static final long[] LIMITS = new long[BOUNDS.length];
+        static {
+            for (int i = 0; i < BOUNDS.length; i++) {
+                LIMITS[i] = (long) (Double.parseDouble(BOUNDS[i]) * 1e9);
+            }
+        }
+
+        // last bucket counts the values over the last bound
+        private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+        private final AtomicLong sum = new AtomicLong();
+
+        public void observe(long nanos) {
+            int i = 0;
+            while (i < LIMITS.length && nanos > LIMITS[i]) {
+                i++;
+            }
+            buckets.incrementAndGet(i);
+            sum.addAndGet(nanos);
+        }
+
+        /*
+         * observe the time elapsed since start, taken with System.nanoTime()
+         */
+        public void observeSince(long start) {
+            observe(System.nanoTime() - start);
+        }
+    }
+
+    /*
+     * metrics with the same name and help, one for each value of the label
+     */
+    private static class Family {
+        final String name;
+        final String help;
+        final String type;
+        final List<Object[]> children = new CopyOnWriteArrayList<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = names.get(name);
+        if (family == null) {
+            Family created = new Family(name, help, type);
+            family = names.putIfAbsent(name, created);
+            if (family == null) {
+                family = created;
+                families.add(created);
+            }
+        }
+        return family;
+    }
+
+    /*
+     * metric of the family with the given labels, "name=\"value\"", created if it
+     * doesn't exist
+     */
+    private synchronized Object child(Family family, String labels, Object metric) {
+        for (Object[] child : family.children) {
+            if (child[0].equals(labels)) {
+                return child[1];
+            }
+        }
+        family.children.add(new Object[] { labels, metric });
+        return metric;
+    }
+
+    private static String labels(String label, String value) {
+        return (label == null ? "" : label + "=\"" + value + "\"");
+    }
+
+    public Counter counter(String name, String help) {
+        return counter(name, help, null, null);
+    }
+
+    public Counter counter(String name, String help, String label, String value) {
+        return (Counter) child(family(name, help, "counter"), labels(label, value), new Counter());
+    }
+
+    public Histogram histogram(String name, String help, String label, String value) {
+        return (Histogram) child(family(name, help, "histogram"), labels(label, value), new Histogram());
+    }
+
+    public void gauge(String name, String help, Gauge gauge) {
+        gauge(name, help, null, null, gauge);
+    }
+
+    public void gauge(String name, String help, String label, String value, Gauge gauge) {
+        child(family(name, help, "gauge"), labels(label, value), gauge);
+    }
+
+    /*
+     * counter kept elsewhere, read when the metrics are written
+     */
+    public void counter(String name, String help, String label, String value, Gauge gauge) {
+        child(family(name, help, "counter"), labels(label, value), gauge);
+    }
+
+    /*
+     * writes every metric in Prometheus text format
+     */
+    public void write(Writer out) throws IOException {
+        for (Family family : families) {
+            out.write("# HELP " + family.name + " " + family.help + "\n");
+            out.write("# TYPE " + family.name + " " + family.type + "\n");
+            for (Object[] child : family.children) {
+                String labels = (String) child[0];
+                Object metric = child[1];
+                if (metric instanceof Counter) {
+                    sample(out, family.name, labels, ((Counter) metric).get());
+                } else if (metric instanceof Gauge) {
+                    sample(out, family.name, labels, ((Gauge) metric).value());
+                } else if (metric instanceof Histogram) {
+                    histogram(out, family.name, labels, (Histogram) metric);
+                }
+            }
+        }
+        out.flush();
+    }
+
+    private static void histogram(Writer out, String name, String labels, Histogram histogram) throws IOException {
+        String prefix = (labels.isEmpty() ? "" : labels + ",");
+        long count = 0;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            count += histogram.buckets.get(i);
+            sample(out, name + "_bucket", prefix + "le=\"" + BOUNDS[i] + "\"", count);
+        }
+        count += histogram.buckets.get(BOUNDS.length);
+        sample(out, name + "_bucket", prefix + "le=\"+Inf\"", count);
+        sample(out, name + "_sum", labels, histogram.sum.get() / 1e9);
+        sample(out, name + "_count", labels, count);
+    }
+
+    private static void sample(Writer out, String name, String labels, long value) throws IOException {
+        out.write(name + (labels.isEmpty() ? "" : "{" + labels + "}") + " " + value + "\n");
+    }
+
+    private static void sample(Writer out, String name, String labels, double value) throws IOException {
+        out.write(name + (labels.isEmpty() ? "" : "{" + labels + "}") + " " + value + "\n");
+    }
+}
@@ -0,0 +1,288 @@
+package com.jpl.embedded.service;
+
+import com.jpl.embedded.model.BeanHT;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ring buffer with the last CAPACITY rows stored in history table, kept in
+ * primitive arrays, so the most common requests (last measure, recent ids and
+ * lists of the last hours) are served without reading the database.
+ *
+ * It is loaded from the database on startup and fed with every batch stored
+ * by the record queue.
+ *
+ * The cache holds every row with time after floor: older rows may have been
+ * evicted, so only ranges starting after floor are served from it. Rows are
+ * kept in id order, which isn't always time order: the compressor stores the
+ * point held for a node after newer points of other nodes.
+ *
+ * Rows purged from history table after their retention period are dropped.
+ * Rows imported are not added, and ranges overlapping them are read from the
+ * database.
+ *
+ * Capacity can be set with -Dstore.cache
+ *
+ * @author José Pereda Llamas
+ */
+public class RecentCache {
+
+    public static final int CAPACITY = Integer.getInteger("store.cache", 4096);
+
+    private final int[] ids = new int[CAPACITY];
+    private final long[] times = new long[CAPACITY];
+    private final long[] nodes = new long[CAPACITY];
+    private final float[] temps = new float[CAPACITY];
+    private final float[] hums = new float[CAPACITY];
+
+    // index of the oldest row, and number of rows
+    private int head;
+    private int size;
+    // every row with a time greater than floor is in the cache
+    private long floor = Long.MIN_VALUE;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /*
+     * load the last CAPACITY rows from history table
+     */
+    void load(Connection connection) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(
+                "SELECT id, time, temp, hum, node FROM history ORDER BY id DESC");
+        statement.setMaxRows(CAPACITY);
+        ResultSet resultset = statement.executeQuery();
+        synchronized (this) {
+            // rows come newest first, fill the ring backwards
+            int n = 0;
+            try {
+                while (resultset.next()) {
+                    int index = CAPACITY - 1 - n++;
+                    ids[index] = resultset.getInt(1);
+                    times[index] = resultset.getTimestamp(2).getTime();
+                    temps[index] = resultset.getFloat(3);
+                    hums[index] = resultset.getFloat(4);
+                    nodes[index] = resultset.getLong(5);
+                }
+            } finally {
+                resultset.close();
+                statement.close();
+            }
+            size = n;
+            head = (CAPACITY - n) % CAPACITY;
+        }
+        if (size == CAPACITY) {
+            floor(connection);
+        }
+        System.out.println("Cache loaded, " + size + " rows");
+    }
+
+    /*
+     * older rows than the ones loaded exist, and some may be newer than the oldest 
+     * row loaded: floor is the newest time among them. Only the rows from the time 
+     * of the oldest row loaded on are looked at, through the time index
+     */
+    private void floor(Connection connection) throws SQLException {
+        long oldest;
+        int id;
+        synchronized (this) {
+            oldest = times[head];
+            id = ids[head];
+        }
+        PreparedStatement statement = connection.prepareStatement(
+                "SELECT MAX(time) FROM history --DERBY-PROPERTIES index=history_time\n"
+                + " WHERE time>=? AND id<?");
+        statement.setTimestamp(1, new Timestamp(oldest));
+        statement.setInt(2, id);
+        ResultSet resultset = statement.executeQuery();
+        try {
+            Timestamp newest = (resultset.next() ? resultset.getTimestamp(1) : null);
+            synchronized (this) {
+                floor = Math.max(floor, (newest == null ? oldest : newest.getTime()));
+            }
+        } finally {
+            resultset.close();
+            statement.close();
+        }
+    }
+
+    /*
+     * add a row just stored, evicting the oldest one if the cache is full
+     */
+    synchronized void add(int id, long node, long time, float temp, float hum) {
+        int index;
+        if (size == CAPACITY) {
+            index = head;
+            if (times[head] > floor) {
+                floor = times[head];
+            }
+            head = (head + 1) % CAPACITY;
+        } else {
+            index = (head + size) % CAPACITY;
+            size++;
+        }
+        ids[index] = id;
+        nodes[index] = node;
+        times[index] = time;
+        temps[index] = temp;
+        hums[index] = hum;
+    }
+
+    /*
+     * a row older than the last ones was stored without being added, so ranges 
+     * from its time on are no longer served from the cache
+     */
+    synchronized void skip(long time) {
+        if (time > floor) {
+            floor = time;
+        }
+    }
+
+    /*
+     * drop the rows with a time before cutoff, once purged from history table. 
+     * They aren't always the oldest ids, so the ones left are moved together
+     */
+    synchronized void purge(long cutoff) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            int from = (head + i) % CAPACITY;
+            if (times[from] < cutoff) {
+                continue;
+            }
+            int to = (head + kept++) % CAPACITY;
+            if (to != from) {
+                ids[to] = ids[from];
+                nodes[to] = nodes[from];
+                times[to] = times[from];
+                temps[to] = temps[from];
+                hums[to] = hums[from];
+            }
+        }
+        size = kept;
+    }
+
+    /*
+     * last row stored, or null if the cache is empty
+     */
+    public synchronized BeanHT last() {
+        if (size == 0) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return bean((head + size - 1) % CAPACITY);
+    }
+
+    /*
+     * row number id, or null if it isn't in the cache
+     */
+    public synchronized BeanHT get(int id) {
+        // ids are stored in ascending order, maybe with gaps
+        int lo = 0, hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int value = ids[(head + mid) % CAPACITY];
+            if (value < id) {
+                lo = mid + 1;
+            } else if (value > id) {
+                hi = mid - 1;
+            } else {
+                hits.incrementAndGet();
+                return bean((head + mid) % CAPACITY);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /*
+     * same list as CStore.list, or null if the range starts before the cached rows
+     */
+    public synchronized List<BeanHT> list(long node, int tam, long ini, long end) {
+        if (ini <= floor || size == 0) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        Integer[] matching = new Integer[size];
+        int cont = 0;
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) % CAPACITY;
+            if (matches(index, node, ini, end)) {
+                matching[cont++] = index;
+            }
+        }
+        // in time order, as CStore.list returns them
+        Arrays.sort(matching, 0, cont, byTime);
+        List<BeanHT> list = new ArrayList<>();
+        double step = (double) (end - ini) / tam;
+        long lastBucket = -1;
+        for (int i = 0; i < cont; i++) {
+            int index = matching[i];
+            if (cont > tam) {
+                // first row of each interval, as CStore.list does
+                long bucket = Math.min(tam - 1, (long) ((times[index] - ini) / step));
+                if (bucket <= lastBucket) {
+                    continue;
+                }
+                lastBucket = bucket;
+            }
+            list.add(bean(index));
+        }
+        return list;
+    }
+
+    private final Comparator<Integer> byTime = new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+            int c = Long.compare(times[a], times[b]);
+            return (c != 0 ? c : Integer.compare(ids[a], ids[b]));
+        }
+    };
+
+    private boolean matches(int index, long node, long ini, long end) {
+        return times[index] >= ini && times[index] <= end
+                && (node == CStore.ALL_NODES || nodes[index] == node);
+    }
+
+    private BeanHT bean(int index) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(times[index]);
+        return new BeanHT(ids[index], nodes[index], temps[index], hums[index], cal);
+    }
+
+    /*
+     * id of the last row stored, 0 if the cache is empty
+     */
+    synchronized int lastId() {
+        return (size == 0 ? 0 : ids[(head + size - 1) % CAPACITY]);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        long h = hits.get(), m = misses.get();
+        return String.format("size=%d capacity=%d hits=%d misses=%d hitRatio=%.2f",
+                size(), CAPACITY, h, m, (h + m == 0 ? 0 : (double) h / (h + m)));
+    }
+}
@@ -0,0 +1,216 @@
+package com.jpl.embedded.service;
+
+import com.jpl.embedded.model.BeanHT;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind queue for the measures to be stored in database.
+ *
+ * HistoryStore.record only offers the measure to this bounded queue, and a single
+ * writer thread groups them, flushing a batch in one transaction when it has
+ * BATCH measures or FLUSH_INTERVAL milliseconds after the first one arrived,
+ * so the SD card pays one commit per batch instead of one per measure.
+ *
+ * When the queue is full the measure is dropped and counted, so the serial
+ * reader never waits for the database.
+ *
+ * A batch not stored, or stored in part, because the writer connection timed
+ * out or the transaction was rolled back, is tried again up to RETRIES times,
+ * FLUSH_INTERVAL milliseconds apart, while new measures wait in the queue. The
+ * measures still not stored are logged and counted as failed, apart from the
+ * ones recorded.
+ *
+ * Sizes can be tuned with -Dstore.queue.capacity, -Dstore.queue.batch,
+ * -Dstore.queue.interval (milliseconds) and -Dstore.queue.retries
+ *
+ * @author José Pereda Llamas
+ */
+public class RecordQueue implements Runnable {
+
+    public static final int CAPACITY = Integer.getInteger("store.queue.capacity", 1000);
+    public static final int BATCH = Integer.getInteger("store.queue.batch", 100);
+    public static final long FLUSH_INTERVAL = Long.getLong("store.queue.interval", 1000);
+    public static final int RETRIES = Integer.getInteger("store.queue.retries", 3);
+
+    private final HistoryStore store;
+    private final BlockingQueue<BeanHT> queue = new ArrayBlockingQueue<>(CAPACITY);
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private volatile long lastFlushNanos;
+    private volatile long maxFlushNanos;
+    private final AtomicLong totalFlushNanos = new AtomicLong();
+
+    RecordQueue(HistoryStore store) {
+        this.store = store;
+        writer = new Thread(this, "RecordQueue");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /*
+     * queue the measure, without blocking. Returns false if it was dropped
+     */
+    public boolean offer(BeanHT bean) {
+        if (queue.offer(bean)) {
+            return true;
+        }
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    @Override
+    public void run() {
+        List<BeanHT> batch = new ArrayList<>(BATCH);
+        while (running) {
+            try {
+                BeanHT first = queue.poll(FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL);
+                while (batch.size() < BATCH) {
+                    queue.drainTo(batch, BATCH - batch.size());
+                    long wait = deadline - System.nanoTime();
+                    if (batch.size() >= BATCH || wait <= 0) {
+                        break;
+                    }
+                    BeanHT next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException ie) {
+                // flush what was taken
+            }
+            flush(batch);
+        }
+    }
+
+    /*
+     * store synchronously every measure waiting in the queue
+     */
+    public synchronized void flush() {
+        List<BeanHT> batch = new ArrayList<>(BATCH);
+        while (queue.drainTo(batch, BATCH) > 0) {
+            flush(batch);
+        }
+    }
+
+    /*
+     * stop the writer thread, once the queue is empty
+     */
+    public void shutdown() {
+        // no interrupt, Derby may close the database if its IO is interrupted,
+        // the writer notices within FLUSH_INTERVAL
+        running = false;
+        try {
+            writer.join(FLUSH_INTERVAL * 3);
+        } catch (InterruptedException ie) {
+        }
+        flush();
+        System.out.println("Record queue closed, " + recorded.get() + " measures stored, "
+                + dropped.get() + " dropped, " + failed.get() + " failed");
+    }
+
+    private synchronized void flush(List<BeanHT> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        int stored = store(batch);
+        long time = System.nanoTime() - start;
+
+        recorded.addAndGet(stored);
+        if (stored < batch.size()) {
+            failed.addAndGet(batch.size() - stored);
+            System.out.println("Record queue, " + (batch.size() - stored) + " measures not stored after "
+                    + (RETRIES + 1) + " attempts");
+        }
+        flushes.incrementAndGet();
+        totalFlushNanos.addAndGet(time);
+        lastFlushNanos = time;
+        if (time > maxFlushNanos) {
+            maxFlushNanos = time;
+        }
+        batch.clear();
+    }
+
+    /*
+     * stores the batch, trying again the measures not stored. Returns the number stored
+     */
+    private int store(List<BeanHT> batch) {
+        int stored = 0;
+        for (int attempt = 0; attempt <= RETRIES; attempt++) {
+            if (attempt > 0) {
+                System.out.println("Record queue, storing " + (batch.size() - stored) + " measures again");
+                try {
+                    Thread.sleep(FLUSH_INTERVAL);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            stored += Math.max(0, store.recordBatch(stored == 0 ? batch : batch.subList(stored, batch.size())));
+            if (stored >= batch.size()) {
+                break;
+            }
+        }
+        return stored;
+    }
+
+    public int getDepth() {
+        return queue.size();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getRecorded() {
+        return recorded.get();
+    }
+
+    /*
+     * measures not stored after every attempt
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    public double getLastFlushMillis() {
+        return lastFlushNanos / 1e6;
+    }
+
+    public double getMaxFlushMillis() {
+        return maxFlushNanos / 1e6;
+    }
+
+    public double getAvgFlushMillis() {
+        long n = flushes.get();
+        return n == 0 ? 0 : totalFlushNanos.get() / 1e6 / n;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("depth=%d capacity=%d recorded=%d dropped=%d failed=%d flushes=%d "
+                + "lastFlush=%.1fms avgFlush=%.1fms maxFlush=%.1fms",
+                getDepth(), CAPACITY, getRecorded(), getDropped(), getFailed(), getFlushes(),
+                getLastFlushMillis(), getAvgFlushMillis(), getMaxFlushMillis());
+    }
+}
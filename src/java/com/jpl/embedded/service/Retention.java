@@ -0,0 +1,215 @@
+package com.jpl.embedded.service;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Expiry of the measures older than the retention periods, in days:
+ *
+ * - raw rows of history table, -Dstore.retention.raw
+ * - summaries per minute, -Dstore.retention.minute
+ * - summaries per hour, -Dstore.retention.hour
+ *
+ * 0, the default, keeps them forever. Summaries per day are always kept, so
+ * with raw rows kept for 30 days the whole history can still be summarized.
+ *
+ * Periods end at the start of a day, so the rows left of the oldest day are
+ * complete and its summaries can still be rebuilt from them.
+ *
+ * Derby can't drop part of a table, so old rows are deleted in chunks of
+ * CHUNK rows, each one in its own short transaction of the writer connection.
+ * The writer lock is fair, so the batches of the record queue waiting for it
+ * are stored between chunks, and ingestion is never held for long.
+ *
+ * @author José Pereda Llamas
+ */
+public class Retention {
+
+    public static final long RAW = Long.getLong("store.retention.raw", 0);
+    public static final long MINUTE = Long.getLong("store.retention.minute", 0);
+    public static final long HOUR = Long.getLong("store.retention.hour", 0);
+
+    // rows deleted per transaction
+    private static final int CHUNK = 1000;
+
+    private static final Metrics.Counter PURGED_RAW = purged("history");
+    private static final Metrics.Counter PURGED_MINUTE = purged("history_minute");
+    private static final Metrics.Counter PURGED_HOUR = purged("history_hour");
+
+    private final ConnectionPool pool;
+    private final long timeout;
+    private final StoreStats stats;
+    private final RecentCache cache;
+
+    Retention(ConnectionPool pool, long timeout, StoreStats stats, RecentCache cache) {
+        this.pool = pool;
+        this.timeout = timeout;
+        this.stats = stats;
+        this.cache = cache;
+    }
+
+    static Metrics.Counter purged(String table) {
+        return Metrics.getInstance().counter("arduinofx_store_purged_rows_total",
+                "Rows deleted after their retention period", "table", table);
+    }
+
+    /*
+     * true if any table has a retention period
+     */
+    public static boolean enabled() {
+        return RAW > 0 || MINUTE > 0 || HOUR > 0;
+    }
+
+    /*
+     * start of the first day kept with a retention of the given days, or
+     * Long.MIN_VALUE to keep every row
+     */
+    static long cutoff(long days, long now) {
+        if (days <= 0) {
+            return Long.MIN_VALUE;
+        }
+        return Rollups.bucket(now - days * Rollups.DAY, Rollups.DAY);
+    }
+
+    /*
+     * deletes every expired row. Returns the number of rows deleted
+     */
+    long purge() {
+        long start = System.currentTimeMillis();
+        long raw = purge("history", "time", cutoff(RAW, start), PURGED_RAW);
+        long minute = purge("history_minute", "bucket", cutoff(MINUTE, start), PURGED_MINUTE);
+        long hour = purge("history_hour", "bucket", cutoff(HOUR, start), PURGED_HOUR);
+        if (raw + minute + hour > 0) {
+            System.out.println("Purged " + raw + " rows, " + minute + " minute and " + hour
+                    + " hour summaries in " + (System.currentTimeMillis() - start) + " ms");
+        }
+        return raw + minute + hour;
+    }
+
+    /*
+     * deletes the rows of table with column before cutoff, CHUNK rows per transaction
+     */
+    private long purge(String table, String column, long cutoff, Metrics.Counter counter) {
+        if (cutoff == Long.MIN_VALUE) {
+            return 0;
+        }
+        boolean history = "history".equals(table);
+        long deleted = 0;
+        boolean more = true;
+        while (more) {
+            Connection writer = pool.acquireWriter(timeout);
+            if (writer == null) {
+                System.out.println("Database writer busy, purge of " + table + " delayed");
+                return deleted;
+            }
+            Map<Long, Long> counts = null;
+            int rows = 0;
+            try {
+                writer.setAutoCommit(false);
+                // time of the last row of the chunk, or cutoff if fewer rows are left
+                long end = cutoff;
+                PreparedStatement statement = writer.prepareStatement("SELECT " + column + " FROM " + table
+                        + " WHERE " + column + "<? ORDER BY " + column + " OFFSET " + CHUNK
+                        + " ROWS FETCH NEXT ROW ONLY");
+                try {
+                    statement.setTimestamp(1, new Timestamp(cutoff));
+                    ResultSet resultset = statement.executeQuery();
+                    if (resultset.next()) {
+                        end = Math.min(cutoff, resultset.getTimestamp(1).getTime() + 1);
+                    }
+                    resultset.close();
+                } finally {
+                    statement.close();
+                }
+                more = end < cutoff;
+                if (history) {
+                    counts = count(writer, end);
+                }
+                statement = writer.prepareStatement("DELETE FROM " + table + " WHERE " + column + "<?");
+                try {
+                    statement.setTimestamp(1, new Timestamp(end));
+                    rows = statement.executeUpdate();
+                } finally {
+                    statement.close();
+                }
+                writer.commit();
+            } catch (SQLException se) {
+                se.printStackTrace();
+                try {
+                    writer.rollback();
+                } catch (SQLException ignored) {
+                }
+                return deleted;
+            } finally {
+                try {
+                    writer.setAutoCommit(true);
+                } catch (SQLException ignored) {
+                }
+                pool.releaseWriter();
+            }
+            if (history && rows > 0) {
+                cache.purge(cutoff);
+                firsts(stats.remove(counts));
+            }
+            counter.add(rows);
+            deleted += rows;
+        }
+        return deleted;
+    }
+
+    /*
+     * rows of each node in history before end
+     */
+    private static Map<Long, Long> count(Connection connection, long end) throws SQLException {
+        Map<Long, Long> counts = new HashMap<>();
+        PreparedStatement statement = connection.prepareStatement(
+                "SELECT node, COUNT(*) FROM history WHERE time<? GROUP BY node");
+        try {
+            statement.setTimestamp(1, new Timestamp(end));
+            ResultSet resultset = statement.executeQuery();
+            while (resultset.next()) {
+                counts.put(resultset.getLong(1), resultset.getLong(2));
+            }
+            resultset.close();
+        } finally {
+            statement.close();
+        }
+        return counts;
+    }
+
+    /*
+     * reads the time of the first row left of each node
+     */
+    private void firsts(Iterable<Long> nodes) {
+        Connection connection = pool.acquire(timeout);
+        if (connection == null) {
+            System.out.println("Database busy, stats not updated after purge");
+            return;
+        }
+        try {
+            PreparedStatement statement = connection.prepareStatement(
+                    "SELECT time FROM history WHERE node=? ORDER BY time FETCH FIRST ROW ONLY");
+            try {
+                for (long node : nodes) {
+                    statement.setLong(1, node);
+                    ResultSet resultset = statement.executeQuery();
+                    if (resultset.next()) {
+                        stats.first(node, resultset.getTimestamp(1).getTime());
+                    }
+                    resultset.close();
+                }
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException se) {
+            se.printStackTrace();
+        } finally {
+            pool.release(connection);
+        }
+    }
+}
@@ -0,0 +1,470 @@
+package com.jpl.embedded.service;
+
+import com.jpl.embedded.model.BeanHT;
+import com.jpl.embedded.model.BeanRollup;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * Summaries of history table per minute, hour and day, stored in the tables
+ * history_minute, history_hour and history_day with these fields:
+ * node BIGINT, bucket TIMESTAMP, cnt INTEGER, tmin FLOAT, tmax FLOAT, tsum DOUBLE,
+ * hmin FLOAT, hmax FLOAT, hsum DOUBLE
+ *
+ * They are updated in the same transaction that stores each batch of measures,
+ * and rebuilt from history when they are created. Summaries older than the
+ * first row of history, purged by Retention, are kept when rebuilding. The
+ * progress of a rebuild is kept in rollups_rebuild (done_id INTEGER, last_id INTEGER),
+ * the last id summarized and the last one to summarize, so it's resumed if it
+ * doesn't end.
+ *
+ * Long ranges are listed from the coarsest table that still has tam intervals,
+ * so their cost doesn't depend on the number of rows in history.
+ *
+ * @author José Pereda Llamas
+ */
+public class Rollups {
+
+    public static final long MINUTE = 60000;
+    public static final long HOUR = 60 * MINUTE;
+    public static final long DAY = 24 * HOUR;
+
+    // from finest to coarsest
+    private static final String[] TABLES = { "history_minute", "history_hour", "history_day" };
+    private static final long[] INTERVALS = { MINUTE, HOUR, DAY };
+
+    // rows read from history between commits when rebuilding
+    private static final int CHUNK = 10000;
+
+    private final PreparedStatement[] update = new PreparedStatement[TABLES.length];
+    private final PreparedStatement[] insert = new PreparedStatement[TABLES.length];
+
+    /*
+     * summary of one interval of one node
+     */
+    private static class Rollup {
+        final long node;
+        final long bucket;
+        int cnt;
+        float tmin = Float.MAX_VALUE;
+        float tmax = -Float.MAX_VALUE;
+        double tsum;
+        float hmin = Float.MAX_VALUE;
+        float hmax = -Float.MAX_VALUE;
+        double hsum;
+
+        Rollup(long node, long bucket) {
+            this.node = node;
+            this.bucket = bucket;
+        }
+
+        void add(float temp, float hum) {
+            cnt++;
+            tmin = Math.min(tmin, temp);
+            tmax = Math.max(tmax, temp);
+            tsum += temp;
+            hmin = Math.min(hmin, hum);
+            hmax = Math.max(hmax, hum);
+            hsum += hum;
+        }
+    }
+
+    /*
+     * creates the tables and indexes missing from tables and indexes. Returns
+     * true if the tables have to be rebuilt: any table was created, or the last
+     * rebuild didn't end
+     */
+    boolean create(Statement statement, Set<String> tables, Set<String> indexes) {
+        boolean created = false;
+        if (tables.contains("ROLLUPS_REBUILD")) {
+            try {
+                ResultSet resultset = statement.executeQuery("SELECT done_id, last_id FROM rollups_rebuild");
+                if (resultset.next()) {
+                    System.out.println("Rollups rebuild pending, from id " + resultset.getInt(1) 
+                            + " to " + resultset.getInt(2));
+                    created = true;
+                }
+                resultset.close();
+            } catch (SQLException se) {
+                se.printStackTrace();
+            }
+        } else {
+            try {
+                statement.execute("CREATE TABLE rollups_rebuild(done_id INTEGER NOT NULL, last_id INTEGER NOT NULL)");
+            } catch (SQLException se) {
+                se.printStackTrace();
+            }
+        }
+        for (String table : TABLES) {
+            if (tables.contains(table.toUpperCase())) {
+                continue;
+            }
+            try {
+                statement.execute("CREATE TABLE " + table + "(node BIGINT NOT NULL, "
+                        + "bucket TIMESTAMP NOT NULL, cnt INTEGER NOT NULL, "
+                        + "tmin FLOAT NOT NULL, tmax FLOAT NOT NULL, tsum DOUBLE NOT NULL, "
+                        + "hmin FLOAT NOT NULL, hmax FLOAT NOT NULL, hsum DOUBLE NOT NULL, "
+                        + "PRIMARY KEY (node, bucket))");
+                System.out.println("Table " + table + " created");
+                created = true;
+            } catch (SQLException se) {
+                se.printStackTrace();
+            }
+        }
+        // to purge the expired summaries by time
+        for (int i = 0; i < TABLES.length - 1; i++) {
+            CStore.createIndex(statement, indexes, TABLES[i] + "_bucket",
+                    "CREATE INDEX " + TABLES[i] + "_bucket ON " + TABLES[i] + "(bucket)");
+        }
+        return created;
+    }
+
+    /*
+     * prepares the statements used by the writer connection
+     */
+    void prepare(Connection writer) throws SQLException {
+        for (int i = 0; i < TABLES.length; i++) {
+            update[i] = writer.prepareStatement("UPDATE " + TABLES[i] + " SET cnt=cnt+?, "
+                    + "tmin=CASE WHEN tmin<CAST(? AS FLOAT) THEN tmin ELSE CAST(? AS FLOAT) END, "
+                    + "tmax=CASE WHEN tmax>CAST(? AS FLOAT) THEN tmax ELSE CAST(? AS FLOAT) END, "
+                    + "tsum=tsum+?, "
+                    + "hmin=CASE WHEN hmin<CAST(? AS FLOAT) THEN hmin ELSE CAST(? AS FLOAT) END, "
+                    + "hmax=CASE WHEN hmax>CAST(? AS FLOAT) THEN hmax ELSE CAST(? AS FLOAT) END, "
+                    + "hsum=hsum+? WHERE node=? AND bucket=?");
+            insert[i] = writer.prepareStatement("INSERT INTO " + TABLES[i]
+                    + " (node, bucket, cnt, tmin, tmax, tsum, hmin, hmax, hsum) "
+                    + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        }
+    }
+
+    /*
+     * start of the interval of the given length the time belongs to, in local time
+     */
+    public static long bucket(long time, long interval) {
+        long offset = (time + TimeZone.getDefault().getOffset(time)) % interval;
+        return time - (offset < 0 ? offset + interval : offset);
+    }
+
+    /*
+     * adds a batch of measures, within the writer transaction
+     */
+    void add(List<BeanHT> beans) throws SQLException {
+        List<Map<String, Rollup>> rollups = newRollups();
+        for (BeanHT bean : beans) {
+            accumulate(rollups, bean.getNode(), bean.getTime().getTimeInMillis(),
+                    (float) bean.getTemp(), (float) bean.getHum());
+        }
+        merge(rollups);
+    }
+
+    private static List<Map<String, Rollup>> newRollups() {
+        List<Map<String, Rollup>> rollups = new ArrayList<>(TABLES.length);
+        for (int i = 0; i < TABLES.length; i++) {
+            rollups.add(new HashMap<String, Rollup>());
+        }
+        return rollups;
+    }
+
+    private static void accumulate(List<Map<String, Rollup>> rollups, long node, long time, float temp, float hum) {
+        for (int i = 0; i < TABLES.length; i++) {
+            long bucket = bucket(time, INTERVALS[i]);
+            String key = node + ":" + bucket;
+            Rollup rollup = rollups.get(i).get(key);
+            if (rollup == null) {
+                rollup = new Rollup(node, bucket);
+                rollups.get(i).put(key, rollup);
+            }
+            rollup.add(temp, hum);
+        }
+    }
+
+    private void merge(List<Map<String, Rollup>> rollups) throws SQLException {
+        for (int i = 0; i < TABLES.length; i++) {
+            for (Rollup rollup : rollups.get(i).values()) {
+                PreparedStatement statement = update[i];
+                statement.setInt(1, rollup.cnt);
+                statement.setFloat(2, rollup.tmin);
+                statement.setFloat(3, rollup.tmin);
+                statement.setFloat(4, rollup.tmax);
+                statement.setFloat(5, rollup.tmax);
+                statement.setDouble(6, rollup.tsum);
+                statement.setFloat(7, rollup.hmin);
+                statement.setFloat(8, rollup.hmin);
+                statement.setFloat(9, rollup.hmax);
+                statement.setFloat(10, rollup.hmax);
+                statement.setDouble(11, rollup.hsum);
+                statement.setLong(12, rollup.node);
+                statement.setTimestamp(13, new Timestamp(rollup.bucket));
+                if (statement.executeUpdate() == 0) {
+                    statement = insert[i];
+                    statement.setLong(1, rollup.node);
+                    statement.setTimestamp(2, new Timestamp(rollup.bucket));
+                    statement.setInt(3, rollup.cnt);
+                    statement.setFloat(4, rollup.tmin);
+                    statement.setFloat(5, rollup.tmax);
+                    statement.setDouble(6, rollup.tsum);
+                    statement.setFloat(7, rollup.hmin);
+                    statement.setFloat(8, rollup.hmax);
+                    statement.setDouble(9, rollup.hsum);
+                    statement.executeUpdate();
+                }
+            }
+        }
+    }
+
+    /*
+     * rebuilds the tables from history, from the day of its first row, or resumes
+     * the rebuild left unfinished by the last start.
+     * The rows stored till now are read with a reading connection, and summarized
+     * in chunks of CHUNK ids, each one committed with the writer connection, so 
+     * batches of new measures (added incrementally) aren't held for long. The last
+     * id summarized is committed with each chunk in rollups_rebuild, so a rebuild
+     * aborted partway goes on from there the next time the store is opened.
+     */
+    void rebuild(ConnectionPool pool, long timeout) {
+        long start = System.currentTimeMillis();
+        int[] progress = progress(pool, timeout);
+        if (progress == null) {
+            return;
+        }
+        int done = progress[0];
+        int last = progress[1];
+        System.out.println("Rebuilding rollups" + (done > 0 ? ", resumed after id " + done : "") + ", up to id " + last);
+        try {
+            while (done < last) {
+                int to = Math.min(last, done + CHUNK);
+                List<Map<String, Rollup>> rollups = read(pool, timeout, done, to);
+                mergeChunk(pool, timeout, rollups, to);
+                done = to;
+            }
+            finish(pool, timeout);
+        } catch (SQLException se) {
+            se.printStackTrace();
+            System.out.println("Rollups rebuilt up to id " + done + " of " + last + ", to be resumed on the next start");
+            return;
+        }
+        System.out.println("Rollups rebuilt up to id " + last + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /*
+     * the last id summarized and the last one to summarize by the rebuild in
+     * progress, or by a new one, that deletes the summaries rebuilt first. Null
+     * if the writer was busy
+     */
+    private int[] progress(ConnectionPool pool, long timeout) {
+        Connection writer = pool.acquireWriter(timeout);
+        if (writer == null) {
+            System.out.println("Database writer busy, rollups not rebuilt");
+            return null;
+        }
+        try {
+            writer.setAutoCommit(false);
+            Statement statement = writer.createStatement();
+            ResultSet resultset = statement.executeQuery("SELECT done_id, last_id FROM rollups_rebuild");
+            if (resultset.next()) {
+                int[] progress = { resultset.getInt(1), resultset.getInt(2) };
+                resultset.close();
+                statement.close();
+                writer.commit();
+                return progress;
+            }
+            resultset.close();
+            resultset = statement.executeQuery("SELECT MIN(time), MAX(id) FROM history");
+            Timestamp first = null;
+            int maxId = 0;
+            if (resultset.next()) {
+                first = resultset.getTimestamp(1);
+                maxId = resultset.getInt(2);
+            }
+            resultset.close();
+            if (first != null) {
+                // older summaries can't be rebuilt, as their rows were purged
+                for (String table : TABLES) {
+                    PreparedStatement delete = writer.prepareStatement("DELETE FROM " + table + " WHERE bucket>=?");
+                    delete.setTimestamp(1, new Timestamp(bucket(first.getTime(), DAY)));
+                    delete.executeUpdate();
+                    delete.close();
+                }
+            }
+            statement.executeUpdate("INSERT INTO rollups_rebuild (done_id, last_id) VALUES (0, " + maxId + ")");
+            statement.close();
+            writer.commit();
+            return new int[] { 0, maxId };
+        } catch (SQLException se) {
+            se.printStackTrace();
+            rollback(writer);
+            return null;
+        } finally {
+            autoCommit(writer);
+            pool.releaseWriter();
+        }
+    }
+
+    /*
+     * summaries of the rows with ids after from up to to
+     */
+    private static List<Map<String, Rollup>> read(ConnectionPool pool, long timeout, int from, int to) throws SQLException {
+        Connection connection = pool.acquire(timeout);
+        if (connection == null) {
+            throw new SQLException("Database busy, rollups rebuild aborted");
+        }
+        List<Map<String, Rollup>> rollups = newRollups();
+        PreparedStatement statement = null;
+        ResultSet resultset = null;
+        try {
+            statement = connection.prepareStatement("SELECT node, time, temp, hum FROM history WHERE id>? AND id<=?");
+            statement.setInt(1, from);
+            statement.setInt(2, to);
+            resultset = statement.executeQuery();
+            while (resultset.next()) {
+                accumulate(rollups, resultset.getLong(1), resultset.getTimestamp(2).getTime(),
+                        resultset.getFloat(3), resultset.getFloat(4));
+            }
+        } finally {
+            if (resultset != null) {
+                resultset.close();
+            }
+            if (statement != null) {
+                statement.close();
+            }
+            pool.release(connection);
+        }
+        return rollups;
+    }
+
+    /*
+     * merges the summaries of the rows up to id done, and records it, in one transaction
+     */
+    private void mergeChunk(ConnectionPool pool, long timeout, List<Map<String, Rollup>> rollups, int done) throws SQLException {
+        Connection writer = pool.acquireWriter(timeout);
+        if (writer == null) {
+            throw new SQLException("Database writer busy, rollups rebuild aborted");
+        }
+        try {
+            writer.setAutoCommit(false);
+            merge(rollups);
+            Statement statement = writer.createStatement();
+            statement.executeUpdate("UPDATE rollups_rebuild SET done_id=" + done);
+            statement.close();
+            writer.commit();
+        } catch (SQLException se) {
+            rollback(writer);
+            throw se;
+        } finally {
+            autoCommit(writer);
+            pool.releaseWriter();
+        }
+    }
+
+    /*
+     * forgets the progress of the rebuild ended
+     */
+    private static void finish(ConnectionPool pool, long timeout) throws SQLException {
+        Connection writer = pool.acquireWriter(timeout);
+        if (writer == null) {
+            throw new SQLException("Database writer busy, rollups rebuild not ended");
+        }
+        try {
+            Statement statement = writer.createStatement();
+            statement.executeUpdate("DELETE FROM rollups_rebuild");
+            statement.close();
+        } finally {
+            pool.releaseWriter();
+        }
+    }
+
+    /*
+     * coarsest interval length with at least tam intervals between ini and end,
+     * or the finest one if none has so many
+     */
+    public static long interval(int tam, long ini, long end) {
+        for (int i = INTERVALS.length - 1; i > 0; i--) {
+            if ((end - ini) / INTERVALS[i] >= tam) {
+                return INTERVALS[i];
+            }
+        }
+        return INTERVALS[0];
+    }
+
+    /*
+     * list the summaries of the intervals between ini and end, from the coarsest table
+     * with at least tam of them. With ALL_NODES the nodes are summarized together
+     */
+    List<BeanRollup> list(Connection connection, long node, int tam, long ini, long end) throws SQLException {
+        long interval = interval(tam, ini, end);
+        String table = TABLES[0];
+        for (int i = 0; i < INTERVALS.length; i++) {
+            if (INTERVALS[i] == interval) {
+                table = TABLES[i];
+            }
+        }
+        List<BeanRollup> list = new ArrayList<>();
+        PreparedStatement statement = ConnectionPool.prepare(connection,
+                "SELECT bucket, SUM(cnt), MIN(tmin), MAX(tmax), SUM(tsum), MIN(hmin), MAX(hmax), SUM(hsum) "
+                + "FROM " + table + " WHERE bucket>=? AND bucket<=?"
+                + (node == CStore.ALL_NODES ? "" : " AND node=?") + " GROUP BY bucket ORDER BY bucket");
+        ResultSet resultset = null;
+        try {
+            statement.setTimestamp(1, new Timestamp(bucket(ini, interval)));
+            statement.setTimestamp(2, new Timestamp(end));
+            if (node != CStore.ALL_NODES) {
+                statement.setLong(3, node);
+            }
+            resultset = statement.executeQuery();
+            while (resultset.next()) {
+                Calendar cal = Calendar.getInstance();
+                cal.setTime(resultset.getTimestamp(1));
+                int cnt = resultset.getInt(2);
+                list.add(new BeanRollup(node, cal, interval, cnt,
+                        resultset.getFloat(3), resultset.getFloat(4), resultset.getDouble(5) / cnt,
+                        resultset.getFloat(6), resultset.getFloat(7), resultset.getDouble(8) / cnt));
+            }
+        } finally {
+            if (resultset != null) {
+                resultset.close();
+            }
+            statement.close();
+        }
+        return list;
+    }
+
+    void close() {
+        for (int i = 0; i < TABLES.length; i++) {
+            try {
+                if (update[i] != null) {
+                    update[i].close();
+                }
+                if (insert[i] != null) {
+                    insert[i].close();
+                }
+            } catch (SQLException ignored) {
+            }
+        }
+    }
+
+    private static void rollback(Connection connection) {
+        try {
+            connection.rollback();
+        } catch (SQLException ignored) {
+        }
+    }
+
+    private static void autoCommit(Connection connection) {
+        try {
+            connection.setAutoCommit(true);
+        } catch (SQLException ignored) {
+        }
+    }
+}
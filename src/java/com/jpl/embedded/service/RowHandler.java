@@ -0,0 +1,14 @@
+package com.jpl.embedded.service;
+
+import java.io.IOException;
+
+/**
+ * Receives the rows of history table one by one, as they are read from the
+ * database cursor, so they can be written out without building a list of BeanHT
+ *
+ * @author José Pereda Llamas
+ */
+public interface RowHandler {
+
+    void row(int id, long node, long time, float temp, float hum) throws IOException;
+}
@@ -0,0 +1,431 @@
+package com.jpl.embedded.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * File of SegmentStore with the rows of consecutive ids from firstId, mapped
+ * in memory. It has a HEADER of 64 bytes:
+ * magic "AFXS" INT, version INT, firstId INT, capacity INT
+ * followed by capacity rows of ROW bytes, zeroed when the file is created:
+ * id INT, check INT, time LONG, node LONG, temp FLOAT, hum FLOAT
+ *
+ * check is a hash of the other fields, so rows torn by a crash are found on
+ * recovery. Rows with id 0 are holes: not written yet, or found corrupt.
+ *
+ * The sparse time index keeps, for each block of BLOCK rows, the minimum time
+ * of its rows and the maximum time of the rows from the start of the segment
+ * to the end of the block, that never decreases, so the first block with rows
+ * after a given time is found with a binary search.
+ *
+ * Rows and index are written only by the writer of the store, and read by any
+ * thread once the store publishes them. The index of the last block may still
+ * change while it is read, so readers only use the index of full blocks.
+ *
+ * Once a segment is full it is sealed, as it is never written again, and it
+ * is mapped only while it is read: at most MAX_MAPPED sealed segments
+ * (-Dstore.segment.mapped) stay mapped, and the least recently used one is
+ * dropped to map another. A dropped mapping is unmapped when its buffer is
+ * collected, once the readers still using it are done, and mapping a file
+ * when the address space runs out collects them first. Sealed segments are
+ * mapped again on their next read. The sparse index stays in memory.
+ *
+ * A segment deleted by the retention keeps a mapping, so the readers that
+ * took it before can still read its rows instead of failing on a missing
+ * file, till they drop it.
+ *
+ * @author José Pereda Llamas
+ */
+class Segment {
+
+    static final int MAGIC = 0x41465853;
+    static final int VERSION = 1;
+    static final int HEADER = 64;
+    static final int ROW = 32;
+    // rows per entry of the sparse index
+    static final int BLOCK = 256;
+    static final int MAX_MAPPED = Integer.getInteger("store.segment.mapped", 16);
+
+    // sealed segments mapped, least recently used first
+    private static final LinkedHashMap<Segment, Boolean> MAPPED = new LinkedHashMap<>(16, 0.75f, true);
+
+    final File file;
+    final int firstId;
+    final int capacity;
+    // null while a sealed segment isn't mapped
+    private volatile MappedByteBuffer buffer;
+    private volatile boolean sealed;
+    private volatile boolean deleted;
+
+    // sparse time index
+    private final long[] minTime;
+    private final long[] maxTime;
+
+    // rows written, holes included
+    int size;
+    // rows in time order, and the latest time, kept by the writer
+    private volatile boolean ordered = true;
+    private long lastTime = Long.MIN_VALUE;
+    // rows of each node, for the stats when the segment is dropped
+    final Map<Long, Long> counts = new HashMap<>();
+
+    private Segment(File file, int firstId, int capacity, MappedByteBuffer buffer) {
+        this.file = file;
+        this.firstId = firstId;
+        this.capacity = capacity;
+        this.buffer = buffer;
+        int blocks = (capacity + BLOCK - 1) / BLOCK;
+        minTime = new long[blocks];
+        maxTime = new long[blocks];
+        for (int b = 0; b < blocks; b++) {
+            minTime[b] = Long.MAX_VALUE;
+            maxTime[b] = Long.MIN_VALUE;
+        }
+    }
+
+    static String name(int firstId) {
+        return String.format("seg-%010d.dat", firstId);
+    }
+
+    /*
+     * creates the empty file of the segment starting at firstId
+     */
+    static Segment create(File dir, int firstId, int capacity) throws IOException {
+        File file = new File(dir, name(firstId));
+        MappedByteBuffer buffer = map(file, HEADER + (long) capacity * ROW);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, firstId);
+        buffer.putInt(12, capacity);
+        buffer.force();
+        return new Segment(file, firstId, capacity, buffer);
+    }
+
+    /*
+     * maps an existing file, and reads its rows back. Rows after the first
+     * invalid one of the last segment (tail) were being written when the
+     * application stopped, and are zeroed. Invalid rows of the other segments
+     * are zeroed as holes
+     */
+    static Segment open(File file, boolean tail) throws IOException {
+        MappedByteBuffer buffer = map(file, file.length());
+        if (file.length() < HEADER || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a segment: " + file);
+        }
+        int capacity = buffer.getInt(12);
+        if (file.length() != HEADER + (long) capacity * ROW) {
+            throw new IOException("Truncated segment: " + file);
+        }
+        Segment segment = new Segment(file, buffer.getInt(8), capacity, buffer);
+        segment.recover(tail);
+        if (!tail || segment.isFull()) {
+            segment.seal();
+        }
+        return segment;
+    }
+
+    private static MappedByteBuffer map(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+            // the mapping stays valid once the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /*
+     * the mapping of the file, mapped again if the segment was dropped
+     */
+    private MappedByteBuffer buffer() {
+        MappedByteBuffer mapped = buffer;
+        if (mapped == null) {
+            synchronized (MAPPED) {
+                mapped = buffer;
+                if (mapped == null) {
+                    try {
+                        mapped = mapSealed(file);
+                    } catch (IOException ioe) {
+                        throw new IllegalStateException("Segment " + file.getName() + " can't be mapped", ioe);
+                    }
+                    buffer = mapped;
+                    MAPPED.put(this, Boolean.TRUE);
+                    evict();
+                }
+            }
+        }
+        return mapped;
+    }
+
+    /*
+     * marks the segment as full, to be unmapped when it isn't used
+     */
+    void seal() {
+        synchronized (MAPPED) {
+            sealed = true;
+            MAPPED.put(this, Boolean.TRUE);
+            evict();
+        }
+    }
+
+    /*
+     * marks a sealed segment as recently read, before reading its rows
+     */
+    void use() {
+        if (sealed) {
+            synchronized (MAPPED) {
+                if (MAPPED.get(this) == null) {
+                    buffer();
+                }
+            }
+        }
+    }
+
+    /*
+     * number of sealed segments mapped
+     */
+    static int mapped() {
+        synchronized (MAPPED) {
+            return MAPPED.size();
+        }
+    }
+
+    // called holding MAPPED
+    private static void evict() {
+        Iterator<Segment> it = MAPPED.keySet().iterator();
+        while (MAPPED.size() > MAX_MAPPED && it.hasNext()) {
+            it.next().buffer = null;
+            it.remove();
+        }
+    }
+
+    /*
+     * maps a sealed segment again, read only, as it is never written. Fails
+     * instead of creating it if it was deleted
+     */
+    private static MappedByteBuffer mapSealed(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void recover(boolean tail) {
+        int holes = 0;
+        int i = 0;
+        for (; i < capacity; i++) {
+            if (valid(i)) {
+                index(i, time(i), node(i));
+            } else if (tail) {
+                break;
+            } else if (id(i) != 0 || time(i) != 0) {
+                zero(i);
+                holes++;
+            }
+        }
+        size = i;
+        // blocks of holes only still never decrease
+        for (int b = 1; b < maxTime.length; b++) {
+            maxTime[b] = Math.max(maxTime[b], maxTime[b - 1]);
+        }
+        // rows after the tail may have been written before the crash
+        int zeroed = 0;
+        for (; i < capacity; i++) {
+            if (id(i) != 0 || time(i) != 0) {
+                zero(i);
+                zeroed++;
+            }
+        }
+        if (holes + zeroed > 0) {
+            buffer().force();
+            System.out.println("Segment " + file.getName() + " recovered, " + holes + " corrupt rows, "
+                    + zeroed + " incomplete rows");
+        }
+    }
+
+    private boolean valid(int i) {
+        int id = id(i);
+        return id == firstId + i && buffer().getInt(offset(i) + 4) == check(id, time(i), node(i), temp(i), hum(i));
+    }
+
+    private void zero(int i) {
+        int offset = offset(i);
+        MappedByteBuffer buffer = buffer();
+        for (int j = 0; j < ROW; j += 8) {
+            buffer.putLong(offset + j, 0);
+        }
+    }
+
+    static int check(int id, long time, long node, float temp, float hum) {
+        long h = id * 0x9E3779B97F4A7C15L ^ time;
+        h = h * 31 + node;
+        h = h * 31 + Float.floatToRawIntBits(temp);
+        h = h * 31 + Float.floatToRawIntBits(hum);
+        int check = (int) (h ^ (h >>> 32));
+        return (check == 0 ? 1 : check);
+    }
+
+    private static int offset(int i) {
+        return HEADER + i * ROW;
+    }
+
+    /*
+     * writes the row i, with id firstId + i
+     */
+    void append(long node, long time, float temp, float hum) {
+        int i = size;
+        int id = firstId + i;
+        int offset = offset(i);
+        MappedByteBuffer buffer = buffer();
+        buffer.putLong(offset + 8, time);
+        buffer.putLong(offset + 16, node);
+        buffer.putFloat(offset + 24, temp);
+        buffer.putFloat(offset + 28, hum);
+        buffer.putInt(offset + 4, check(id, time, node, temp, hum));
+        buffer.putInt(offset, id);
+        index(i, time, node);
+        size++;
+    }
+
+    private void index(int i, long time, long node) {
+        if (time < lastTime) {
+            ordered = false;
+        }
+        lastTime = Math.max(lastTime, time);
+        int b = i / BLOCK;
+        if (time < minTime[b]) {
+            minTime[b] = time;
+        }
+        long max = Math.max(time, b == 0 ? Long.MIN_VALUE : maxTime[b - 1]);
+        if (max > maxTime[b]) {
+            maxTime[b] = max;
+        }
+        Long count = counts.get(node);
+        counts.put(node, count == null ? 1 : count + 1);
+    }
+
+    /*
+     * flushes the rows written to the file
+     */
+    void force() {
+        buffer().force();
+    }
+
+    /*
+     * true once the retention deleted it, its rows are expired
+     */
+    boolean isDeleted() {
+        return deleted;
+    }
+
+    boolean isFull() {
+        return size == capacity;
+    }
+
+    /*
+     * true if no row is older than a row before it
+     */
+    boolean isOrdered() {
+        return ordered;
+    }
+
+    /*
+     * minimum time of the rows written, Long.MAX_VALUE if none
+     */
+    long minTime() {
+        long min = Long.MAX_VALUE;
+        for (int b = 0; b * BLOCK < size; b++) {
+            min = Math.min(min, minTime[b]);
+        }
+        return min;
+    }
+
+    int id(int i) {
+        return buffer().getInt(offset(i));
+    }
+
+    long time(int i) {
+        return buffer().getLong(offset(i) + 8);
+    }
+
+    long node(int i) {
+        return buffer().getLong(offset(i) + 16);
+    }
+
+    float temp(int i) {
+        return buffer().getFloat(offset(i) + 24);
+    }
+
+    float hum(int i) {
+        return buffer().getFloat(offset(i) + 28);
+    }
+
+    /*
+     * minimum time of the rows of block b, Long.MAX_VALUE if it has none, when
+     * the first rows of the segment are read. Long.MIN_VALUE if the block may still change
+     */
+    long blockMin(int b, int rows) {
+        return ((b + 1) * BLOCK <= rows || rows == capacity ? minTime[b] : Long.MIN_VALUE);
+    }
+
+    /*
+     * first block that may have a row with a time of at least time, when the
+     * first rows of the segment are read
+     */
+    int firstBlock(long time, int rows) {
+        int lo = 0, hi = (rows == capacity ? minTime.length : rows / BLOCK) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (maxTime[mid] < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /*
+     * maximum time of the first rows, Long.MAX_VALUE if their last block isn't full
+     */
+    long maxTime(int rows) {
+        if (rows == capacity) {
+            return maxTime[maxTime.length - 1];
+        }
+        if (rows % BLOCK != 0) {
+            return Long.MAX_VALUE;
+        }
+        return (rows == 0 ? Long.MIN_VALUE : maxTime[rows / BLOCK - 1]);
+    }
+
+    /*
+     * deletes the file. It is mapped first if it wasn't, and never dropped, so
+     * readers still using it keep reading its mapping
+     */
+    void delete() {
+        synchronized (MAPPED) {
+            MAPPED.remove(this);
+            deleted = true;
+            if (buffer == null) {
+                try {
+                    buffer = mapSealed(file);
+                } catch (IOException ioe) {
+                    ioe.printStackTrace();
+                }
+            }
+        }
+        if (!file.delete()) {
+            System.out.println("Segment " + file.getName() + " not deleted");
+        }
+    }
+}
@@ -0,0 +1,905 @@
+package com.jpl.embedded.service;
+
+import com.jpl.embedded.model.BeanHT;
+import com.jpl.embedded.model.BeanRollup;
+import com.jpl.embedded.model.BeanStats;
+import com.jpl.embedded.model.CSensor;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HistoryStore on append only Segment files, mapped in memory, in a directory.
+ *
+ * Measures are fixed width rows, so they are written in place without SQL,
+ * and read back with plain memory reads: a row by id is found with a binary
+ * search on the first ids of the segments, and a range of times with a binary
+ * search on the sparse time index of each segment. Segments have SEGMENT_ROWS rows, -Dstore.segment.rows, and a new
+ * one is created when the last one is full.
+ *
+ * Measures are recorded through a RecordQueue, as CStore does, and each batch
+ * is flushed to the file before it is published, so a crash loses at most the
+ * batch being written: on startup every row of the last segment is checked,
+ * and the incomplete ones are dropped.
+ *
+ * Times are expected to grow with the ids, as the measures are stored when
+ * they are read. A measure older than the last one stored marks its segment as
+ * unordered, and then ranges are read in that segment scanning the blocks of the
+ * index that overlap them instead of stopping at their end. The following
+ * segments are still read in order. The store is unordered while one of its
+ * segments is, or overlaps the previous one, and it is ordered again once
+ * those are purged.
+ *
+ * There are no rollups: summaries are computed reading the rows of the range.
+ *
+ * Imported measures are appended as any other batch, sorted by time, usually
+ * making the segment they are appended to unordered.
+ *
+ * With -Dstore.retention.raw the oldest segments are deleted every hour once
+ * all their rows have expired, so expiring is one file delete.
+ *
+ * Full segments are sealed, and only the ones being read stay mapped, see Segment.
+ *
+ * @author José Pereda Llamas
+ */
+public class SegmentStore implements HistoryStore {
+
+    public static final int SEGMENT_ROWS = Integer.getInteger("store.segment.rows", 262144);
+
+    // minutes between purges of expired segments
+    private static final long PURGE_PERIOD = 60;
+    // miliseconds without imported rows splitting the ranges read by backfill
+    private static final long GAP = 3600000;
+
+    private static final Metrics.Histogram QUERY_GET = query("get");
+    private static final Metrics.Histogram QUERY_ITEMS = query("items");
+    private static final Metrics.Histogram QUERY_LAST = query("last");
+    private static final Metrics.Histogram QUERY_LIST = query("list");
+    private static final Metrics.Histogram QUERY_PAGE = query("page");
+    private static final Metrics.Histogram QUERY_SUMMARY = query("summary");
+    private static final Metrics.Histogram QUERY_BATCH = query("batch");
+
+    private final File dir;
+    private final StoreStats stats = new StoreStats();
+    private final RecordQueue queue;
+    private ScheduledExecutorService purger;
+
+    // oldest first, replaced when a segment is added or deleted
+    private volatile Segment[] segments = new Segment[0];
+    // id of the last row published, and time of the last change
+    private volatile int lastId;
+    private volatile long modified = System.currentTimeMillis();
+    private volatile boolean ordered = true;
+
+    // guards the segments and the rows written
+    private final Object writeLock = new Object();
+    private long lastTime = Long.MIN_VALUE;
+
+    SegmentStore(File dir) {
+        System.out.println("Opening segments in " + dir.getAbsolutePath());
+        long start = System.currentTimeMillis();
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            System.out.println("Directory " + dir + " can't be created");
+        }
+        load();
+        System.out.println("Segments loaded, " + stats.getCount() + " rows in " + segments.length
+                + " segments" + (ordered ? "" : ", unordered") + " in " + (System.currentTimeMillis() - start) + " ms");
+        queue = new RecordQueue(this);
+        register(Metrics.getInstance());
+        if (Retention.RAW > 0) {
+            startPurger();
+        }
+    }
+
+    private static Metrics.Histogram query(String name) {
+        return Metrics.getInstance().histogram("arduinofx_store_query_seconds",
+                "Time reading or writing the database, once the connection is acquired", "query", name);
+    }
+
+    private void register(Metrics metrics) {
+        metrics.gauge("arduinofx_queue_depth", "Measures waiting in the record queue", new Metrics.Gauge() {
+            @Override public double value() { return queue.getDepth(); }
+        });
+        metrics.counter("arduinofx_readings_dropped_total", "Measures read that were never stored", "reason", "queue_full",
+                new Metrics.Gauge() {
+            @Override public double value() { return queue.getDropped(); }
+        });
+        metrics.counter("arduinofx_readings_dropped_total", "Measures read that were never stored", "reason", "store_failed",
+                new Metrics.Gauge() {
+            @Override public double value() { return queue.getFailed(); }
+        });
+        metrics.counter("arduinofx_readings_stored_total", "Measures stored in history table", null, null,
+                new Metrics.Gauge() {
+            @Override public double value() { return queue.getRecorded(); }
+        });
+        metrics.gauge("arduinofx_store_rows", "Rows in history table", new Metrics.Gauge() {
+            @Override public double value() { return stats.getCount(); }
+        });
+        metrics.gauge("arduinofx_store_segments", "Segment files of the store", new Metrics.Gauge() {
+            @Override public double value() { return segments.length; }
+        });
+        metrics.gauge("arduinofx_store_segments_mapped", "Full segment files mapped in memory", new Metrics.Gauge() {
+            @Override public double value() { return Segment.mapped(); }
+        });
+    }
+
+    /*
+     * opens the segment files, in id order, and reads the stats of their rows
+     */
+    private void load() {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override public boolean accept(File dir, String name) {
+                return name.matches("seg-\\d{10}\\.dat");
+            }
+        });
+        if (files == null) {
+            files = new File[0];
+        }
+        Arrays.sort(files);
+        List<Segment> list = new ArrayList<>();
+        for (int i = 0; i < files.length; i++) {
+            try {
+                list.add(Segment.open(files[i], i == files.length - 1));
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+                File bad = new File(files[i].getPath() + ".bad");
+                System.out.println("Segment " + files[i].getName() + " renamed to " + bad.getName()
+                        + (files[i].renameTo(bad) ? "" : " failed"));
+            }
+        }
+        Map<Long, long[]> nodes = new TreeMap<>();
+        for (Segment segment : list) {
+            for (int i = 0; i < segment.size; i++) {
+                int id = segment.id(i);
+                if (id == 0) {
+                    continue;
+                }
+                long time = segment.time(i);
+                long node = segment.node(i);
+                if (time < lastTime) {
+                    ordered = false;
+                }
+                lastTime = Math.max(lastTime, time);
+                long[] counters = nodes.get(node);
+                if (counters == null) {
+                    counters = new long[] { 0, time, time, id };
+                    nodes.put(node, counters);
+                }
+                counters[0]++;
+                counters[1] = Math.min(counters[1], time);
+                counters[2] = Math.max(counters[2], time);
+                counters[3] = id;
+            }
+        }
+        for (Map.Entry<Long, long[]> entry : nodes.entrySet()) {
+            long[] counters = entry.getValue();
+            stats.add(entry.getKey(), counters[0], counters[1], counters[2], counters[3]);
+        }
+        segments = list.toArray(new Segment[list.size()]);
+        if (!list.isEmpty()) {
+            Segment last = list.get(list.size() - 1);
+            lastId = last.firstId + last.size - 1;
+        }
+    }
+
+    @Override
+    public boolean record(BeanHT bean) {
+        return queue.offer(bean);
+    }
+
+    /*
+     * appends a batch of beanHT, flushed to the files before it is published.
+     * Returns the number appended, the first ones of the batch
+     */
+    @Override
+    public int recordBatch(List<BeanHT> beans) {
+        long start = System.nanoTime();
+        synchronized (writeLock) {
+            Segment[] current = segments;
+            List<Segment> written = new ArrayList<>(2);
+            int id = lastId;
+            try {
+                for (BeanHT bean : beans) {
+                    Segment tail = (current.length == 0 ? null : current[current.length - 1]);
+                    if (tail == null || tail.isFull()) {
+                        tail = Segment.create(dir, id + 1, SEGMENT_ROWS);
+                        current = Arrays.copyOf(current, current.length + 1);
+                        current[current.length - 1] = tail;
+                    }
+                    long time = bean.getTime().getTimeInMillis();
+                    if (time < lastTime) {
+                        ordered = false;
+                    }
+                    lastTime = Math.max(lastTime, time);
+                    tail.append(bean.getNode(), time, (float) bean.getTemp(), (float) bean.getHum());
+                    if (!written.contains(tail)) {
+                        written.add(tail);
+                    }
+                    id++;
+                }
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+            for (Segment segment : written) {
+                segment.force();
+                if (segment.isFull()) {
+                    segment.seal();
+                }
+            }
+            int stored = id - lastId;
+            // readers take lastId before the segments
+            segments = current;
+            lastId = id;
+            if (stored > 0) {
+                stats.add(stored == beans.size() ? beans : beans.subList(0, stored), id);
+                modified = System.currentTimeMillis();
+            }
+            QUERY_BATCH.observeSince(start);
+            return stored;
+        }
+    }
+
+    /*
+     * appends the imported beanHT missing from the store, in time order. Rows
+     * already stored are found scanning the ranges of times of the batch, split
+     * where there are more than GAP milliseconds without rows of the batch, while
+     * holding the write lock. Only the keys of the batch are kept
+     */
+    @Override
+    public int backfill(List<BeanHT> beans) {
+        if (beans.isEmpty()) {
+            return 0;
+        }
+        List<BeanHT> sorted = new ArrayList<>(beans);
+        Collections.sort(sorted, HistoryImport.BY_TIME);
+        // times of each node not stored yet
+        final Map<Long, Set<Long>> keys = new HashMap<>();
+        for (BeanHT bean : sorted) {
+            Set<Long> times = keys.get(bean.getNode());
+            if (times == null) {
+                times = new HashSet<>();
+                keys.put(bean.getNode(), times);
+            }
+            times.add(bean.getTime().getTimeInMillis());
+        }
+        synchronized (writeLock) {
+            Visitor stored = new Visitor() {
+                @Override public boolean row(Segment segment, int i) {
+                    Set<Long> times = keys.get(segment.node(i));
+                    if (times != null) {
+                        times.remove(segment.time(i));
+                    }
+                    return true;
+                }
+            };
+            try {
+                int first = 0;
+                for (int i = 1; i <= sorted.size(); i++) {
+                    if (i == sorted.size() || time(sorted.get(i)) - time(sorted.get(i - 1)) > GAP) {
+                        scan(CStore.ALL_NODES, time(sorted.get(first)), time(sorted.get(i - 1)), stored);
+                        first = i;
+                    }
+                }
+            } catch (IOException ioe) {
+                // the visitor doesn't throw it
+            }
+            List<BeanHT> missing = new ArrayList<>(sorted.size());
+            for (BeanHT bean : sorted) {
+                if (keys.get(bean.getNode()).remove(time(bean))) {
+                    missing.add(bean);
+                }
+            }
+            return (recordBatch(missing) == missing.size() ? missing.size() : -1);
+        }
+    }
+
+    private static long time(BeanHT bean) {
+        return bean.getTime().getTimeInMillis();
+    }
+
+    @Override
+    public void flush() {
+        queue.flush();
+    }
+
+    @Override
+    public void shutdown() {
+        if (purger != null) {
+            purger.shutdownNow();
+        }
+        queue.shutdown();
+    }
+
+    @Override
+    public RecordQueue getQueue() {
+        return queue;
+    }
+
+    @Override
+    public RecentCache getCache() {
+        return null;
+    }
+
+    @Override
+    public long getVersion() {
+        return lastId;
+    }
+
+    @Override
+    public long getModified() {
+        return modified;
+    }
+
+    @Override
+    public long count() {
+        return stats.getCount();
+    }
+
+    @Override
+    public BeanStats stats(long node) {
+        return stats.get(node);
+    }
+
+    /*
+     * segment with the row id, or -1
+     */
+    private static int find(Segment[] segments, int id) {
+        int lo = 0, hi = segments.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (segments[mid].firstId + segments[mid].capacity <= id) {
+                lo = mid + 1;
+            } else if (segments[mid].firstId > id) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * rows of the segment published up to the row lastId
+     */
+    private static int rows(Segment segment, int lastId) {
+        return Math.max(0, Math.min(segment.capacity, lastId - segment.firstId + 1));
+    }
+
+    private static BeanHT bean(Segment segment, int i) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(segment.time(i));
+        return new BeanHT(segment.id(i), segment.node(i), segment.temp(i), segment.hum(i), cal);
+    }
+
+    private static void row(Segment segment, int i, RowHandler handler) throws IOException {
+        handler.row(segment.id(i), segment.node(i), segment.time(i), segment.temp(i), segment.hum(i));
+    }
+
+    @Override
+    public BeanHT get(int id) {
+        long start = System.nanoTime();
+        try {
+            int last = lastId;
+            Segment[] current = segments;
+            int s = (id < 1 || id > last ? -1 : find(current, id));
+            if (s >= 0 && current[s].id(id - current[s].firstId) == id) {
+                return bean(current[s], id - current[s].firstId);
+            }
+            return CSensor.getInstance().getLastBean();
+        } finally {
+            QUERY_GET.observeSince(start);
+        }
+    }
+
+    @Override
+    public void get(int[] ids, RowHandler handler) throws IOException {
+        long start = System.nanoTime();
+        try {
+            int last = lastId;
+            Segment[] current = segments;
+            for (int id : ids) {
+                int s = (id < 1 || id > last ? -1 : find(current, id));
+                if (s >= 0 && current[s].id(id - current[s].firstId) == id) {
+                    row(current[s], id - current[s].firstId, handler);
+                }
+            }
+        } finally {
+            QUERY_ITEMS.observeSince(start);
+        }
+    }
+
+    @Override
+    public void get(int from, int to, RowHandler handler) throws IOException {
+        long start = System.nanoTime();
+        try {
+            int last = Math.min(lastId, to);
+            Segment[] current = segments;
+            for (int s = 0; s < current.length; s++) {
+                Segment segment = current[s];
+                if (segment.firstId + segment.capacity <= from) {
+                    continue;
+                }
+                if (segment.firstId > last) {
+                    return;
+                }
+                int rows = rows(segment, last);
+                segment.use();
+                for (int i = Math.max(0, from - segment.firstId); i < rows; i++) {
+                    if (segment.id(i) != 0) {
+                        row(segment, i, handler);
+                    }
+                }
+            }
+        } finally {
+            QUERY_ITEMS.observeSince(start);
+        }
+    }
+
+    @Override
+    public BeanHT last() {
+        long start = System.nanoTime();
+        try {
+            int last = lastId;
+            Segment[] current = segments;
+            for (int s = current.length - 1; s >= 0; s--) {
+                current[s].use();
+                for (int i = rows(current[s], last) - 1; i >= 0; i--) {
+                    if (current[s].id(i) != 0) {
+                        return bean(current[s], i);
+                    }
+                }
+            }
+            return CSensor.getInstance().getLastBean();
+        } finally {
+            QUERY_LAST.observeSince(start);
+        }
+    }
+
+    /*
+     * receives the rows of a range in id order. Returns false to stop
+     */
+    private interface Visitor {
+        boolean row(Segment segment, int i) throws IOException;
+    }
+
+    /*
+     * visits the published rows measured by node between ini and end, skipping
+     * the blocks of the index out of the range and the segments purged since the
+     * scan took them. With the rows of a segment in time order its scan starts at
+     * the first row from ini and stops after end, and with the whole store in
+     * order the scan stops there
+     */
+    private void scan(long node, long ini, long end, Visitor visitor) throws IOException {
+        int last = lastId;
+        Segment[] current = segments;
+        boolean allInOrder = ordered;
+        next:
+        for (Segment segment : current) {
+            int rows = rows(segment, last);
+            if (segment.maxTime(rows) < ini || segment.isDeleted()) {
+                continue;
+            }
+            boolean inOrder = allInOrder || segment.isOrdered();
+            segment.use();
+            for (int b = segment.firstBlock(ini, rows); b * Segment.BLOCK < rows; b++) {
+                if (segment.blockMin(b, rows) > end) {
+                    if (allInOrder) {
+                        return;
+                    }
+                    if (inOrder) {
+                        continue next;
+                    }
+                    continue;
+                }
+                int to = Math.min(rows, (b + 1) * Segment.BLOCK);
+                for (int i = b * Segment.BLOCK; i < to; i++) {
+                    if (segment.id(i) == 0) {
+                        continue;
+                    }
+                    long time = segment.time(i);
+                    if (time > end) {
+                        if (allInOrder) {
+                            return;
+                        }
+                        if (inOrder) {
+                            continue next;
+                        }
+                        continue;
+                    }
+                    if (time < ini || (node != CStore.ALL_NODES && segment.node(i) != node)) {
+                        continue;
+                    }
+                    if (!visitor.row(segment, i)) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public List<BeanHT> list(long node, int tam, long ini, long end) {
+        final List<BeanHT> list = new ArrayList<>();
+        try {
+            list(node, tam, ini, end, new RowHandler() {
+                @Override
+                public void row(int id, long node, long time, float temp, float hum) {
+                    Calendar cal = Calendar.getInstance();
+                    cal.setTimeInMillis(time);
+                    list.add(new BeanHT(id, node, temp, hum, cal));
+                }
+            });
+        } catch (IOException ignored) {
+            // the collector doesn't throw it
+        }
+        return list;
+    }
+
+    /*
+     * same rows as CStore.list: all of them if the range has no more than tam,
+     * the first one of each of tam intervals of the same length otherwise
+     */
+    @Override
+    public void list(long node, int tam, long ini, long end, final RowHandler handler) throws IOException {
+        if (tam <= 0) {
+            tam = 100;
+        }
+        // there can't be more intervals to fill than rows
+        tam = (int) Math.min(tam, stats.getCount() + 1);
+        long start = System.nanoTime();
+        try {
+            if (ordered) {
+                listOrdered(node, tam, ini, end, handler);
+            } else {
+                listUnordered(node, tam, ini, end, handler);
+            }
+        } finally {
+            QUERY_LIST.observeSince(start);
+        }
+    }
+
+    @Override
+    public void rows(long node, long ini, long end, final RowHandler handler) throws IOException {
+        long start = System.nanoTime();
+        try {
+            scan(node, ini, end, new Visitor() {
+                @Override public boolean row(Segment segment, int i) throws IOException {
+                    SegmentStore.row(segment, i, handler);
+                    return true;
+                }
+            });
+        } finally {
+            QUERY_LIST.observeSince(start);
+        }
+    }
+
+    /*
+     * while the store is unordered the rows of the range are gathered and
+     * sorted by time, then by id, before passing them
+     */
+    @Override
+    public void rows(long node, long ini, long end, boolean sorted, RowHandler handler) throws IOException {
+        if (!sorted || ordered) {
+            rows(node, ini, end, handler);
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            final List<Segment> segs = new ArrayList<>();
+            final List<Integer> rows = new ArrayList<>();
+            scan(node, ini, end, new Visitor() {
+                @Override public boolean row(Segment segment, int i) {
+                    segs.add(segment);
+                    rows.add(i);
+                    return true;
+                }
+            });
+            for (Integer i : byTime(segs, rows)) {
+                row(segs.get(i), rows.get(i), handler);
+            }
+        } finally {
+            QUERY_LIST.observeSince(start);
+        }
+    }
+
+    /*
+     * positions of the rows, sorted by time and then by the order they were found
+     */
+    private static Integer[] byTime(final List<Segment> segs, final List<Integer> rows) {
+        Integer[] order = new Integer[rows.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override public int compare(Integer a, Integer b) {
+                long ta = segs.get(a).time(rows.get(a)), tb = segs.get(b).time(rows.get(b));
+                return (ta < tb ? -1 : (ta > tb ? 1 : a.compareTo(b)));
+            }
+        });
+        return order;
+    }
+
+    /*
+     * the first tam + 1 rows tell if the range has to be sampled, then each
+     * interval is read from its first row till one of the node is found
+     */
+    private void listOrdered(long node, int tam, long ini, long end, RowHandler handler) throws IOException {
+        final List<Segment> segs = new ArrayList<>();
+        final List<Integer> rows = new ArrayList<>();
+        final int max = tam + 1;
+        scan(node, ini, end, new Visitor() {
+            @Override public boolean row(Segment segment, int i) {
+                segs.add(segment);
+                rows.add(i);
+                return rows.size() < max;
+            }
+        });
+        if (rows.size() <= tam) {
+            for (int i = 0; i < rows.size(); i++) {
+                row(segs.get(i), rows.get(i), handler);
+            }
+            return;
+        }
+        final RowHandler out = handler;
+        double step = (double) (end - ini) / tam;
+        for (int i = 0; i < tam; i++) {
+            long to = (i == tam - 1 ? end : ini + (long) ((i + 1) * step) - 1);
+            scan(node, ini + (long) (i * step), to, new Visitor() {
+                @Override public boolean row(Segment segment, int i) throws IOException {
+                    SegmentStore.row(segment, i, out);
+                    return false;
+                }
+            });
+        }
+    }
+
+    /*
+     * one scan of the range, keeping the first tam + 1 rows and the earliest
+     * row of each interval, as rows may come in any time order
+     */
+    private void listUnordered(long node, final int tam, final long ini, long end, RowHandler handler)
+            throws IOException {
+        final List<Segment> segs = new ArrayList<>();
+        final List<Integer> rows = new ArrayList<>();
+        final Segment[] firstSegs = new Segment[tam];
+        final int[] firstRows = new int[tam];
+        final long[] firstTimes = new long[tam];
+        final double step = (double) (end - ini) / tam;
+        scan(node, ini, end, new Visitor() {
+            @Override public boolean row(Segment segment, int i) {
+                if (rows.size() <= tam) {
+                    segs.add(segment);
+                    rows.add(i);
+                }
+                long time = segment.time(i);
+                // same bounds as the intervals of listOrdered
+                int bucket = (int) Math.min(tam - 1, (long) ((time - ini) / step));
+                if (bucket > 0 && time < ini + (long) (bucket * step)) {
+                    bucket--;
+                } else if (bucket < tam - 1 && time >= ini + (long) ((bucket + 1) * step)) {
+                    bucket++;
+                }
+                if (firstSegs[bucket] == null || time < firstTimes[bucket]) {
+                    firstSegs[bucket] = segment;
+                    firstRows[bucket] = i;
+                    firstTimes[bucket] = time;
+                }
+                return true;
+            }
+        });
+        if (rows.size() <= tam) {
+            for (Integer i : byTime(segs, rows)) {
+                row(segs.get(i), rows.get(i), handler);
+            }
+            return;
+        }
+        for (int i = 0; i < tam; i++) {
+            if (firstSegs[i] != null) {
+                row(firstSegs[i], firstRows[i], handler);
+            }
+        }
+    }
+
+    @Override
+    public void page(long node, int after, int limit, RowHandler handler) throws IOException {
+        long start = System.nanoTime();
+        try {
+            int last = lastId;
+            Segment[] current = segments;
+            int sent = 0;
+            int s = Math.max(0, find(current, after + 1));
+            for (; s < current.length && sent < limit; s++) {
+                Segment segment = current[s];
+                int rows = rows(segment, last);
+                segment.use();
+                for (int i = Math.max(0, after + 1 - segment.firstId); i < rows && sent < limit; i++) {
+                    if (segment.id(i) != 0 && (node == CStore.ALL_NODES || segment.node(i) == node)) {
+                        row(segment, i, handler);
+                        sent++;
+                    }
+                }
+            }
+        } finally {
+            QUERY_PAGE.observeSince(start);
+        }
+    }
+
+    /*
+     * summary of one interval
+     */
+    private static class Summary {
+        int cnt;
+        float tmin = Float.MAX_VALUE;
+        float tmax = -Float.MAX_VALUE;
+        double tsum;
+        float hmin = Float.MAX_VALUE;
+        float hmax = -Float.MAX_VALUE;
+        double hsum;
+    }
+
+    /*
+     * same summaries as the rollups of CStore, computed from the rows of the range
+     */
+    @Override
+    public List<BeanRollup> summary(long node, int tam, long ini, long end) {
+        if (tam <= 0) {
+            tam = 100;
+        }
+        long start = System.nanoTime();
+        final long interval = Rollups.interval(tam, ini, end);
+        final Map<Long, Summary> summaries = new TreeMap<>();
+        try {
+            scan(node, Rollups.bucket(ini, interval), Rollups.bucket(end, interval) + interval - 1, new Visitor() {
+                @Override public boolean row(Segment segment, int i) {
+                    long bucket = Rollups.bucket(segment.time(i), interval);
+                    Summary summary = summaries.get(bucket);
+                    if (summary == null) {
+                        summary = new Summary();
+                        summaries.put(bucket, summary);
+                    }
+                    float temp = segment.temp(i), hum = segment.hum(i);
+                    summary.cnt++;
+                    summary.tmin = Math.min(summary.tmin, temp);
+                    summary.tmax = Math.max(summary.tmax, temp);
+                    summary.tsum += temp;
+                    summary.hmin = Math.min(summary.hmin, hum);
+                    summary.hmax = Math.max(summary.hmax, hum);
+                    summary.hsum += hum;
+                    return true;
+                }
+            });
+        } catch (IOException ignored) {
+            // the visitor doesn't throw it
+        } finally {
+            QUERY_SUMMARY.observeSince(start);
+        }
+        List<BeanRollup> list = new ArrayList<>(summaries.size());
+        for (Map.Entry<Long, Summary> entry : summaries.entrySet()) {
+            Summary summary = entry.getValue();
+            Calendar cal = Calendar.getInstance();
+            cal.setTimeInMillis(entry.getKey());
+            list.add(new BeanRollup(node, cal, interval, summary.cnt, summary.tmin, summary.tmax,
+                    summary.tsum / summary.cnt, summary.hmin, summary.hmax, summary.hsum / summary.cnt));
+        }
+        return list;
+    }
+
+    /*
+     * deletes the expired segments every PURGE_PERIOD minutes, in a daemon thread
+     */
+    private void startPurger() {
+        purger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Retention");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        purger.scheduleWithFixedDelay(new Runnable() {
+            @Override public void run() {
+                try {
+                    purge(Retention.cutoff(Retention.RAW, System.currentTimeMillis()));
+                } catch (RuntimeException re) {
+                    re.printStackTrace();
+                }
+            }
+        }, 1, PURGE_PERIOD, TimeUnit.MINUTES);
+        System.out.println("Retention of raw rows " + Retention.RAW + " days");
+    }
+
+    /*
+     * deletes the oldest segments with every row before cutoff, but the last one
+     */
+    void purge(long cutoff) {
+        Map<Long, Long> counts = new HashMap<>();
+        List<Segment> deleted = new ArrayList<>();
+        synchronized (writeLock) {
+            Segment[] current = segments;
+            int n = 0;
+            while (n < current.length - 1 && current[n].maxTime(current[n].size) < cutoff) {
+                for (Map.Entry<Long, Long> entry : current[n].counts.entrySet()) {
+                    Long count = counts.get(entry.getKey());
+                    counts.put(entry.getKey(), entry.getValue() + (count == null ? 0 : count));
+                }
+                deleted.add(current[n]);
+                n++;
+            }
+            if (n == 0) {
+                return;
+            }
+            segments = Arrays.copyOfRange(current, n, current.length);
+            if (!ordered && ordered(segments)) {
+                ordered = true;
+                System.out.println("Segments in time order again");
+            }
+        }
+        long rows = 0;
+        for (Segment segment : deleted) {
+            segment.delete();
+            rows += segment.size;
+        }
+        Retention.purged("history").add(rows);
+        firsts(stats.remove(counts));
+        modified = System.currentTimeMillis();
+        System.out.println("Purged " + deleted.size() + " segments, " + rows + " rows");
+    }
+
+    /*
+     * true if the rows of every segment are in time order, and after the rows
+     * of the previous one
+     */
+    private static boolean ordered(Segment[] segments) {
+        long previous = Long.MIN_VALUE;
+        for (Segment segment : segments) {
+            if (!segment.isOrdered() || segment.minTime() < previous) {
+                return false;
+            }
+            previous = Math.max(previous, segment.maxTime(segment.size));
+        }
+        return true;
+    }
+
+    /*
+     * sets the time of the first row left of each node. With the rows in time
+     * order it is the first one found of the node, otherwise every row is read
+     */
+    private void firsts(List<Long> nodes) {
+        final Set<Long> pending = new HashSet<>(nodes);
+        final Map<Long, Long> firsts = new HashMap<>();
+        final boolean inOrder = ordered;
+        try {
+            scan(CStore.ALL_NODES, Long.MIN_VALUE, Long.MAX_VALUE, new Visitor() {
+                @Override public boolean row(Segment segment, int i) {
+                    long node = segment.node(i);
+                    Long first = firsts.get(node);
+                    if (pending.contains(node) && (first == null || segment.time(i) < first)) {
+                        firsts.put(node, segment.time(i));
+                    }
+                    return !inOrder || firsts.size() < pending.size();
+                }
+            });
+        } catch (IOException ignored) {
+            // the visitor doesn't throw it
+        }
+        for (Map.Entry<Long, Long> entry : firsts.entrySet()) {
+            stats.first(entry.getKey(), entry.getValue());
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.jpl.embedded.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Phases the application starts with on deploy, each one run in its own
+ * thread, in parallel, so deploying doesn't wait for them and the slow ones,
+ * like booting the database or loading the classes of the REST services,
+ * overlap. A phase may wait for another one to end with await.
+ *
+ * The application is ready once every required phase has ended without
+ * error, and not before the first one is run, so it isn't taken as ready
+ * before the phases are registered. The state and time of each phase are kept to be reported, and the
+ * times are kept in Metrics.
+ *
+ * @author José Pereda Llamas
+ */
+public class Startup {
+
+    public static final String PENDING = "pending";
+    public static final String RUNNING = "running";
+    public static final String DONE = "done";
+    public static final String FAILED = "failed";
+
+    private static Startup instance;
+
+    private final long start = System.currentTimeMillis();
+    private final List<Phase> phases = new ArrayList<>();
+    private final ExecutorService executor;
+
+    /*
+     * state and time of one phase
+     */
+    public static class Phase {
+        private final String name;
+        private final boolean required;
+        private final CountDownLatch ended = new CountDownLatch(1);
+        private volatile String state = PENDING;
+        private volatile long begin;
+        private volatile long end;
+        private volatile String error;
+
+        private Phase(String name, boolean required) {
+            this.name = name;
+            this.required = required;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isRequired() {
+            return required;
+        }
+
+        public String getState() {
+            return state;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        /*
+         * miliseconds taken, or running so far
+         */
+        public long getMillis() {
+            if (begin == 0) {
+                return 0;
+            }
+            return (end == 0 ? System.currentTimeMillis() : end) - begin;
+        }
+    }
+
+    public static synchronized Startup getInstance() {
+        if (instance == null) {
+            instance = new Startup();
+        }
+        return instance;
+    }
+
+    private Startup() {
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Startup");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /*
+     * runs the task of a new phase in its own thread
+     */
+    public void run(String name, boolean required, final Runnable task) {
+        final Phase phase = new Phase(name, required);
+        synchronized (phases) {
+            phases.add(phase);
+        }
+        Metrics.getInstance().gauge("arduinofx_startup_phase_seconds", "Time taken by each phase of the startup",
+                "phase", name, new Metrics.Gauge() {
+            @Override public double value() { return phase.getMillis() / 1000.0; }
+        });
+        executor.execute(new Runnable() {
+            @Override public void run() {
+                Thread.currentThread().setName("Startup " + phase.name);
+                phase.begin = System.currentTimeMillis();
+                phase.state = RUNNING;
+                try {
+                    task.run();
+                    phase.state = DONE;
+                } catch (RuntimeException | Error e) {
+                    e.printStackTrace();
+                    phase.error = e.toString();
+                    phase.state = FAILED;
+                } finally {
+                    phase.end = System.currentTimeMillis();
+                    phase.ended.countDown();
+                    System.out.println("Startup phase " + phase.name + " " + phase.state + " in "
+                            + phase.getMillis() + " ms");
+                    if (isReady() && phase.required) {
+                        System.out.println("Ready in " + (phase.end - start) + " ms");
+                    }
+                }
+            }
+        });
+    }
+
+    /*
+     * waits for the phase to end, at most timeout miliseconds. Returns true if it
+     * ended without error
+     */
+    public boolean await(String name, long timeout) {
+        Phase phase = get(name);
+        if (phase == null) {
+            return false;
+        }
+        try {
+            phase.ended.await(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        return DONE.equals(phase.state);
+    }
+
+    public Phase get(String name) {
+        synchronized (phases) {
+            for (Phase phase : phases) {
+                if (phase.name.equals(name)) {
+                    return phase;
+                }
+            }
+        }
+        return null;
+    }
+
+    public List<Phase> getPhases() {
+        synchronized (phases) {
+            return new ArrayList<>(phases);
+        }
+    }
+
+    /*
+     * true once there are required phases and all of them have ended without error
+     */
+    public boolean isReady() {
+        boolean required = false;
+        for (Phase phase : getPhases()) {
+            if (phase.required && !DONE.equals(phase.state)) {
+                return false;
+            }
+            required |= phase.required;
+        }
+        return required;
+    }
+
+    /*
+     * miliseconds since the startup began
+     */
+    public long getUptime() {
+        return System.currentTimeMillis() - start;
+    }
+}
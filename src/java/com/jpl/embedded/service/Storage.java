@@ -0,0 +1,70 @@
+package com.jpl.embedded.service;
+
+import com.jpl.embedded.model.BeanStats;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Selects the HistoryStore the measures are stored in, with -Dstore.engine:
+ *
+ * - derby: CStore, the embedded JavaDB database xbeeBDD (default)
+ * - segments: SegmentStore, memory mapped files in the directory -Dstore.dir,
+ *   history by default
+ *
+ * Once opened, warm runs each kind of query once, so the first requests don't
+ * pay for compiling the statements and reading the indexes from disk.
+ *
+ * @author José Pereda Llamas
+ */
+public class Storage {
+
+    public static final String ENGINE = System.getProperty("store.engine", "derby");
+
+    private static HistoryStore instance;
+
+    private Storage() {
+    }
+
+    public static synchronized HistoryStore getInstance() {
+        if (instance == null) {
+            if ("segments".equals(ENGINE)) {
+                instance = new SegmentStore(new File(System.getProperty("store.dir", "history")));
+            } else {
+                instance = CStore.getInstance();
+            }
+        }
+        return instance;
+    }
+
+    /*
+     * reads the last row, the oldest day, a page and the summary of the last
+     * day, discarding the rows. Every read is bounded, so the warm up doesn't
+     * grow with the history, as a summary of all of it would with the segments
+     */
+    public static void warm() {
+        HistoryStore store = getInstance();
+        BeanStats stats = store.stats(CStore.ALL_NODES);
+        if (stats.getCount() == 0 || stats.getFirst() == null) {
+            return;
+        }
+        long first = stats.getFirst().getTimeInMillis();
+        long last = stats.getLast().getTimeInMillis();
+        RowHandler discard = new RowHandler() {
+            @Override
+            public void row(int id, long node, long time, float temp, float hum) {
+            }
+        };
+        try {
+            store.last();
+            store.get((int) stats.getLastId());
+            store.list(CStore.ALL_NODES, 100, first, first + Rollups.DAY, discard);
+            if (stats.getNodes() != null && !stats.getNodes().isEmpty()) {
+                store.list(stats.getNodes().get(0).getNode(), 100, first, first + Rollups.DAY, discard);
+            }
+            store.page(CStore.ALL_NODES, 0, 100, discard);
+            store.summary(CStore.ALL_NODES, 100, Math.max(first, last - Rollups.DAY), last);
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+    }
+}
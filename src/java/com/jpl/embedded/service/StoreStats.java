@@ -0,0 +1,202 @@
+package com.jpl.embedded.service;
+
+import com.jpl.embedded.model.BeanHT;
+import com.jpl.embedded.model.BeanStats;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Catalog of the rows in history table: number of rows, time of the first and
+ * last ones and id of the last one, in total and per node.
+ *
+ * It is read from the table once on startup, and then kept up to date with
+ * every batch stored, so count and stats are answered without reading the
+ * database. Rows purged after their retention period are subtracted.
+ * Each change publishes a new BeanStats, that is never modified
+ * afterwards, so readers don't lock.
+ *
+ * @author José Pereda Llamas
+ */
+public class StoreStats {
+
+    /*
+     * counters of one node
+     */
+    private static class Node {
+        long count;
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        long lastId;
+
+        void add(long count, long first, long last, long lastId) {
+            this.count += count;
+            this.first = Math.min(this.first, first);
+            this.last = Math.max(this.last, last);
+            this.lastId = Math.max(this.lastId, lastId);
+        }
+    }
+
+    private final Map<Long, Node> nodes = new TreeMap<>();
+    private volatile BeanStats snapshot;
+
+    StoreStats() {
+        publish();
+    }
+
+    /*
+     * read the stats of every node from history table
+     */
+    void load(Connection connection) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(
+                "SELECT node, COUNT(*), MIN(time), MAX(time), MAX(id) FROM history GROUP BY node");
+        ResultSet resultset = null;
+        synchronized (this) {
+            nodes.clear();
+            try {
+                resultset = statement.executeQuery();
+                while (resultset.next()) {
+                    Node stats = new Node();
+                    stats.add(resultset.getLong(2), resultset.getTimestamp(3).getTime(),
+                            resultset.getTimestamp(4).getTime(), resultset.getLong(5));
+                    nodes.put(resultset.getLong(1), stats);
+                }
+            } finally {
+                if (resultset != null) {
+                    resultset.close();
+                }
+                statement.close();
+            }
+            publish();
+        }
+        System.out.println("Stats loaded, " + snapshot.getCount() + " rows");
+    }
+
+    /*
+     * add a batch just stored, with consecutive ids ending in lastId
+     */
+    synchronized void add(List<BeanHT> beans, long lastId) {
+        long id = lastId - beans.size();
+        for (BeanHT bean : beans) {
+            Node stats = nodes.get(bean.getNode());
+            if (stats == null) {
+                stats = new Node();
+                nodes.put(bean.getNode(), stats);
+            }
+            long time = bean.getTime().getTimeInMillis();
+            stats.add(1, time, time, ++id);
+        }
+        publish();
+    }
+
+    /*
+     * subtract the rows purged of each node. Returns the nodes with rows left,
+     * whose first time has to be set again
+     */
+    synchronized List<Long> remove(Map<Long, Long> counts) {
+        List<Long> left = new ArrayList<>();
+        for (Map.Entry<Long, Long> entry : counts.entrySet()) {
+            Node stats = nodes.get(entry.getKey());
+            if (stats == null) {
+                continue;
+            }
+            stats.count -= entry.getValue();
+            if (stats.count > 0) {
+                left.add(entry.getKey());
+            } else {
+                nodes.remove(entry.getKey());
+            }
+        }
+        publish();
+        return left;
+    }
+
+    /*
+     * time of the first row left of the node, after a purge
+     */
+    synchronized void first(long node, long time) {
+        Node stats = nodes.get(node);
+        if (stats != null) {
+            stats.first = time;
+            publish();
+        }
+    }
+
+    /*
+     * add the rows of a node read on startup by a store without SQL
+     */
+    synchronized void add(long node, long count, long first, long last, long lastId) {
+        Node stats = nodes.get(node);
+        if (stats == null) {
+            stats = new Node();
+            nodes.put(node, stats);
+        }
+        stats.add(count, first, last, lastId);
+        publish();
+    }
+
+    private void publish() {
+        Node total = new Node();
+        List<BeanStats> list = new ArrayList<>(nodes.size());
+        for (Map.Entry<Long, Node> entry : nodes.entrySet()) {
+            Node stats = entry.getValue();
+            total.add(stats.count, stats.first, stats.last, stats.lastId);
+            list.add(bean(entry.getKey(), stats));
+        }
+        BeanStats all = bean(CStore.ALL_NODES, total);
+        all.setNodes(list);
+        snapshot = all;
+    }
+
+    private static BeanStats bean(long node, Node stats) {
+        return new BeanStats(node, stats.count, calendar(stats.count, stats.first),
+                calendar(stats.count, stats.last), stats.lastId);
+    }
+
+    private static Calendar calendar(long count, long time) {
+        if (count == 0) {
+            return null;
+        }
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(time);
+        return cal;
+    }
+
+    /*
+     * stats of all the nodes, with the stats of each one in nodes. Not to be modified
+     */
+    public BeanStats get() {
+        return snapshot;
+    }
+
+    /*
+     * stats of the node, or of all the nodes with ALL_NODES
+     */
+    public BeanStats get(long node) {
+        BeanStats all = snapshot;
+        if (node == CStore.ALL_NODES) {
+            return all;
+        }
+        for (BeanStats stats : all.getNodes()) {
+            if (stats.getNode() == node) {
+                return stats;
+            }
+        }
+        return new BeanStats(node, 0, null, null, 0);
+    }
+
+    public long getCount() {
+        return snapshot.getCount();
+    }
+
+    @Override
+    public String toString() {
+        return snapshot.toString();
+    }
+}
@@ -1,8 +1,18 @@
 package com.jpl.embedded.service;
 
+import com.jpl.embedded.comms.ApiFrameDecoder;
+import com.jpl.embedded.comms.FrameDecoder;
+import com.jpl.embedded.comms.FrameParser;
+import com.jpl.embedded.comms.ReadingListener;
+import com.jpl.embedded.comms.ReadingSource;
+import com.jpl.embedded.comms.Recorder;
+import com.jpl.embedded.comms.ReplaySource;
 import com.jpl.embedded.comms.Serial;
+import com.jpl.embedded.comms.SyntheticSource;
 import com.jpl.embedded.model.BeanHT;
 import com.jpl.embedded.model.CSensor;
+import com.jpl.embedded.model.Reading;
+import java.io.IOException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
@@ -12,18 +22,44 @@ import java.util.concurrent.TimeUnit;
  * XBee open serial port on deploying. A XBee antenna must be plugged in the USB port
  * of the Raspberry Pi via XBee Explorer (https://www.sparkfun.com/products/8687)
  * 
- * The serial port reads measures, which are sent by the Arduino every 10 seconds
+ * The serial port reads measures, which are sent by the Arduino every 10 seconds.
+ * Each measure is set as the last one of its node as soon as it is decoded, and
+ * pushed to the live subscribers.
  * 
- * A scheduled task is launched to store last measures read every 30 seconds
+ * The antenna works in transparent mode by default, reading the measures of one
+ * Arduino. With -Dxbee.mode=api it works as the coordinator of several Arduino end 
+ * nodes, decoding API frames (escaped, AP=2, unless -Dxbee.escaped=false) and tagging
+ * the measures with the source address of each frame. 
+ * The port is set with -Dxbee.port, /dev/ttyUSB0 by default
  * 
- * On undeploy, close the port and stop the task
+ * Without hardware, the bytes can be replayed from a file or generated for any
+ * number of virtual sensors (see createSource), feeding the same decoders, cache
+ * and store. With -Dxbee.record=file the bytes read are recorded to be replayed.
+ * 
+ * A scheduled task is launched to store last measures read from each node every 30 seconds.
+ * With -Dxbee.store=none, deadband or swingingdoor every measure read goes through a 
+ * Compressor instead, that stores the ones needed to rebuild all of them within a tolerance
+ * 
+ * On undeploy, close the port, stop the task and store the queued measures
  * 
  * @author José Pereda Llamas
  * Created on 05-dic-2012 - 18:32:10
  */
-public class XBee {
+public class XBee implements ReadingListener {
+    
+    public static final String PORT = System.getProperty("xbee.port", "/dev/ttyUSB0");
+    public static final boolean API_MODE = "api".equalsIgnoreCase(System.getProperty("xbee.mode"));
+    public static final boolean ESCAPED = !"false".equalsIgnoreCase(System.getProperty("xbee.escaped"));
+    public static final String SOURCE = System.getProperty("xbee.source", "serial");
+    public static final String RECORD = System.getProperty("xbee.record");
+    public static final String STORE = System.getProperty("xbee.store", "snapshot");
     
-    private Serial serial;
+    private static final Metrics.Counter READINGS = Metrics.getInstance().counter("arduinofx_readings_total",
+            "Measures read from the serial port");
+    
+    private ReadingSource source;
+    private Recorder recorder;
+    private Compressor compressor;
     
     private long CICLO_EVENTOS = 30000; // miliseconds 
     private ScheduledFuture<?> scheduleAtFixedRate;
@@ -35,46 +71,134 @@ public class XBee {
          * 1. Start connection with serial port and start reading T,H
          * These values are printed from Arduino each 10 seconds
          */
-        serial=new Serial();
+        if(!"snapshot".equalsIgnoreCase(STORE)){
+            compressor=new Compressor(STORE.toLowerCase());
+        }
+        source=createSource();
+        FrameDecoder parser=API_MODE?new ApiFrameDecoder(ESCAPED, this):new FrameParser(this);
+        if(RECORD!=null){
+            try {
+                recorder=new Recorder(RECORD, parser);
+                parser=recorder;
+                System.out.println("Recording the bytes read in "+RECORD);
+            } catch( IOException e ) {
+                e.printStackTrace();
+            }
+        }
+        final FrameDecoder decoder=parser;
+        Metrics.getInstance().counter("arduinofx_serial_frames_total", "Frames decoded from the serial port", 
+                null, null, new Metrics.Gauge() {
+            @Override public double value() { return decoder.getFrames(); }
+        });
+        Metrics.getInstance().counter("arduinofx_serial_errors_total", "Frames from the serial port discarded as invalid", 
+                null, null, new Metrics.Gauge() {
+            @Override public double value() { return decoder.getErrors(); }
+        });
         try {
-            System.out.println("Connecting to serial port...");
-            serial.connect( "/dev/ttyUSB0" );
+            System.out.println("Connecting to "+SOURCE+" source "+(API_MODE?"in API mode":"")+"...");
+            source.start( decoder );
         } catch( Exception e ) {
             e.printStackTrace();
             return;
         }
         
+        if(compressor!=null){
+            // the measures kept by the compressor are stored as they are read
+            return;
+        }
+        
         /*
          * 2. Start scheduler to record in database each 30 seconds the last values of T,H
+         * of every node
          */
         System.out.println("Starting cicle events");
         scheduler = Executors.newSingleThreadScheduledExecutor();
         scheduleAtFixedRate = scheduler.scheduleAtFixedRate(new Runnable(){
 
             @Override public void run() {
-               /*
-                * get last beanHT read 
-                */
-               BeanHT bean=CSensor.getInstance().getLastBean();
-               System.out.println(bean);
-               if(CStore.waitForDatabase("Servlet XBee")!=CStore.TIMEOUT){ 
-                    /*
-                    * store last beanHT
+               for(Long node : CSensor.getInstance().getNodes()){
+                   /*
+                    * get a copy of the last measure read from the node
                     */
-                   CStore.getInstance().record(bean);
-                }
+                   BeanHT bean=CSensor.getInstance().getLastBean(node);
+                   System.out.println(bean);
+                   /*
+                    * queue last beanHT to be stored, without waiting for the database
+                    */
+                   if(!Storage.getInstance().record(bean)){
+                       System.out.println("Record queue full, measure dropped");
+                   }
+               }
             }            
         }, CICLO_EVENTOS, CICLO_EVENTOS, TimeUnit.MILLISECONDS);
     
     }
     
+    /*
+     * called from the serial reader thread for every measure decoded
+     */
+    @Override
+    public void onReading(long node, double temp, double hum) {
+        READINGS.inc();
+        
+        // publish this measure as the last snapshot of the node
+        Reading reading=CSensor.getInstance().update(node, temp, hum, System.currentTimeMillis());
+        
+        // and push it to the live subscribers
+        LiveFeed.getInstance().publish(node, temp, hum, reading.getTime());
+        
+        // queue the measures the compressor keeps, dropped and counted if the queue is full
+        if(compressor!=null){
+            for(BeanHT bean : compressor.offer(node, temp, hum, reading.getTime())){
+                Storage.getInstance().record(bean);
+            }
+        }
+    }
+    
+    /*
+     * source of the bytes read, set with -Dxbee.source:
+     * - serial, default: the port set with -Dxbee.port
+     * - replay: the file set with -Dxbee.replay, at -Dxbee.speed times its recorded pace
+     *   (1 by default, 0 as fast as possible), played again when it ends with -Dxbee.loop=true
+     * - synthetic: -Dxbee.sensors virtual sensors (10 by default) sending -Dxbee.rate readings
+     *   per second in total (one every 10 seconds per sensor by default, 0 as fast as possible)
+     */
+    private static ReadingSource createSource(){
+        if("replay".equalsIgnoreCase(SOURCE)){
+            return new ReplaySource(System.getProperty("xbee.replay", "xbee.rec"),
+                    Double.parseDouble(System.getProperty("xbee.speed", "1")),
+                    Boolean.getBoolean("xbee.loop"));
+        }
+        if("synthetic".equalsIgnoreCase(SOURCE)){
+            int sensors=Integer.getInteger("xbee.sensors", 10);
+            return new SyntheticSource(sensors, 
+                    Double.parseDouble(System.getProperty("xbee.rate", String.valueOf(sensors/10.0))),
+                    API_MODE, ESCAPED);
+        }
+        return new Serial(PORT);
+    }
+    
     public void disconnect(){
-        System.out.println("Closing serial port");
-        serial.disconnect();
+        System.out.println("Closing "+SOURCE+" source");
+        source.stop();
+        if(recorder!=null){
+            recorder.close();
+        }
 
-        System.out.println("Stopping scheduler");
-        scheduleAtFixedRate.cancel(true);
-        scheduler.shutdown();
+        if(scheduler!=null){
+            System.out.println("Stopping scheduler");
+            scheduleAtFixedRate.cancel(true);
+            scheduler.shutdown();
+        }
+        if(compressor!=null){
+            for(BeanHT bean : compressor.flush()){
+                Storage.getInstance().record(bean);
+            }
+            System.out.println("Compressor "+compressor);
+        }
+        
+        System.out.println("Flushing record queue");
+        Storage.getInstance().flush();
     }
     
 }
@@ -0,0 +1,160 @@
+package com.jpl.embedded.comms;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * ApiFrameDecoder in both API modes: AP=1 frames with 0x7E bytes inside, and
+ * frames split across reads
+ *
+ * @author José Pereda Llamas
+ */
+public class ApiFrameDecoderTest {
+
+    // the third and fourth bytes of the address are 0x7E
+    private static final long NODE = 0x0013A2007E7E0001L;
+    private static final long OTHER = 0x0013A20040000002L;
+    private static final byte DELIMITER = 0x7E;
+
+    /*
+     * every reading received, as node, temp and hum
+     */
+    private static class Readings implements ReadingListener {
+        final List<double[]> list = new ArrayList<>();
+
+        @Override
+        public void onReading(long node, double temp, double hum) {
+            list.add(new double[] { node, temp, hum });
+        }
+    }
+
+    /*
+     * ZigBee Receive Packet from node with the text, its options byte chosen
+     * so the checksum is checksum, escaped as AP=2 if escaped
+     */
+    private static byte[] frame(long node, String text, int checksum, boolean escaped) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write(ApiFrameDecoder.ZB_RX);
+        for (int i = 0; i < 8; i++) {
+            data.write((int) (node >>> (56 - 8 * i)) & 0xff);
+        }
+        data.write(0xFF);
+        data.write(0xFE);
+        data.write(0); // options, set below
+        for (char c : text.toCharArray()) {
+            data.write(c);
+        }
+        byte[] bytes = data.toByteArray();
+        int sum = 0;
+        for (byte b : bytes) {
+            sum += b & 0xff;
+        }
+        bytes[11] = (byte) (0xff - checksum - sum);
+
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(DELIMITER);
+        byte[] unescaped = new byte[bytes.length + 3];
+        unescaped[0] = (byte) (bytes.length >> 8);
+        unescaped[1] = (byte) bytes.length;
+        System.arraycopy(bytes, 0, unescaped, 2, bytes.length);
+        unescaped[unescaped.length - 1] = (byte) checksum;
+        for (byte b : unescaped) {
+            if (escaped && (b == 0x7E || b == 0x7D || b == 0x11 || b == 0x13)) {
+                frame.write(0x7D);
+                b = (byte) (b ^ 0x20);
+            }
+            frame.write(b);
+        }
+        return frame.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] array : arrays) {
+            out.write(array, 0, array.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static void assertReading(double[] reading, long node, double temp, double hum) {
+        assertEquals(node, (long) reading[0]);
+        assertEquals(temp, reading[1], 1e-9);
+        assertEquals(hum, reading[2], 1e-9);
+    }
+
+    private void frameWithDelimiters(boolean escaped) {
+        Readings readings = new Readings();
+        ApiFrameDecoder decoder = new ApiFrameDecoder(escaped, readings);
+        byte[] bytes = concat(frame(NODE, "{21.5,40.0}\r\n", 0x7E, escaped),
+                frame(OTHER, "{-3.2,55.5}\r\n", 0x10, escaped));
+
+        assertEquals(2, decoder.parse(bytes, 0, bytes.length));
+        assertEquals(2, decoder.getFrames());
+        assertEquals(0, decoder.getErrors());
+        assertReading(readings.list.get(0), NODE, 21.5, 40.0);
+        assertReading(readings.list.get(1), OTHER, -3.2, 55.5);
+    }
+
+    @Test
+    public void unescapedFrameWithDelimiters() {
+        byte[] bytes = frame(NODE, "{21.5,40.0}\r\n", 0x7E, false);
+        assertEquals(DELIMITER, bytes[bytes.length - 1]);
+        frameWithDelimiters(false);
+    }
+
+    @Test
+    public void escapedFrameWithDelimiters() {
+        frameWithDelimiters(true);
+    }
+
+    private void splitFrame(boolean escaped) {
+        byte[] bytes = frame(NODE, "{21.5,40.0}\r\n", 0x7E, escaped);
+        for (int split = 0; split <= bytes.length; split++) {
+            Readings readings = new Readings();
+            ApiFrameDecoder decoder = new ApiFrameDecoder(escaped, readings);
+            int found = decoder.parse(bytes, 0, split);
+            found += decoder.parse(bytes, split, bytes.length - split);
+
+            assertEquals("split at " + split, 1, found);
+            assertEquals(0, decoder.getErrors());
+            assertReading(readings.list.get(0), NODE, 21.5, 40.0);
+        }
+    }
+
+    @Test
+    public void unescapedFrameSplitAcrossReads() {
+        splitFrame(false);
+    }
+
+    @Test
+    public void escapedFrameSplitAcrossReads() {
+        splitFrame(true);
+    }
+
+    private void resyncAfterTruncatedFrame(boolean escaped) {
+        Readings readings = new Readings();
+        ApiFrameDecoder decoder = new ApiFrameDecoder(escaped, readings);
+        // noise, a frame that lost its last bytes and a good one
+        byte[] truncated = frame(OTHER, "{10.0,20.0}\r\n", 0x10, escaped);
+        byte[] bytes = concat(new byte[] { 0x01, 0x02 }, Arrays.copyOf(truncated, truncated.length - 6),
+                frame(NODE, "{21.5,40.0}\r\n", 0x7E, escaped));
+
+        assertEquals(1, decoder.parse(bytes, 0, bytes.length));
+        assertEquals(1, decoder.getErrors());
+        assertReading(readings.list.get(0), NODE, 21.5, 40.0);
+    }
+
+    @Test
+    public void unescapedResyncAfterTruncatedFrame() {
+        resyncAfterTruncatedFrame(false);
+    }
+
+    @Test
+    public void escapedResyncAfterTruncatedFrame() {
+        resyncAfterTruncatedFrame(true);
+    }
+}
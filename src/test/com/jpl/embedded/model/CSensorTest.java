@@ -0,0 +1,148 @@
+package com.jpl.embedded.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stress test of the CSensor snapshots: while several threads publish measures,
+ * readers must never see a Reading with values of two different measures, and
+ * the versions they see must never go back.
+ *
+ * Every measure k of node n has temp = k, hum = k + 0.5 and time = START + k,
+ * so the values of a snapshot tell if they come from the same measure.
+ *
+ * @author José Pereda Llamas
+ */
+public class CSensorTest {
+
+    private static final long START = 1325372400000L; // 1/1/2012 00:00:00 CET
+    private static final int WRITERS = 4;
+    private static final int READERS = 4;
+    private static final int MEASURES = 200000; // per writer
+
+    private final CSensor sensor = CSensor.getInstance();
+
+    @Before
+    public void setUp() {
+        sensor.reset();
+    }
+
+    /*
+     * fails if the snapshot mixes the values of two measures
+     */
+    private static void check(Reading reading) {
+        double k = reading.getTemp();
+        assertEquals("hum of " + reading, k + 0.5, reading.getHum(), 0);
+        assertEquals("time of " + reading, START + (long) k, reading.getTime());
+        assertEquals("node of " + reading, 1 + (long) k % WRITERS, reading.getNode());
+    }
+
+    @Test
+    public void readersNeverSeeTornReadings() throws Exception {
+        final long reset = sensor.getVersion();
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> writers = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            final long node = 1 + w;
+            writers.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (long k = node - 1; k < (long) MEASURES * WRITERS; k += WRITERS) {
+                            sensor.update(node, k, k + 0.5, START + k);
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+        }
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < READERS; r++) {
+            readers.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        long version = 0;
+                        long[] versions = new long[WRITERS];
+                        while (running.get()) {
+                            Reading latest = sensor.getLatest();
+                            assertTrue("version went back", latest.getVersion() >= version);
+                            version = latest.getVersion();
+                            if (latest.getNode() != 0) {
+                                check(latest);
+                            }
+                            for (int n = 0; n < WRITERS; n++) {
+                                Reading reading = sensor.getLatest(1 + n);
+                                if (reading != null) {
+                                    check(reading);
+                                    assertTrue("version of node went back", reading.getVersion() >= versions[n]);
+                                    versions[n] = reading.getVersion();
+                                }
+                            }
+                            BeanHT bean = sensor.getLastBean();
+                            if (bean.getNode() != 0) {
+                                assertEquals(bean.getTemp() + 0.5, bean.getHum(), 0);
+                                assertEquals(START + (long) bean.getTemp(), bean.getTime().getTimeInMillis());
+                            }
+                            List<Long> nodes = sensor.getNodes();
+                            for (int i = 1; i < nodes.size(); i++) {
+                                assertTrue("nodes not sorted", nodes.get(i - 1) < nodes.get(i));
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+        }
+        for (Thread thread : writers) {
+            thread.start();
+        }
+        for (Thread thread : readers) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : writers) {
+            thread.join();
+        }
+        running.set(false);
+        for (Thread thread : readers) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        // the last snapshot is the newest measure, and every node kept its own last one
+        assertEquals(reset + (long) MEASURES * WRITERS, sensor.getVersion());
+        assertEquals(sensor.getVersion(), sensor.getLatest().getVersion());
+        for (int n = 0; n < WRITERS; n++) {
+            Reading reading = sensor.getLatest(1 + n);
+            assertEquals((double) (MEASURES - 1) * WRITERS + n, reading.getTemp(), 0);
+        }
+        assertEquals(WRITERS, sensor.getNodes().size());
+    }
+
+    @Test
+    public void resetForgetsTheNodes() {
+        sensor.update(7, 20.5, 40.5, START);
+        sensor.reset();
+        assertNull(sensor.getLatest(7));
+        assertTrue(sensor.getNodes().isEmpty());
+        assertEquals(0, sensor.getLatest().getNode());
+        assertTrue(sensor.getLatest().getVersion() > 0);
+    }
+}
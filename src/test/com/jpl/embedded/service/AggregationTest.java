@@ -0,0 +1,130 @@
+package com.jpl.embedded.service;
+
+import com.jpl.embedded.model.BeanAggregate;
+import com.jpl.embedded.model.BeanHT;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Aggregation on a SegmentStore: the buckets computed in parallel partitions,
+ * merged when a bucket is split between them, are the ones computed by the
+ * calling thread alone, and the ones computed from the rows in two passes
+ *
+ * @author José Pereda Llamas
+ */
+public class AggregationTest {
+
+    private static final long START = 1325372400000L; // 1/1/2012 00:00:00 CET
+    private static final int ROWS = 30000;
+    private static final long PERIOD = 37000; // miliseconds between rows
+    // not a divisor of the partitions, so buckets straddle them
+    private static final long WIDTH = 7 * Rollups.HOUR + 13 * 60000;
+    private static final double EPSILON = 1e-9;
+
+    private File dir;
+    private SegmentStore store;
+    private final List<BeanHT> beans = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("aggregation", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        store = new SegmentStore(dir);
+        Random random = new Random(11);
+        for (int i = 0; i < ROWS; i++) {
+            Calendar cal = Calendar.getInstance();
+            cal.setTimeInMillis(START + i * PERIOD);
+            beans.add(new BeanHT(0, 1 + i % 2, (float) (20 + 5 * Math.sin(i / 500.0) + random.nextGaussian()),
+                    (float) (50 + 10 * random.nextGaussian()), cal));
+        }
+        // stored out of time order, as after a backfill
+        for (int from = ROWS; from > 0; from -= 1000) {
+            store.backfill(new ArrayList<>(beans.subList(from - 1000, from)));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        store.shutdown();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private static void assertSame(BeanAggregate expected, BeanAggregate actual) {
+        assertEquals(expected.getTime().getTimeInMillis(), actual.getTime().getTimeInMillis());
+        assertEquals(expected.getCount(), actual.getCount());
+        assertEquals(expected.getTempMin(), actual.getTempMin(), EPSILON);
+        assertEquals(expected.getTempMax(), actual.getTempMax(), EPSILON);
+        assertEquals(expected.getTempAvg(), actual.getTempAvg(), EPSILON);
+        assertEquals(expected.getTempStd(), actual.getTempStd(), EPSILON);
+        assertEquals(expected.getHumMin(), actual.getHumMin(), EPSILON);
+        assertEquals(expected.getHumMax(), actual.getHumMax(), EPSILON);
+        assertEquals(expected.getHumAvg(), actual.getHumAvg(), EPSILON);
+        assertEquals(expected.getHumStd(), actual.getHumStd(), EPSILON);
+    }
+
+    private void sameInParallel(long node, long ini, long end) throws IOException {
+        List<BeanAggregate> sequential = new Aggregation(store, 1).aggregate(node, ini, end, WIDTH);
+        List<BeanAggregate> parallel = new Aggregation(store, 4).aggregate(node, ini, end, WIDTH);
+        assertTrue(sequential.size() > 10);
+        assertEquals(sequential.size(), parallel.size());
+        for (int b = 0; b < sequential.size(); b++) {
+            assertSame(sequential.get(b), parallel.get(b));
+        }
+    }
+
+    @Test
+    public void parallelPartitionsGiveTheSameBuckets() throws IOException {
+        long end = START + ROWS * PERIOD;
+        sameInParallel(CStore.ALL_NODES, START, end);
+        sameInParallel(2, START + 12345678, end - 7654321);
+    }
+
+    @Test
+    public void bucketsMatchTheRows() throws IOException {
+        long ini = START + 1000, end = START + ROWS * PERIOD;
+        List<BeanAggregate> list = new Aggregation(store, 4).aggregate(CStore.ALL_NODES, ini, end, WIDTH);
+        int total = 0;
+        for (BeanAggregate aggregate : list) {
+            long from = aggregate.getTime().getTimeInMillis();
+            double sum = 0, min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+            int count = 0;
+            for (BeanHT bean : beans) {
+                long time = bean.getTime().getTimeInMillis();
+                if (time >= Math.max(ini, from) && time < from + WIDTH && time <= end) {
+                    float temp = (float) bean.getTemp();
+                    sum += temp;
+                    min = Math.min(min, temp);
+                    max = Math.max(max, temp);
+                    count++;
+                }
+            }
+            double mean = sum / count, squares = 0;
+            for (BeanHT bean : beans) {
+                long time = bean.getTime().getTimeInMillis();
+                if (time >= Math.max(ini, from) && time < from + WIDTH && time <= end) {
+                    double delta = (float) bean.getTemp() - mean;
+                    squares += delta * delta;
+                }
+            }
+            assertEquals(count, aggregate.getCount());
+            assertEquals(min, aggregate.getTempMin(), EPSILON);
+            assertEquals(max, aggregate.getTempMax(), EPSILON);
+            assertEquals(mean, aggregate.getTempAvg(), EPSILON);
+            assertEquals(Math.sqrt(squares / count), aggregate.getTempStd(), EPSILON);
+            total += count;
+        }
+        assertEquals(ROWS - 1, total);
+    }
+}
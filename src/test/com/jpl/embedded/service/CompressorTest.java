@@ -0,0 +1,140 @@
+package com.jpl.embedded.service;
+
+import com.jpl.embedded.model.BeanHT;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compressor on noisy series of several nodes: the series rebuilt from the
+ * measures stored, flush included, gives every measure read within the
+ * tolerance, holding each value in deadband mode and interpolating between
+ * them in swingingdoor mode
+ *
+ * @author José Pereda Llamas
+ */
+public class CompressorTest {
+
+    private static final long START = 1325372400000L; // 1/1/2012 00:00:00 CET
+    private static final int NODES = 3;
+    private static final int MEASURES = 5000; // per node
+    // rounding of the slopes
+    private static final double EPSILON = 1e-9;
+
+    /*
+     * measure of a node: temp, hum and time
+     */
+    private static class Measure {
+        final double temp;
+        final double hum;
+        final long time;
+
+        Measure(double temp, double hum, long time) {
+            this.temp = temp;
+            this.hum = hum;
+            this.time = time;
+        }
+    }
+
+    /*
+     * every measure read, fed to the compressor node by node, interleaved. Slow
+     * drifts with noise of half the tolerance, some steps and gaps longer
+     * than MAX_GAP
+     */
+    private static Map<Long, List<Measure>> feed(Compressor compressor, Map<Long, List<Measure>> stored) {
+        Random random = new Random(42);
+        Map<Long, List<Measure>> read = new HashMap<>();
+        double[] temps = new double[NODES];
+        double[] hums = new double[NODES];
+        long[] times = new long[NODES];
+        for (int n = 0; n < NODES; n++) {
+            temps[n] = 20 + n;
+            hums[n] = 40 + 5 * n;
+            times[n] = START + n * 333;
+            read.put(1L + n, new ArrayList<Measure>());
+            stored.put(1L + n, new ArrayList<Measure>());
+        }
+        for (int k = 0; k < MEASURES; k++) {
+            for (int n = 0; n < NODES; n++) {
+                temps[n] += 0.02 * random.nextGaussian() + (k % 1000 == 500 ? 2 : 0);
+                hums[n] += 0.1 * random.nextGaussian();
+                times[n] += (k % 700 == 699 ? Compressor.MAX_GAP + 1000 : 1000 + random.nextInt(500));
+                double temp = temps[n] + 0.5 * Compressor.TEMP_TOLERANCE * random.nextGaussian();
+                double hum = hums[n] + 0.5 * Compressor.HUM_TOLERANCE * random.nextGaussian();
+                read.get(1L + n).add(new Measure(temp, hum, times[n]));
+                keep(stored, compressor.offer(1 + n, temp, hum, times[n]));
+            }
+        }
+        keep(stored, compressor.flush());
+        return read;
+    }
+
+    private static void keep(Map<Long, List<Measure>> stored, List<BeanHT> beans) {
+        for (BeanHT bean : beans) {
+            stored.get(bean.getNode()).add(new Measure(bean.getTemp(), bean.getHum(),
+                    bean.getTime().getTimeInMillis()));
+        }
+    }
+
+    /*
+     * largest difference between the measures read and the series rebuilt from
+     * the ones stored, for temp and hum, checking the stored ones are in time order
+     */
+    private static double[] maxError(List<Measure> read, List<Measure> stored, boolean interpolate) {
+        double[] max = new double[2];
+        int s = 0;
+        for (Measure measure : read) {
+            while (s + 1 < stored.size() && stored.get(s + 1).time <= measure.time) {
+                assertTrue("stored out of order", stored.get(s).time < stored.get(s + 1).time);
+                s++;
+            }
+            Measure from = stored.get(s);
+            assertTrue("measure before the first one stored", from.time <= measure.time);
+            double temp = from.temp;
+            double hum = from.hum;
+            if (interpolate && from.time < measure.time) {
+                assertTrue("measure after the last one stored", s + 1 < stored.size());
+                Measure to = stored.get(s + 1);
+                double f = (double) (measure.time - from.time) / (to.time - from.time);
+                temp = from.temp + f * (to.temp - from.temp);
+                hum = from.hum + f * (to.hum - from.hum);
+            }
+            max[0] = Math.max(max[0], Math.abs(measure.temp - temp));
+            max[1] = Math.max(max[1], Math.abs(measure.hum - hum));
+        }
+        return max;
+    }
+
+    private void withinTolerance(String mode, boolean interpolate) {
+        Map<Long, List<Measure>> stored = new HashMap<>();
+        Map<Long, List<Measure>> read = feed(new Compressor(mode), stored);
+        int kept = 0;
+        for (long node = 1; node <= NODES; node++) {
+            double[] max = maxError(read.get(node), stored.get(node), interpolate);
+            assertTrue(mode + " temp error " + max[0], max[0] <= Compressor.TEMP_TOLERANCE + EPSILON);
+            assertTrue(mode + " hum error " + max[1], max[1] <= Compressor.HUM_TOLERANCE + EPSILON);
+            if (interpolate) {
+                // flush ends the series at the last measure read
+                List<Measure> nodeRead = read.get(node), nodeStored = stored.get(node);
+                assertEquals(nodeRead.get(nodeRead.size() - 1).time, nodeStored.get(nodeStored.size() - 1).time);
+            }
+            kept += stored.get(node).size();
+        }
+        assertTrue(mode + " stored every measure", kept < NODES * MEASURES);
+    }
+
+    @Test
+    public void deadbandHoldsWithinTolerance() {
+        withinTolerance(Compressor.DEADBAND, false);
+    }
+
+    @Test
+    public void swingingDoorInterpolatesWithinTolerance() {
+        withinTolerance(Compressor.SWINGING_DOOR, true);
+    }
+}
@@ -0,0 +1,138 @@
+package com.jpl.embedded.service;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * ConnectionPool on an in-memory Derby database: readers run their queries at
+ * the same time, one per connection, and never see the rows of a batch not
+ * committed yet
+ *
+ * @author José Pereda Llamas
+ */
+public class ConnectionPoolTest {
+
+    private static final int READERS = 4;
+
+    private ConnectionPool pool;
+
+    @Before
+    public void setUp() throws SQLException {
+        System.setProperty("derby.locks.waitTimeout", "1");
+        pool = new ConnectionPool("jdbc:derby:memory:pool" + System.nanoTime() + ";create=true", READERS);
+        Connection writer = pool.acquireWriter(1000);
+        Statement statement = writer.createStatement();
+        statement.execute("CREATE TABLE history(id INTEGER NOT NULL GENERATED ALWAYS AS IDENTITY, "
+                + "temp FLOAT NOT NULL)");
+        for (int i = 0; i < 100; i++) {
+            statement.execute("INSERT INTO history (temp) VALUES (" + i + ")");
+        }
+        statement.close();
+        pool.releaseWriter();
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    public void readersQueryConcurrently() throws Exception {
+        final CyclicBarrier together = new CyclicBarrier(READERS);
+        final AtomicInteger maxActive = new AtomicInteger();
+        final AtomicInteger active = new AtomicInteger();
+        final List<Throwable> errors = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < READERS; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Connection connection = pool.acquire(1000);
+                    try {
+                        assertNotNull(connection);
+                        int now = active.incrementAndGet();
+                        maxActive.set(Math.max(maxActive.get(), now));
+                        // every reader holds its connection while the others query
+                        together.await(5, TimeUnit.SECONDS);
+                        Statement statement = connection.createStatement();
+                        ResultSet resultset = statement.executeQuery("SELECT count(*) FROM history");
+                        resultset.next();
+                        assertEquals(100, resultset.getInt(1));
+                        statement.close();
+                        together.await(5, TimeUnit.SECONDS);
+                        active.decrementAndGet();
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    } finally {
+                        pool.release(connection);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(READERS, maxActive.get());
+        assertEquals(READERS, pool.available());
+    }
+
+    @Test
+    public void readerTimesOutWhenPoolIsEmpty() {
+        List<Connection> held = new ArrayList<>();
+        for (int i = 0; i < READERS; i++) {
+            held.add(pool.acquire(100));
+        }
+        assertNull(pool.acquire(50));
+        for (Connection connection : held) {
+            pool.release(connection);
+        }
+        assertNotNull(pool.acquire(50));
+    }
+
+    @Test
+    public void readersDontSeeUncommittedRows() throws SQLException {
+        Connection writer = pool.acquireWriter(1000);
+        writer.setAutoCommit(false);
+        Statement insert = writer.createStatement();
+        insert.execute("INSERT INTO history (temp) VALUES (-1)");
+        Connection reader = pool.acquire(1000);
+        Statement statement = reader.createStatement();
+        try {
+            ResultSet resultset = statement.executeQuery("SELECT count(*) FROM history WHERE temp < 0");
+            resultset.next();
+            fail("Read a row not committed: " + resultset.getInt(1));
+        } catch (SQLException lockTimeout) {
+            // waited for the batch being written, instead of reading it
+            assertEquals("40XL1", lockTimeout.getSQLState());
+        }
+        writer.rollback();
+        writer.setAutoCommit(true);
+        insert.close();
+        pool.releaseWriter();
+        ResultSet resultset = statement.executeQuery("SELECT count(*) FROM history WHERE temp < 0");
+        resultset.next();
+        assertEquals(0, resultset.getInt(1));
+        statement.close();
+        pool.release(reader);
+    }
+}
@@ -0,0 +1,247 @@
+package com.jpl.embedded.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Downsampler fed with the rows of a range in any order: lttb, with its hulls,
+ * chooses the same rows as LTTB computed over every row kept in memory, minmax
+ * the same as the extremes of each interval found one by one, and ranges with
+ * no more than tam rows come back whole, in time order
+ *
+ * @author José Pereda Llamas
+ */
+public class DownsamplerTest {
+
+    private static final long START = 1325372400000L; // 1/1/2012 00:00:00 CET
+    private static final int ROWS = 20000;
+    private static final int TAM = 50;
+
+    /*
+     * one row, as fed and as returned
+     */
+    private static class Row {
+        final int id;
+        final long node;
+        final long time;
+        final float temp;
+        final float hum;
+
+        Row(int id, long node, long time, float temp, float hum) {
+            this.id = id;
+            this.node = node;
+            this.time = time;
+            this.temp = temp;
+            this.hum = hum;
+        }
+
+        double value(int variable) {
+            return (variable == 0 ? temp : hum);
+        }
+    }
+
+    private static final Comparator<Row> BY_TIME = new Comparator<Row>() {
+        @Override public int compare(Row a, Row b) {
+            return (a.time < b.time ? -1 : (a.time > b.time ? 1 : Integer.compare(a.id, b.id)));
+        }
+    };
+
+    /*
+     * noisy rows with a few spikes, measured at random times with a gap with no
+     * rows, so some intervals are empty. Values in steps of 0.25 for minmax ties
+     */
+    private static List<Row> rows(int count, boolean steps) {
+        Random random = new Random(7);
+        List<Row> rows = new ArrayList<>();
+        double temp = 20, hum = 40;
+        for (int i = 0; i < count; i++) {
+            long time = START + i * 1000L + random.nextInt(1000) + (i > count / 3 ? 5000000L : 0);
+            temp += 0.05 * random.nextGaussian();
+            hum += 0.2 * random.nextGaussian();
+            double t = temp + 0.3 * random.nextGaussian() + (random.nextInt(500) == 0 ? 5 : 0);
+            double h = hum + random.nextGaussian();
+            if (steps) {
+                t = Math.round(t * 4) / 4.0;
+                h = Math.round(h * 4) / 4.0;
+            }
+            rows.add(new Row(i + 1, 1, time, (float) t, (float) h));
+        }
+        return rows;
+    }
+
+    private static List<Row> downsample(String mode, int tam, long ini, long end, List<Row> rows)
+            throws IOException {
+        final List<Row> out = new ArrayList<>();
+        Downsampler downsampler = new Downsampler(mode, tam, ini, end, new RowHandler() {
+            @Override
+            public void row(int id, long node, long time, float temp, float hum) {
+                out.add(new Row(id, node, time, temp, hum));
+            }
+        });
+        for (Row row : rows) {
+            downsampler.row(row.id, row.node, row.time, row.temp, row.hum);
+        }
+        int sent = downsampler.close();
+        assertEquals(sent, out.size());
+        return out;
+    }
+
+    /*
+     * rows of each interval, with the same bounds as Downsampler and list
+     */
+    private static List<List<Row>> intervals(List<Row> rows, int tam, long ini, long end) {
+        double step = (double) (end - ini) / tam;
+        List<List<Row>> intervals = new ArrayList<>();
+        for (int i = 0; i < tam; i++) {
+            intervals.add(new ArrayList<Row>());
+        }
+        for (Row row : rows) {
+            int bucket = (int) Math.min(tam - 1, (long) ((row.time - ini) / step));
+            if (bucket > 0 && row.time < ini + (long) (bucket * step)) {
+                bucket--;
+            } else if (bucket < tam - 1 && row.time >= ini + (long) ((bucket + 1) * step)) {
+                bucket++;
+            }
+            intervals.get(bucket).add(row);
+        }
+        return intervals;
+    }
+
+    private static void assertSameRows(List<Row> expected, List<Row> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals("row " + i, expected.get(i).id, actual.get(i).id);
+            assertEquals(expected.get(i).time, actual.get(i).time);
+        }
+    }
+
+    /*
+     * LTTB over every row of each interval, summing them in the order they are fed
+     */
+    private static List<Row> lttb(List<Row> rows, int tam, long ini, long end) {
+        List<List<Row>> intervals = intervals(rows, tam, ini, end);
+        Row first = Collections.min(rows, BY_TIME), last = Collections.max(rows, BY_TIME);
+        Row[][] chosen = new Row[tam][2];
+        for (int v = 0; v < 2; v++) {
+            Row previous = first;
+            for (int b = 0; b < tam; b++) {
+                if (intervals.get(b).isEmpty()) {
+                    continue;
+                }
+                int next = b + 1;
+                while (next < tam && intervals.get(next).isEmpty()) {
+                    next++;
+                }
+                double time, value;
+                if (next < tam) {
+                    double sumTime = 0, sum = 0;
+                    for (Row row : intervals.get(next)) {
+                        sumTime += row.time - ini;
+                        sum += row.value(v);
+                    }
+                    time = sumTime / intervals.get(next).size();
+                    value = sum / intervals.get(next).size();
+                } else {
+                    time = last.time - ini;
+                    value = last.value(v);
+                }
+                double ax = previous.time - ini, ay = previous.value(v);
+                Row best = null;
+                double area = -1;
+                for (Row row : intervals.get(b)) {
+                    double a = Math.abs((row.time - ini - ax) * (value - ay) - (row.value(v) - ay) * (time - ax));
+                    if (a > area || (a == area && BY_TIME.compare(row, best) < 0)) {
+                        area = a;
+                        best = row;
+                    }
+                }
+                chosen[b][v] = best;
+                previous = best;
+            }
+        }
+        List<Row> out = new ArrayList<>();
+        for (int b = 0; b < tam; b++) {
+            List<Row> interval = new ArrayList<>();
+            for (Row row : chosen[b]) {
+                if (row != null && !interval.contains(row)) {
+                    interval.add(row);
+                }
+            }
+            Collections.sort(interval, BY_TIME);
+            out.addAll(interval);
+        }
+        if (!out.contains(first)) {
+            out.add(0, first);
+        }
+        if (!out.contains(last)) {
+            out.add(last);
+        }
+        return out;
+    }
+
+    /*
+     * rows with the minimum and maximum of each variable of each interval, the
+     * earliest one if several have it
+     */
+    private static List<Row> minmax(List<Row> rows, int tam, long ini, long end) {
+        List<Row> out = new ArrayList<>();
+        for (List<Row> interval : intervals(rows, tam, ini, end)) {
+            List<Row> sorted = new ArrayList<>(interval);
+            Collections.sort(sorted, BY_TIME);
+            List<Row> extremes = new ArrayList<>();
+            for (int v = 0; v < 2; v++) {
+                Row min = null, max = null;
+                for (Row row : sorted) {
+                    if (min == null || row.value(v) < min.value(v)) {
+                        min = row;
+                    }
+                    if (max == null || row.value(v) > max.value(v)) {
+                        max = row;
+                    }
+                }
+                for (Row row : new Row[] { min, max }) {
+                    if (row != null && !extremes.contains(row)) {
+                        extremes.add(row);
+                    }
+                }
+            }
+            Collections.sort(extremes, BY_TIME);
+            out.addAll(extremes);
+        }
+        return out;
+    }
+
+    @Test
+    public void lttbChoosesAsFullLttb() throws IOException {
+        List<Row> rows = rows(ROWS, false);
+        Collections.shuffle(rows, new Random(1));
+        long ini = START, end = START + ROWS * 1000L + 5000000L;
+        assertSameRows(lttb(rows, TAM, ini, end), downsample(Downsampler.LTTB, TAM, ini, end, rows));
+    }
+
+    @Test
+    public void minmaxKeepsTheExtremes() throws IOException {
+        List<Row> rows = rows(ROWS, true);
+        Collections.shuffle(rows, new Random(2));
+        long ini = START, end = START + ROWS * 1000L + 5000000L;
+        assertSameRows(minmax(rows, TAM, ini, end), downsample(Downsampler.MINMAX, TAM, ini, end, rows));
+    }
+
+    @Test
+    public void fewRowsComeWholeInTimeOrder() throws IOException {
+        List<Row> rows = rows(TAM, false);
+        List<Row> sorted = new ArrayList<>(rows);
+        Collections.sort(sorted, BY_TIME);
+        Collections.shuffle(rows, new Random(3));
+        long ini = START, end = START + TAM * 1000L + 5000000L;
+        for (String mode : new String[] { Downsampler.FIRST, Downsampler.MINMAX, Downsampler.LTTB }) {
+            assertSameRows(sorted, downsample(mode, TAM, ini, end, rows));
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.jpl.embedded.service;
+
+import com.jpl.embedded.JsonRows;
+import com.jpl.embedded.model.BeanHT;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * HistoryCodec round trips: the rows decoded from the binary format give the
+ * same JSON list, written by JsonRows, as the rows encoded
+ *
+ * @author José Pereda Llamas
+ */
+public class HistoryCodecTest {
+
+    private static final long START = 1325372400000L; // 1/1/2012 00:00:00 CET
+
+    /*
+     * the rows, in json and encoded by a codec that has them
+     */
+    private static class Rows implements RowHandler {
+        final HistoryCodec codec = new HistoryCodec();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final JsonRows json;
+
+        Rows() throws IOException {
+            json = new JsonRows(bytes);
+        }
+
+        @Override
+        public void row(int id, long node, long time, float temp, float hum) throws IOException {
+            codec.row(id, node, time, temp, hum);
+            json.row(id, node, time, temp, hum);
+        }
+
+        String json() throws IOException {
+            json.close();
+            return bytes.toString("UTF-8");
+        }
+
+        byte[] encoded() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            codec.encode(out);
+            return out.toByteArray();
+        }
+    }
+
+    private static String decodedJson(byte[] encoded) throws IOException {
+        List<BeanHT> list = HistoryCodec.decode(new ByteArrayInputStream(encoded));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JsonRows json = new JsonRows(bytes);
+        for (BeanHT bean : list) {
+            json.row(bean.getId(), bean.getNode(), bean.getTime().getTimeInMillis(),
+                    (float) bean.getTemp(), (float) bean.getHum());
+        }
+        json.close();
+        return bytes.toString("UTF-8");
+    }
+
+    private static void assertRoundTrip(Rows rows) throws IOException {
+        byte[] encoded = rows.encoded();
+        assertEquals(rows.json(), decodedJson(encoded));
+    }
+
+    @Test
+    public void emptyList() throws IOException {
+        Rows rows = new Rows();
+        byte[] encoded = rows.encoded();
+        // magic, version and a count of 0
+        assertEquals(6, encoded.length);
+        assertEquals("[]", decodedJson(encoded));
+    }
+
+    @Test
+    public void oneRow() throws IOException {
+        Rows rows = new Rows();
+        rows.row(1, 0, START, 21.5f, 45f);
+        assertRoundTrip(rows);
+    }
+
+    @Test
+    public void severalNodes() throws IOException {
+        Rows rows = new Rows();
+        long[] nodes = { 0, 0x0013a20040a1b2c3L, -1, Long.MIN_VALUE, Long.MAX_VALUE };
+        for (int i = 0; i < 100; i++) {
+            rows.row(i + 1, nodes[i % nodes.length], START + i * 30000L, 20 + i / 10f, 50 - i / 10f);
+        }
+        assertRoundTrip(rows);
+    }
+
+    @Test
+    public void negativeDeltas() throws IOException {
+        Rows rows = new Rows();
+        // sampled lists of several nodes, and downsampled ones, aren't in id or time order
+        Random random = new Random(7);
+        for (int i = 0; i < 1000; i++) {
+            rows.row(random.nextInt(1000000), random.nextInt(4), START + random.nextInt() * 1000L,
+                    random.nextFloat() * 80 - 40, random.nextFloat() * 100);
+        }
+        rows.row(5, 1, 0, -0f, 0f);
+        rows.row(4, 1, -1000, Float.MIN_VALUE, Float.MAX_VALUE);
+        assertRoundTrip(rows);
+    }
+
+    @Test
+    public void idsAbove2To31() throws IOException {
+        Rows rows = new Rows();
+        // ids are written as unsigned 32 bits: past 2^31 - 1 they wrap to negative ints
+        rows.row(Integer.MAX_VALUE - 1, 0, START, 20f, 50f);
+        rows.row(Integer.MAX_VALUE, 0, START + 1000, 20f, 50f);
+        rows.row(Integer.MIN_VALUE, 0, START + 2000, 20f, 50f);
+        rows.row(-1, 0, START + 3000, 20f, 50f);
+        rows.row(1, 0, START + 4000, 20f, 50f);
+        assertRoundTrip(rows);
+
+        Rows first = new Rows();
+        first.row(Integer.MIN_VALUE, 0, START, 20f, 50f);
+        first.row(Integer.MIN_VALUE + 1, 0, START, 20f, 50f);
+        byte[] encoded = first.encoded();
+        assertRoundTrip(first);
+        List<BeanHT> list = HistoryCodec.decode(new ByteArrayInputStream(encoded));
+        assertEquals(1L << 31, list.get(0).getId() & 0xffffffffL);
+    }
+
+    @Test
+    public void extremeTimes() throws IOException {
+        Rows rows = new Rows();
+        rows.row(1, 0, Long.MAX_VALUE / 2, 1f, 2f);
+        rows.row(2, 0, Long.MIN_VALUE / 2, 3f, 4f);
+        rows.row(3, 0, 0, 5f, 6f);
+        assertRoundTrip(rows);
+    }
+
+    @Test
+    public void smallerThanJson() throws IOException {
+        Rows rows = new Rows();
+        for (int i = 0; i < 1000; i++) {
+            rows.row(i + 1, i % 4, START + i * 30000L, 20 + (i % 50) / 10f, 50 - (i % 50) / 10f);
+        }
+        byte[] encoded = rows.encoded();
+        String json = rows.json();
+        assertTrue(encoded.length * 4 < json.length());
+        assertEquals(json, decodedJson(encoded));
+    }
+}
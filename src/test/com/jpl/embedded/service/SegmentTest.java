@@ -0,0 +1,154 @@
+package com.jpl.embedded.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Segment files of SegmentStore: rows corrupt or torn by a crash are zeroed
+ * when the segment is opened again, and sealed segments dropped from the mapped
+ * ones and then deleted are still read by the readers that took them
+ *
+ * @author José Pereda Llamas
+ */
+public class SegmentTest {
+
+    private static final long START = 1325372400000L; // 1/1/2012 00:00:00 CET
+    private static final int CAPACITY = 2 * Segment.BLOCK;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("segments", "");
+        assertTrue(dir.delete() && dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    /*
+     * full segment from firstId, row i measured at START + i seconds
+     */
+    private Segment full(int firstId) throws IOException {
+        Segment segment = Segment.create(dir, firstId, CAPACITY);
+        for (int i = 0; i < CAPACITY; i++) {
+            segment.append(1 + i % 3, START + i * 1000L, 20 + i % 10, 40 + i % 20);
+        }
+        segment.force();
+        segment.seal();
+        return segment;
+    }
+
+    /*
+     * overwrites 4 bytes at offset of row i in the file, as a crash would leave them
+     */
+    private static void damage(File file, int i, int offset) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(Segment.HEADER + (long) i * Segment.ROW + offset);
+            raf.writeInt(Float.floatToIntBits(-99.5f));
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void assertRow(Segment segment, int i) {
+        assertEquals(segment.firstId + i, segment.id(i));
+        assertEquals(START + i * 1000L, segment.time(i));
+        assertEquals(1 + i % 3, segment.node(i));
+        assertEquals(20 + i % 10, segment.temp(i), 0);
+        assertEquals(40 + i % 20, segment.hum(i), 0);
+    }
+
+    private static void assertZeroed(Segment segment, int i) {
+        assertEquals(0, segment.id(i));
+        assertEquals(0, segment.time(i));
+        assertEquals(0, segment.node(i));
+    }
+
+    @Test
+    public void corruptRowOfSealedSegmentIsAHole() throws IOException {
+        Segment segment = full(1);
+        int middle = CAPACITY / 2;
+        damage(segment.file, middle, 24);
+
+        Segment opened = Segment.open(segment.file, false);
+        assertEquals(CAPACITY, opened.size);
+        assertZeroed(opened, middle);
+        for (int i = 0; i < CAPACITY; i++) {
+            if (i != middle) {
+                assertRow(opened, i);
+            }
+        }
+    }
+
+    @Test
+    public void tornTailIsZeroedAndAppendResumes() throws IOException {
+        int firstId = 1 + CAPACITY;
+        int written = Segment.BLOCK + 10;
+        Segment segment = Segment.create(dir, firstId, CAPACITY);
+        for (int i = 0; i < written; i++) {
+            segment.append(1 + i % 3, START + i * 1000L, 20 + i % 10, 40 + i % 20);
+        }
+        segment.force();
+        // the last row was being written, and a later one had bytes from before
+        damage(segment.file, written - 1, 28);
+        damage(segment.file, written + 5, 0);
+
+        Segment opened = Segment.open(segment.file, true);
+        assertEquals(written - 1, opened.size);
+        assertFalse(opened.isFull());
+        for (int i = 0; i < written - 1; i++) {
+            assertRow(opened, i);
+        }
+        assertZeroed(opened, written - 1);
+        assertZeroed(opened, written + 5);
+
+        // the torn row is written again with its own id
+        opened.append(1 + (written - 1) % 3, START + (written - 1) * 1000L, 20 + (written - 1) % 10,
+                40 + (written - 1) % 20);
+        opened.force();
+        assertEquals(written, opened.size);
+        Segment reopened = Segment.open(opened.file, true);
+        assertEquals(written, reopened.size);
+        for (int i = 0; i < written; i++) {
+            assertRow(reopened, i);
+        }
+        assertEquals(START + (written - 1) * 1000L, reopened.maxTime(CAPACITY));
+    }
+
+    @Test
+    public void deletedSegmentStaysReadable() throws IOException {
+        Segment purged = full(1);
+        // enough sealed segments to drop the mapping of the first one
+        List<Segment> others = new ArrayList<>();
+        for (int s = 1; s <= Segment.MAX_MAPPED; s++) {
+            others.add(full(1 + s * CAPACITY));
+        }
+        purged.delete();
+        assertFalse(purged.file.exists());
+        assertTrue(purged.isDeleted());
+
+        purged.use();
+        for (int i = 0; i < CAPACITY; i++) {
+            assertEquals(1 + i, purged.id(i));
+            assertEquals(START + i * 1000L, purged.time(i));
+            assertEquals(1 + i % 3, purged.node(i));
+        }
+        assertEquals(Segment.MAX_MAPPED, Segment.mapped());
+    }
+}